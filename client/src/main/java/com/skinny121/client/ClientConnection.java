@@ -0,0 +1,243 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One connection to a map server. Every request that has a reply is sent
+ * tagged, so any number can be in flight at once and their replies are
+ * matched up as they arrive, in whatever order the server sends them.
+ */
+public class ClientConnection implements Closeable {
+    static final int TAGGED_MASK = 0x80;
+    static final int REPLY_MASK = 0x40;
+    static final int COLUMN_MASK = 0x20;
+    static final int RESULT_MASK = 0x10;
+    static final int ID_MASK = 0xF;
+    static final int BUSY = REPLY_MASK | RESULT_MASK;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Pending<?>> pending = new ConcurrentHashMap<>();
+    // the number of threads writing or waiting to, the last one out flushes
+    private final AtomicInteger writers = new AtomicInteger();
+    private final AtomicInteger refused = new AtomicInteger();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private volatile IOException failure;
+
+    public ClientConnection(String host, int port) throws IOException{
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        Thread reader = new Thread(this::read, "Map Client " + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Writes the body of a request.
+     */
+    interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads the rest of a reply after its tag and correlation id.
+     */
+    interface Reply<T> {
+        T read(int tag, DataInputStream in) throws IOException;
+    }
+
+    private static final class Pending<T> {
+        private final Reply<T> reply;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Pending(Reply<T> reply){
+            this.reply = reply;
+        }
+
+        private void complete(int tag, DataInputStream in) throws IOException{
+            future.complete(reply.read(tag, in));
+        }
+    }
+
+    /**
+     * Sends a tagged request, the future completes with its reply.
+     */
+    <T> CompletableFuture<T> request(int tag, Body body, Reply<T> reply){
+        int id = nextId.incrementAndGet();
+        Pending<T> request = new Pending<>(reply);
+        pending.put(id, request);
+        try {
+            write(out -> {
+                out.writeByte(tag | TAGGED_MASK);
+                out.writeInt(id);
+                body.write(out);
+            });
+        } catch (IOException e) {
+            pending.remove(id);
+            request.future.completeExceptionally(e);
+        }
+        return request.future;
+    }
+
+    /**
+     * Sends a request that has no reply.
+     */
+    void send(int tag, Body body) throws IOException{
+        write(out -> {
+            out.writeByte(tag);
+            body.write(out);
+        });
+    }
+
+    private void write(Body request) throws IOException{
+        if(failure != null){
+            throw failure;
+        }
+        writers.incrementAndGet();
+        synchronized (out){
+            try {
+                request.write(out);
+            } finally {
+                // flushes once the requests of every thread waiting to write are in the buffer
+                if(writers.decrementAndGet() == 0){
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    private void read(){
+        try {
+            while(true){
+                int tag = in.readUnsignedByte();
+                if(tag == 0){
+                    // the server closed the connection
+                    throw new EOFException("Connection closed");
+                }
+                if((tag & TAGGED_MASK) != 0){
+                    int id = in.readInt();
+                    Pending<?> request = pending.remove(id);
+                    if(request == null){
+                        throw new IOException("Reply to unknown request " + id);
+                    }
+                    if(tag == (BUSY | TAGGED_MASK)){
+                        int refusedTag = in.readUnsignedByte();
+                        request.future.completeExceptionally(new BusyException("The server is too busy for request "
+                                + (refusedTag & ID_MASK)));
+                    }else{
+                        request.complete(tag, in);
+                    }
+                }else if(tag == BUSY){
+                    if(in.readUnsignedByte() == 0){
+                        throw new BusyException("The server has too many connections");
+                    }
+                    // a save, which has no reply to fail
+                    refused.incrementAndGet();
+                }else if((tag & ~COLUMN_MASK) == (REPLY_MASK | RESULT_MASK | 13)){
+                    skipChanges(tag);
+                }else{
+                    throw new IOException("Unexpected reply " + tag);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Skips a pushed change notification, which nothing subscribes to yet.
+     */
+    private void skipChanges(int tag) throws IOException{
+        int count = in.readInt();
+        int size = (tag & COLUMN_MASK) != 0 ? 16 : 20;
+        for(int i=0;i<count;i++){
+            in.readFully(new byte[size]);
+        }
+    }
+
+    private void fail(IOException e){
+        failure = e;
+        for(Integer id:pending.keySet()){
+            Pending<?> request = pending.remove(id);
+            if(request != null){
+                request.future.completeExceptionally(e);
+            }
+        }
+        closed.complete(null);
+    }
+
+    public boolean isOpen(){
+        return failure == null;
+    }
+
+    /**
+     * The number of requests waiting for a reply.
+     */
+    public int getInFlight(){
+        return pending.size();
+    }
+
+    /**
+     * The number of requests without a reply, such as saves, that the server
+     * was too busy to take on and dropped.
+     */
+    public int getRefused(){
+        return refused.get();
+    }
+
+    /**
+     * Asks the server to close the connection and waits for it to, after
+     * the replies to everything sent.
+     */
+    @Override
+    public void close() throws IOException{
+        try {
+            if(failure == null){
+                send(0, out -> {});
+            }
+            closed.join();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts load on a map server and reports the throughput and latency of each
+ * kind of request. It either simulates players moving around a world, each
+ * loading the chunks around them and saving some, or replays a trace of
+ * requests. The simulation can record its trace for replaying later.
+ *
+ * A trace has one request per line, the microseconds since the start
+ * followed by one of get x y z, contains x y z, save x y z size, list or
+ * commit.
+ */
+public class LoadGenerator {
+    private final MapClient client;
+    private final Properties options;
+    private final Semaphore inFlight;
+    private final Recorder recorder = new Recorder();
+    private final long start = System.nanoTime();
+    // null unless recording
+    private PrintWriter trace;
+
+    private LoadGenerator(MapClient client, Properties options){
+        this.client = client;
+        this.options = options;
+        inFlight = new Semaphore(intOption("max-in-flight", 256));
+    }
+
+    public static void main(String[] args) throws Exception{
+        Properties options = new Properties();
+        for(int i=2;i<args.length;i++){
+            int equals = args[i].indexOf('=');
+            if(!args[i].startsWith("--") || equals < 0){
+                options = null;
+                break;
+            }
+            options.setProperty(args[i].substring(2, equals), args[i].substring(equals + 1));
+        }
+        if(args.length < 2 || options == null){
+            System.err.println("Usage: LoadGenerator <host> <port> [--name=value ...]");
+            System.err.println("  --connections=4 --duration=30 --max-in-flight=256");
+            System.err.println("  --players=16 --view=4 --speed=1 --save-ratio=0.05 --payload=4096 --commit-every=1000");
+            System.err.println("  --record=<trace file> to record the simulation");
+            System.err.println("  --replay=<trace file> --replay-speed=1 to replay a trace instead, 0 as fast as possible");
+            return;
+        }
+        try (MapClient client = new MapClient(args[0], Integer.parseInt(args[1]),
+                Integer.parseInt(options.getProperty("connections", "4")))) {
+            LoadGenerator generator = new LoadGenerator(client, options);
+            if(options.containsKey("replay")){
+                generator.replay();
+            }else{
+                generator.simulate();
+            }
+            System.out.print(generator.recorder.report(System.nanoTime() - generator.start));
+        }
+    }
+
+    private int intOption(String name, int value){
+        return Integer.parseInt(options.getProperty(name, String.valueOf(value)));
+    }
+
+    private double doubleOption(String name, double value){
+        return Double.parseDouble(options.getProperty(name, String.valueOf(value)));
+    }
+
+    private void simulate() throws Exception{
+        if(options.containsKey("record")){
+            trace = new PrintWriter(Files.newBufferedWriter(Paths.get(options.getProperty("record"))));
+        }
+        long end = start + TimeUnit.SECONDS.toNanos(intOption("duration", 30));
+        List<Thread> players = new ArrayList<>();
+        for(int i=0;i<intOption("players", 16);i++){
+            Player player = new Player(new Random(i), end);
+            Thread thread = new Thread(player::run, "Player " + i);
+            thread.start();
+            players.add(thread);
+        }
+        long commitEvery = TimeUnit.MILLISECONDS.toNanos(intOption("commit-every", 1000));
+        while(System.nanoTime() < end){
+            TimeUnit.NANOSECONDS.sleep(Math.min(commitEvery, Math.max(0, end - System.nanoTime())));
+            commit();
+        }
+        for(Thread player:players){
+            player.join();
+        }
+        drain();
+        if(trace != null){
+            trace.close();
+        }
+    }
+
+    private void replay() throws Exception{
+        double speed = doubleOption("replay-speed", 1);
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(options.getProperty("replay")))) {
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] parts = line.trim().split("\\s+");
+                if(parts.length < 2){
+                    continue;
+                }
+                if(speed > 0){
+                    long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(Long.parseLong(parts[0])) / speed);
+                    long wait = due - System.nanoTime();
+                    if(wait > 0){
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                int[] args = new int[parts.length - 2];
+                for(int i=0;i<args.length;i++){
+                    args[i] = Integer.parseInt(parts[i + 2]);
+                }
+                issue(parts[1], args);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Sends one request, waiting first if too many are in flight.
+     */
+    private void issue(String op, int... args) throws IOException, InterruptedException{
+        if(trace != null){
+            synchronized (trace){
+                trace.println(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + " " + op
+                        + (args.length == 0 ? "" : " " + Arrays.toString(args).replaceAll("[\\[\\],]", "")));
+            }
+        }
+        long sent = System.nanoTime();
+        CompletableFuture<?> reply;
+        switch (op) {
+            case "get":
+                reply = client.getChunk(args[0], args[1], args[2]);
+                break;
+            case "contains":
+                reply = client.containsChunk(args[0], args[1], args[2]);
+                break;
+            case "save":
+                // no reply, so only the time to send it
+                client.saveChunk(args[0], args[1], args[2], payload(new Random(sent), args[3]));
+                recorder.record(op, System.nanoTime() - sent);
+                return;
+            case "list":
+                reply = client.listChunks();
+                break;
+            case "commit":
+                reply = client.commit();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown request " + op);
+        }
+        inFlight.acquire();
+        reply.whenComplete((result, e) -> {
+            inFlight.release();
+            if(e != null){
+                recorder.fail(op);
+            }else{
+                recorder.record(op, System.nanoTime() - sent);
+            }
+        });
+    }
+
+    private void commit() throws IOException, InterruptedException{
+        issue("commit");
+    }
+
+    private void drain() throws InterruptedException{
+        int permits = intOption("max-in-flight", 256);
+        inFlight.acquire(permits);
+        inFlight.release(permits);
+    }
+
+    static byte[] payload(Random random, int size){
+        byte[] data = new byte[size];
+        for(int i=0;i<size;){
+            byte block = (byte) random.nextInt(8);
+            for(int run=1+random.nextInt(32);run>0 && i<size;run--){
+                data[i++] = block;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Walks about the world at a steady speed, now and then turning, and
+     * loads the chunks that come into view.
+     */
+    private final class Player {
+        private static final int TICKS_PER_SECOND = 20;
+
+        private final Random random;
+        private final long end;
+        private final int view = intOption("view", 4);
+        private final double speed = doubleOption("speed", 1) / TICKS_PER_SECOND;
+        private final double saveRatio = doubleOption("save-ratio", 0.05);
+        private final int payload = intOption("payload", 4096);
+        private final Set<Long> loaded = new HashSet<>();
+        private double x, y, z;
+        private double heading;
+
+        private Player(Random random, long end){
+            this.random = random;
+            this.end = end;
+            x = random.nextInt(2000) - 1000;
+            z = random.nextInt(2000) - 1000;
+            y = random.nextInt(8);
+            heading = random.nextDouble() * 2 * Math.PI;
+        }
+
+        private void run(){
+            try {
+                int cx = Integer.MIN_VALUE, cy = 0, cz = 0;
+                while(System.nanoTime() < end){
+                    if(random.nextInt(TICKS_PER_SECOND * 10) == 0){
+                        heading += random.nextGaussian();
+                    }
+                    x += Math.cos(heading) * speed;
+                    z += Math.sin(heading) * speed;
+                    int nx = (int) Math.floor(x), ny = (int) Math.floor(y), nz = (int) Math.floor(z);
+                    if(nx != cx || ny != cy || nz != cz){
+                        cx = nx;
+                        cy = ny;
+                        cz = nz;
+                        load(cx, cy, cz);
+                    }
+                    if(random.nextDouble() < saveRatio){
+                        issue("save", cx, cy, cz, payload);
+                    }
+                    TimeUnit.MILLISECONDS.sleep(1000 / TICKS_PER_SECOND);
+                }
+            } catch (IOException e) {
+                // the run goes on without this player, but says so in the report
+                recorder.stopped(Thread.currentThread().getName(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void load(int cx, int cy, int cz) throws IOException, InterruptedException{
+            Set<Long> inView = new HashSet<>();
+            for(int dx=-view;dx<=view;dx++){
+                for(int dy=-view/2;dy<=view/2;dy++){
+                    for(int dz=-view;dz<=view;dz++){
+                        long key = ((long) (cx + dx) << 40) ^ ((long) (cy + dy) << 20) ^ (cz + dz);
+                        inView.add(key);
+                        if(!loaded.contains(key)){
+                            issue("get", cx + dx, cy + dy, cz + dz);
+                        }
+                    }
+                }
+            }
+            loaded.clear();
+            loaded.addAll(inView);
+        }
+    }
+
+    /**
+     * The latencies of each kind of request, kept in full so the
+     * percentiles are exact.
+     */
+    private static final class Recorder {
+        private final TreeMap<String, long[]> latencies = new TreeMap<>();
+        private final TreeMap<String, Integer> counts = new TreeMap<>();
+        private final TreeMap<String, Integer> failures = new TreeMap<>();
+        private final List<String> stopped = new ArrayList<>();
+
+        private synchronized void record(String op, long nanos){
+            int count = counts.getOrDefault(op, 0);
+            long[] values = latencies.get(op);
+            if(values == null || values.length == count){
+                values = Arrays.copyOf(values == null ? new long[0] : values, Math.max(1024, count * 2));
+                latencies.put(op, values);
+            }
+            values[count] = nanos;
+            counts.put(op, count + 1);
+        }
+
+        private synchronized void fail(String op){
+            failures.merge(op, 1, Integer::sum);
+        }
+
+        private synchronized void stopped(String player, Exception e){
+            stopped.add(player + " stopped early: " + e);
+        }
+
+        private synchronized String report(long elapsed){
+            StringBuilder report = new StringBuilder();
+            double seconds = elapsed / 1e9;
+            report.append(String.format("%-9s %9s %10s %9s %9s %9s %9s %9s %7s%n",
+                    "request", "count", "per sec", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "failed"));
+            for(String op:counts.keySet()){
+                int count = counts.get(op);
+                long[] values = Arrays.copyOf(latencies.get(op), count);
+                Arrays.sort(values);
+                report.append(String.format("%-9s %9d %10.1f %9d %9d %9d %9d %9d %7d%n", op, count, count / seconds,
+                        percentile(values, 0.5), percentile(values, 0.9), percentile(values, 0.99),
+                        percentile(values, 0.999), values[count - 1] / 1000, failures.getOrDefault(op, 0)));
+            }
+            for(String player:stopped){
+                report.append(String.format("%s%n", player));
+            }
+            return report.toString();
+        }
+
+        private static long percentile(long[] sorted, double fraction){
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)] / 1000;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121.client;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.skinny121.client.ClientConnection.COLUMN_MASK;
+import static com.skinny121.client.ClientConnection.RESULT_MASK;
+
+/**
+ * A pool of pipelined connections to a map server with a typed call for
+ * each request. Requests for a position always go down the same
+ * connection, so a read sees every save of that position made before it.
+ * Every call returns at once, with a future for the reply.
+ */
+public class MapClient implements Closeable {
+    private final String host;
+    private final int port;
+    private final ClientConnection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public MapClient(String host, int port, int connections) throws IOException{
+        this.host = host;
+        this.port = port;
+        this.connections = new ClientConnection[connections];
+        for(int i=0;i<connections;i++){
+            this.connections[i] = new ClientConnection(host, port);
+        }
+    }
+
+    /**
+     * The connection for a position, reopened if it has failed.
+     */
+    private ClientConnection connection(int x, int y, int z){
+        int hash = (x * 31 + y) * 31 + z;
+        return connection(Math.floorMod(hash ^ (hash >>> 16), connections.length));
+    }
+
+    private ClientConnection anyConnection(){
+        return connection(Math.floorMod(next.getAndIncrement(), connections.length));
+    }
+
+    private synchronized ClientConnection connection(int index){
+        if(!connections[index].isOpen()){
+            try {
+                connections[index] = new ClientConnection(host, port);
+            } catch (IOException e) {
+                // the failed one reports the error on use
+            }
+        }
+        return connections[index];
+    }
+
+    public CompletableFuture<byte[]> getChunk(int x, int y, int z){
+        return connection(x, y, z).request(0x02, out -> {
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(z);
+        }, MapClient::readData);
+    }
+
+    public CompletableFuture<byte[]> getColumn(int x, int z){
+        return connection(x, 0, z).request(0x02 | COLUMN_MASK, out -> {
+            out.writeInt(x);
+            out.writeInt(z);
+        }, MapClient::readData);
+    }
+
+    private static byte[] readData(int tag, DataInputStream in) throws IOException{
+        if((tag & RESULT_MASK) == 0){
+            return null;
+        }
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
+    public CompletableFuture<Boolean> containsChunk(int x, int y, int z){
+        return connection(x, y, z).request(0x01, out -> {
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(z);
+        }, (tag, in) -> (tag & RESULT_MASK) != 0);
+    }
+
+    public CompletableFuture<Boolean> containsColumn(int x, int z){
+        return connection(x, 0, z).request(0x01 | COLUMN_MASK, out -> {
+            out.writeInt(x);
+            out.writeInt(z);
+        }, (tag, in) -> (tag & RESULT_MASK) != 0);
+    }
+
+    /**
+     * Sends a chunk to be saved, it is durable after the next {@link #commit}.
+     */
+    public void saveChunk(int x, int y, int z, byte[] data) throws IOException{
+        connection(x, y, z).send(0x03, out -> {
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(z);
+            out.writeInt(data.length);
+            out.write(data);
+        });
+    }
+
+    public void saveColumn(int x, int z, byte[] data) throws IOException{
+        connection(x, 0, z).send(0x03 | COLUMN_MASK, out -> {
+            out.writeInt(x);
+            out.writeInt(z);
+            out.writeInt(data.length);
+            out.write(data);
+        });
+    }
+
+    /**
+     * Lists the x, y, z of every chunk.
+     */
+    public CompletableFuture<List<int[]>> listChunks(){
+        return anyConnection().request(0x04, out -> {}, (tag, in) -> readPositions(in, 3));
+    }
+
+    /**
+     * Lists the x, z of every column.
+     */
+    public CompletableFuture<List<int[]>> listColumns(){
+        return anyConnection().request(0x04 | COLUMN_MASK, out -> {}, (tag, in) -> readPositions(in, 2));
+    }
+
+    private static List<int[]> readPositions(DataInputStream in, int size) throws IOException{
+        int count = in.readInt();
+        List<int[]> positions = new ArrayList<>(count);
+        for(int i=0;i<count;i++){
+            int[] position = new int[size];
+            for(int j=0;j<size;j++){
+                position[j] = in.readInt();
+            }
+            positions.add(position);
+        }
+        return positions;
+    }
+
+    /**
+     * Commits everything saved so far. It is sent down every connection, so
+     * it comes after each of their saves, and the server makes the commits
+     * together. The future completes once everything is durable.
+     */
+    public CompletableFuture<Void> commit(){
+        CompletableFuture<?>[] commits = new CompletableFuture<?>[connections.length];
+        for(int i=0;i<connections.length;i++){
+            commits[i] = connection(i).request(0x05 | RESULT_MASK, out -> {}, (tag, in) -> null);
+        }
+        return CompletableFuture.allOf(commits);
+    }
+
+    /**
+     * The number of requests waiting for a reply across every connection.
+     */
+    public int getInFlight(){
+        int inFlight = 0;
+        for(ClientConnection connection:connections){
+            inFlight += connection.getInFlight();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public void close() throws IOException{
+        IOException failure = null;
+        for(ClientConnection connection:connections){
+            try {
+                connection.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if(failure != null){
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.skinny121.client;
+
+import com.skinny121.Map;
+import com.skinny121.MapConfig;
+import com.skinny121.MapServer;
+import com.skinny121.SegmentStore;
+import org.junit.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class MapClientTest {
+    private Path path;
+    private Map map;
+    private MapServer server;
+    private MapClient client;
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        map = new Map(new SegmentStore(path, 1 << 20), new MapConfig());
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new MapServer(port, map);
+        server.accept();
+        client = new MapClient("localhost", port, 3);
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        client.close();
+        server.close();
+        map.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for(Path file:files){
+                Files.delete(file);
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void requestTest() throws Exception{
+        Assert.assertNull(client.getChunk(1, 2, 3).get());
+        Assert.assertFalse(client.containsColumn(4, 5).get());
+        client.saveChunk(1, 2, 3, new byte[]{1, 2});
+        client.saveColumn(4, 5, new byte[]{3});
+        // routed to the same connection, so seen after the save
+        Assert.assertArrayEquals(new byte[]{1, 2}, client.getChunk(1, 2, 3).get());
+        Assert.assertTrue(client.containsColumn(4, 5).get());
+        Assert.assertArrayEquals(new byte[]{3}, client.getColumn(4, 5).get());
+        client.commit().get();
+        Assert.assertArrayEquals(new int[]{1, 2, 3}, client.listChunks().get().get(0));
+        Assert.assertArrayEquals(new int[]{4, 5}, client.listColumns().get().get(0));
+        Assert.assertArrayEquals(new byte[]{1, 2}, map.getChunk(1, 2, 3));
+    }
+
+    @Test
+    public void pipelineTest() throws Exception{
+        for(int i=0;i<100;i++){
+            client.saveChunk(i, 0, -i, new byte[]{(byte) i});
+        }
+        List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+        for(int i=0;i<100;i++){
+            replies.add(client.getChunk(i, 0, -i));
+        }
+        for(int i=0;i<100;i++){
+            Assert.assertArrayEquals(new byte[]{(byte) i}, replies.get(i).get());
+        }
+        Assert.assertEquals(0, client.getInFlight());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding keys, which Map does on every request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyLayoutBenchmark {
+    private static final int MASK = 1023;
+
+    @Param({"LEGACY", "MORTON"})
+    public KeyLayout layout;
+
+    private final int[] coords = new int[3 * (MASK + 1)];
+    private final long[] addresses = new long[MASK + 1];
+    private int next;
+
+    @Setup
+    public void setUp(){
+        Random random = new Random(1);
+        for(int i=0;i<addresses.length;i++){
+            coords[3*i] = random.nextInt(1<<22) - (1<<21);
+            coords[3*i+1] = random.nextInt(1<<20) - (1<<19);
+            coords[3*i+2] = random.nextInt(1<<22) - (1<<21);
+            addresses[i] = layout.address(coords[3*i], coords[3*i+1], coords[3*i+2]);
+        }
+    }
+
+    @Benchmark
+    public long address(){
+        int i = next = (next + 1) & MASK;
+        return layout.address(coords[3*i], coords[3*i+1], coords[3*i+2]);
+    }
+
+    @Benchmark
+    public int decode(){
+        long address = addresses[next = (next + 1) & MASK];
+        return layout.x(address) + layout.y(address) + layout.z(address);
+    }
+
+    @Benchmark
+    public int unpackSigned(){
+        return KeyLayout.unpackSigned(addresses[next = (next + 1) & MASK], 22, 22);
+    }
+}
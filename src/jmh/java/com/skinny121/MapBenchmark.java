@@ -0,0 +1,110 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes straight through Map, without the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapBenchmark {
+    @Param({"10000"})
+    public int chunks;
+
+    @Param({"4096"})
+    public int payload;
+
+    @Param({"mapdb", "segment"})
+    public String store;
+
+    @Param({"LEGACY", "MORTON"})
+    public KeyLayout layout;
+
+    @Param({"0"})
+    public String cache;
+
+    private Path directory;
+    private World world;
+    private Map map;
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws IOException{
+        directory = Files.createTempDirectory("benchmark");
+        world = new World(chunks);
+        map = world.create(directory, new MapConfig().withStore(store).withLayout(layout)
+                .withCacheBytes(MapConfig.parseSize(cache)), payload);
+        data = World.payload(new Random(2), payload);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        map.close();
+        World.delete(directory);
+    }
+
+    private int[] randomChunk(){
+        return world.position(ThreadLocalRandom.current().nextInt(chunks));
+    }
+
+    @Benchmark
+    public byte[] getChunk(){
+        int[] pos = randomChunk();
+        return map.getChunk(pos[0], pos[1], pos[2]);
+    }
+
+    @Benchmark
+    public boolean containsChunk(){
+        // half of them are outside the world
+        int[] pos = randomChunk();
+        return map.containsChunk(pos[0], ThreadLocalRandom.current().nextBoolean() ? pos[1] : pos[1] + world.getSide(),
+                pos[2]);
+    }
+
+    @Benchmark
+    public void saveChunk(){
+        int[] pos = randomChunk();
+        map.saveChunk(pos[0], pos[1], pos[2], data);
+    }
+
+    @Benchmark
+    public List<Map.Pos> getChunks(){
+        return map.getChunks();
+    }
+}
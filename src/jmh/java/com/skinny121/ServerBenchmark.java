@@ -0,0 +1,277 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of each packet over a loopback connection to a running
+ * server. Packets without a reply are followed by one that has one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark {
+    private static final int MANY = 16;
+
+    @Param({"1000"})
+    public int chunks;
+
+    @Param({"4096"})
+    public int payload;
+
+    @Param({"blocking", "nio"})
+    public String engine;
+
+    @Param({"mapdb"})
+    public String store;
+
+    private Path directory;
+    private World world;
+    private Map map;
+    private Server server;
+    private int port;
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws IOException{
+        directory = Files.createTempDirectory("benchmark");
+        world = new World(chunks);
+        map = world.create(directory, new MapConfig().withStore(store).withLayout(KeyLayout.MORTON), payload);
+        data = World.payload(new Random(2), payload);
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        server = engine.equals("nio") ? new NioMapServer(port, map, Runtime.getRuntime().availableProcessors())
+                : new MapServer(port, map);
+        server.accept();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        server.close();
+        map.close();
+        World.delete(directory);
+    }
+
+    /**
+     * One connection for each benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private Socket socket;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private World world;
+
+        @Setup
+        public void connect(ServerBenchmark benchmark) throws IOException{
+            world = benchmark.world;
+            socket = new Socket("localhost", benchmark.port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        @TearDown
+        public void close() throws IOException{
+            out.writeByte(0);
+            out.flush();
+            in.readByte();
+            socket.close();
+        }
+
+        private int[] writeChunk() throws IOException{
+            int[] pos = world.position(ThreadLocalRandom.current().nextInt(world.getChunks()));
+            out.writeInt(pos[0]);
+            out.writeInt(pos[1]);
+            out.writeInt(pos[2]);
+            return pos;
+        }
+
+        private byte[] readArray() throws IOException{
+            int length = in.readInt();
+            if(length < 0){
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return data;
+        }
+    }
+
+    @Benchmark
+    public boolean contains(Client client) throws IOException{
+        client.out.writeByte(0x01);
+        client.writeChunk();
+        client.out.flush();
+        return (client.in.readByte() & 0x10) != 0;
+    }
+
+    @Benchmark
+    public byte[] get(Client client) throws IOException{
+        client.out.writeByte(0x02);
+        client.writeChunk();
+        client.out.flush();
+        return (client.in.readByte() & 0x10) != 0 ? client.readArray() : null;
+    }
+
+    @Benchmark
+    public boolean saveThenContains(Client client) throws IOException{
+        client.out.writeByte(0x03);
+        int[] pos = client.writeChunk();
+        client.out.writeInt(data.length);
+        client.out.write(data);
+        client.out.writeByte(0x01);
+        client.out.writeInt(pos[0]);
+        client.out.writeInt(pos[1]);
+        client.out.writeInt(pos[2]);
+        client.out.flush();
+        return (client.in.readByte() & 0x10) != 0;
+    }
+
+    @Benchmark
+    public int list(Client client) throws IOException{
+        client.out.writeByte(0x04);
+        client.out.flush();
+        client.in.readByte();
+        int count = client.in.readInt();
+        client.in.readFully(new byte[count * 12]);
+        return count;
+    }
+
+    @Benchmark
+    public byte commit(Client client) throws IOException{
+        client.out.writeByte(0x15);
+        client.out.flush();
+        return client.in.readByte();
+    }
+
+    @Benchmark
+    public int containsMany(Client client) throws IOException{
+        client.out.writeByte(0x06);
+        client.out.writeInt(MANY);
+        for(int i=0;i<MANY;i++){
+            client.writeChunk();
+        }
+        client.out.flush();
+        client.in.readByte();
+        int count = client.in.readInt();
+        client.in.readFully(new byte[count]);
+        return count;
+    }
+
+    @Benchmark
+    public int getMany(Client client) throws IOException{
+        client.out.writeByte(0x07);
+        client.out.writeInt(MANY);
+        for(int i=0;i<MANY;i++){
+            client.writeChunk();
+        }
+        client.out.flush();
+        client.in.readByte();
+        int count = client.in.readInt();
+        for(int i=0;i<count;i++){
+            client.readArray();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int getBox(Client client) throws IOException{
+        client.out.writeByte(0x08);
+        int[] pos = client.writeChunk();
+        client.out.writeInt(pos[0] + 3);
+        client.out.writeInt(pos[1] + 3);
+        client.out.writeInt(pos[2] + 3);
+        client.out.flush();
+        client.in.readByte();
+        int count = client.in.readInt();
+        for(int i=0;i<count;i++){
+            client.in.readFully(new byte[12]);
+            client.readArray();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int listPage(Client client) throws IOException{
+        client.out.writeByte(0x09);
+        client.out.writeBoolean(false);
+        client.out.writeLong(0);
+        client.out.writeInt(256);
+        client.out.flush();
+        client.in.readByte();
+        int count = client.in.readInt();
+        client.in.readFully(new byte[count * 12 + (count > 0 ? 8 : 0)]);
+        return count;
+    }
+
+    @Benchmark
+    public int saveMany(Client client) throws IOException{
+        client.out.writeByte(0x0A);
+        client.out.writeInt(4 + MANY * (12 + 4 + data.length));
+        client.out.writeInt(MANY);
+        for(int i=0;i<MANY;i++){
+            client.writeChunk();
+            client.out.writeInt(data.length);
+            client.out.write(data);
+        }
+        client.out.flush();
+        client.in.readByte();
+        return client.in.readInt();
+    }
+
+    @Benchmark
+    public byte getIfChanged(Client client) throws IOException{
+        client.out.writeByte(0x0C);
+        client.writeChunk();
+        // never matches, so the data comes back every time
+        client.out.writeLong(0);
+        client.out.flush();
+        byte reply = client.in.readByte();
+        if((reply & 0x10) != 0){
+            client.in.readLong();
+            client.readArray();
+        }
+        return reply;
+    }
+}
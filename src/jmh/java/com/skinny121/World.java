@@ -0,0 +1,116 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Builds synthetic worlds for the benchmarks, a cube of chunks centred on
+ * the origin with payloads that compress about as well as real ones.
+ */
+final class World {
+    private static final int BATCH = 4096;
+
+    private final int chunks;
+    private final int side;
+
+    World(int chunks){
+        this.chunks = chunks;
+        this.side = (int) Math.ceil(Math.cbrt(chunks));
+    }
+
+    int getChunks(){
+        return chunks;
+    }
+
+    /**
+     * The x, y, z of the ith chunk.
+     */
+    int[] position(int i){
+        return new int[]{i % side - side / 2, (i / side) % side - side / 2, i / (side * side) - side / 2};
+    }
+
+    /**
+     * The length of a side of the cube the chunks fill.
+     */
+    int getSide(){
+        return side;
+    }
+
+    static byte[] payload(Random random, int size){
+        byte[] data = new byte[size];
+        // mostly runs of a few block ids, like the sections of a real chunk
+        for(int i=0;i<size;){
+            byte block = (byte) random.nextInt(8);
+            int run = 1 + random.nextInt(32);
+            for(int j=0;j<run && i<size;j++){
+                data[i++] = block;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Opens a map in the directory and fills it with the world.
+     */
+    Map create(Path directory, MapConfig config, int payloadSize){
+        Map map = new Map(directory.toString(), config);
+        Random random = new Random(1);
+        for(int start=0;start<chunks;start+=BATCH){
+            int count = Math.min(BATCH, chunks - start);
+            int[] coords = new int[3 * count];
+            byte[][] data = new byte[count][];
+            for(int i=0;i<count;i++){
+                System.arraycopy(position(start + i), 0, coords, 3 * i, 3);
+                data[i] = payload(random, payloadSize);
+            }
+            map.saveChunks(coords, data);
+            map.save();
+        }
+        return map;
+    }
+
+    static void delete(Path directory) throws IOException{
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException{
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException{
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
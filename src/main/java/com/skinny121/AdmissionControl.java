@@ -0,0 +1,175 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides what a server takes on. It limits the connections open at once,
+ * the requests being handled at once across every connection and how many
+ * of those are bulk, and gives each client a token bucket for requests and
+ * another for the bytes they carry. A limit of 0 means there is none.
+ *
+ * Interactive requests read single chunks and columns or a few of them,
+ * bulk ones list and save. Requests that only control the connection, such
+ * as close and commit, are always admitted. Anything else that is not gets
+ * a busy reply, see {@link Connection}.
+ */
+public class AdmissionControl {
+    private final int maxConnections;
+    private final int maxInFlight;
+    private final int maxBulk;
+    private final double requestRate;
+    private final double byteRate;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger bulk = new AtomicInteger();
+
+    /**
+     * Admits everything.
+     */
+    public AdmissionControl(){
+        this(0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @param requestRate the requests per second each client may send
+     * @param byteRate the bytes per second of requests each client may send
+     */
+    public AdmissionControl(int maxConnections, int maxInFlight, int maxBulk, double requestRate, double byteRate){
+        if(maxConnections < 0 || maxInFlight < 0 || maxBulk < 0 || requestRate < 0 || byteRate < 0){
+            throw new IllegalArgumentException("Limits can not be negative");
+        }
+        this.maxConnections = maxConnections;
+        this.maxInFlight = maxInFlight;
+        this.maxBulk = maxBulk;
+        this.requestRate = requestRate;
+        this.byteRate = byteRate;
+    }
+
+    public static AdmissionControl fromOptions(Properties options){
+        return new AdmissionControl(Integer.parseInt(options.getProperty("max-connections", "0")),
+                Integer.parseInt(options.getProperty("max-in-flight", "0")),
+                Integer.parseInt(options.getProperty("max-bulk", "0")),
+                Double.parseDouble(options.getProperty("rate-requests", "0")),
+                MapConfig.parseSize(options.getProperty("rate-bytes", "0")));
+    }
+
+    /**
+     * Whether another connection may be accepted while this many are open.
+     */
+    boolean canConnect(int open){
+        return maxConnections == 0 || open < maxConnections;
+    }
+
+    /**
+     * The requests admitted and not yet done, across every client.
+     */
+    public int getInFlight(){
+        return inFlight.get();
+    }
+
+    Quota newQuota(){
+        return new Quota();
+    }
+
+    static boolean isInteractive(int id){
+        return id == 1 || id == 2 || id == 6 || id == 7 || id == 12 || id == 14;
+    }
+
+    static boolean isBulk(int id){
+        return id == 3 || id == 4 || id == 8 || id == 9 || id == 10;
+    }
+
+    private static boolean acquire(AtomicInteger count, int max){
+        if(count.incrementAndGet() > max && max > 0){
+            count.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The token buckets of one client. Each holds up to a second of its rate
+     * and starts full. A request is admitted once the buckets hold what it
+     * costs, and one larger than the byte bucket once that is full, which
+     * leaves it owing tokens that later requests wait for.
+     */
+    final class Quota {
+        // guarded by this
+        private double requests = Math.max(requestRate, 1);
+        private double bytes = Math.max(byteRate, 1);
+        private long refilled = System.nanoTime();
+
+        /**
+         * Returns whether a request of the given id and size in bytes may run,
+         * if it may {@link #done} has to be called once it has.
+         */
+        boolean admit(int id, int size){
+            if(!isInteractive(id) && !isBulk(id)){
+                return true;
+            }
+            if(!acquire(inFlight, maxInFlight)){
+                return false;
+            }
+            if(isBulk(id) && !acquire(bulk, maxBulk)){
+                inFlight.decrementAndGet();
+                return false;
+            }
+            if(!take(size)){
+                done(id);
+                return false;
+            }
+            return true;
+        }
+
+        void done(int id){
+            if(isBulk(id)){
+                bulk.decrementAndGet();
+            }
+            if(isInteractive(id) || isBulk(id)){
+                inFlight.decrementAndGet();
+            }
+        }
+
+        private synchronized boolean take(int size){
+            if(requestRate == 0 && byteRate == 0){
+                return true;
+            }
+            long now = System.nanoTime();
+            double seconds = (now - refilled) / 1e9;
+            refilled = now;
+            double byteCapacity = Math.max(byteRate, 1);
+            requests = Math.min(requests + seconds * requestRate, Math.max(requestRate, 1));
+            bytes = Math.min(bytes + seconds * byteRate, byteCapacity);
+            if((requestRate > 0 && requests < 1) || (byteRate > 0 && bytes < Math.min(size, byteCapacity))){
+                return false;
+            }
+            requests -= 1;
+            bytes -= size;
+            return true;
+        }
+    }
+}
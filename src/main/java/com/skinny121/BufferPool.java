@@ -0,0 +1,143 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers for reading requests and writing replies, reused rather
+ * than allocated for each one. Buffers come in power of two size classes
+ * from {@link #MIN_SIZE} up to one that holds the largest request allowed.
+ * Larger buffers, which only big replies such as a full list need, are heap
+ * buffers that are left to the garbage collector.
+ */
+public class BufferPool {
+    public static final int DEFAULT_MAX_PAYLOAD = 16 * 1024 * 1024;
+    static final int MIN_SIZE = 4 * 1024;
+    // room for the packet id, correlation id, coords and length around a payload
+    private static final int MAX_HEADER = 64;
+    // the most bytes kept free in each size class
+    private static final int MAX_FREE_BYTES = 32 * 1024 * 1024;
+
+    private final int maxPayload;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCounts;
+    private final AtomicLong allocations = new AtomicLong();
+
+    public BufferPool(int maxPayload){
+        if(maxPayload < 0 || maxPayload > Integer.MAX_VALUE / 2 - MAX_HEADER){
+            throw new IllegalArgumentException("Invalid maximum payload " + maxPayload);
+        }
+        this.maxPayload = maxPayload;
+        int classes = sizeClass(maxPayload + MAX_HEADER) + 1;
+        free = newQueues(classes);
+        freeCounts = new AtomicInteger[classes];
+        for(int i=0;i<classes;i++){
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public BufferPool(){
+        this(DEFAULT_MAX_PAYLOAD);
+    }
+
+    /**
+     * The largest chunk or column, in bytes, a client may send.
+     */
+    public int getMaxPayload(){
+        return maxPayload;
+    }
+
+    /**
+     * The largest request allowed, a payload and the headers around it.
+     */
+    public int getMaxRequest(){
+        return maxPayload + MAX_HEADER;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newQueues(int count){
+        return (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[count];
+    }
+
+    private static int sizeClass(int size){
+        if(size <= MIN_SIZE){
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * Returns a cleared buffer with room for at least size bytes, which is
+     * given back with {@link #release} once it is finished with.
+     */
+    public ByteBuffer acquire(int size){
+        int sizeClass = sizeClass(size);
+        if(sizeClass >= free.length){
+            allocations.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = free[sizeClass].poll();
+        if(buffer == null){
+            allocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(MIN_SIZE << sizeClass);
+        }
+        freeCounts[sizeClass].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to be reused, it must not be used afterwards.
+     * Buffers that did not come from the pool are ignored.
+     */
+    public void release(ByteBuffer buffer){
+        if(buffer == null || !buffer.isDirect() || Integer.bitCount(buffer.capacity()) != 1
+                || buffer.capacity() < MIN_SIZE){
+            return;
+        }
+        int sizeClass = sizeClass(buffer.capacity());
+        if(sizeClass >= free.length){
+            return;
+        }
+        int limit = Math.max(1, MAX_FREE_BYTES / buffer.capacity());
+        if(freeCounts[sizeClass].incrementAndGet() > limit){
+            freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        free[sizeClass].add(buffer);
+    }
+
+    /**
+     * How many buffers have been allocated rather than reused.
+     */
+    public long getAllocations(){
+        return allocations.get();
+    }
+}
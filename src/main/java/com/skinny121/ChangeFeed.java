@@ -0,0 +1,342 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.base.Throwables;
+import com.skinny121.ChunkStore.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Tells subscribers about the chunks and columns changed by each commit.
+ * Saves only note the key, the versions are worked out after the commit on
+ * a thread of its own, and each subscriber is sent its changes by another
+ * thread, so neither saving nor committing waits on a subscriber. Changes
+ * a subscriber has not been sent yet are merged, including while what was
+ * written to it earlier is still waiting to go out on its socket, and past
+ * a limit they are dropped and it is told to read everything again.
+ */
+public class ChangeFeed {
+    private static final Logger logger = LogManager.getLogger();
+
+    // the most changes a subscriber can have waiting
+    static final int MAX_PENDING = 64 * 1024;
+    // the most bytes written to a subscriber but not sent yet before its
+    // changes are held back
+    static final int MAX_UNSENT = 256 * 1024;
+    // the most changes sent in one packet
+    private static final int MAX_NOTIFICATION = 4096;
+
+    private final Map map;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final Set<Listener> listeners = ConcurrentHashMap.newKeySet();
+    // guarded by this, the keys saved since the last commit for each table
+    private Set<Long>[] changed = newChanged();
+    private final ExecutorService publisher;
+    private final ExecutorService deliveries;
+
+    ChangeFeed(Map map){
+        this.map = map;
+        publisher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Change Publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger counter = new AtomicInteger(1);
+        // at most one thread per subscriber, which may block writing to it
+        deliveries = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Change Delivery " + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Long>[] newChanged(){
+        Set<Long>[] changed = (Set<Long>[]) new Set<?>[Table.values().length];
+        for(int i=0;i<changed.length;i++){
+            changed[i] = new HashSet<>();
+        }
+        return changed;
+    }
+
+    /**
+     * Notes a saved key, which is published after the next commit.
+     */
+    void changed(Table table, long address){
+        if(subscribers.isEmpty() && listeners.isEmpty()){
+            return;
+        }
+        synchronized (this){
+            changed[table.ordinal()].add(address);
+        }
+    }
+
+    /**
+     * Takes the keys saved so far, called just before committing them.
+     */
+    synchronized Set<Long>[] drain(){
+        Set<Long>[] drained = changed;
+        changed = newChanged();
+        return drained;
+    }
+
+    /**
+     * Sends the drained keys to the subscribers interested in them, once
+     * they have been committed.
+     */
+    void publish(Set<Long>[] committed){
+        publisher.execute(() -> {
+            for(Listener listener:listeners){
+                listener.committed(committed);
+            }
+            // subscriptions are only to chunks and columns
+            for(Table table:Map.DATA_TABLES){
+                for(long address:committed[table.ordinal()]){
+                    publish(table, address);
+                }
+            }
+        });
+    }
+
+    private void publish(Table table, long address){
+        Map.Pos pos = map.position(address);
+        long version = 0;
+        boolean read = false;
+        for(Subscriber subscriber:subscribers){
+            if(subscriber.wants(table, pos)){
+                if(!read){
+                    // read at publish time, so a later save gives the newer version
+                    version = map.getVersion(table, address);
+                    read = true;
+                }
+                subscriber.offer(table, address, version);
+            }
+        }
+    }
+
+    /**
+     * Starts telling the listener about each commit, including commits that
+     * changed nothing.
+     */
+    void addListener(Listener listener){
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener){
+        listeners.remove(listener);
+    }
+
+    /**
+     * Creates a subscriber that sends its notifications to the output.
+     */
+    Subscriber subscriber(Connection.Output output){
+        return new Subscriber(output);
+    }
+
+    public void close(){
+        publisher.shutdown();
+        deliveries.shutdown();
+    }
+
+    /**
+     * The subscriptions of one connection.
+     */
+    class Subscriber {
+        private final Connection.Output output;
+        private final java.util.Map<Integer, Subscription> subscriptions = new ConcurrentHashMap<>();
+        private int nextId = 1;
+        // guarded by this
+        private final List<LinkedHashMap<Long, Long>> pending = new ArrayList<>();
+        // by table, whether changes were dropped since the last delivery
+        private final boolean[] overflowed = new boolean[Table.values().length];
+        private boolean scheduled;
+        private volatile boolean closed;
+
+        private Subscriber(Connection.Output output){
+            this.output = output;
+            for(Table table:Table.values()){
+                pending.add(new LinkedHashMap<>());
+            }
+        }
+
+        /**
+         * Starts sending the changes in the table that the filter accepts,
+         * returning the id to unsubscribe with.
+         */
+        synchronized int subscribe(Table table, Predicate<Map.Pos> filter){
+            int id = nextId++;
+            subscriptions.put(id, new Subscription(table, filter));
+            subscribers.add(this);
+            return id;
+        }
+
+        boolean unsubscribe(int id){
+            return subscriptions.remove(id) != null;
+        }
+
+        private boolean wants(Table table, Map.Pos pos){
+            for(Subscription subscription:subscriptions.values()){
+                if(subscription.table == table && subscription.filter.test(pos)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void offer(Table table, long address, long version){
+            if(closed){
+                return;
+            }
+            LinkedHashMap<Long, Long> changes = pending.get(table.ordinal());
+            // a newer version replaces the one waiting
+            changes.remove(address);
+            changes.put(address, version);
+            int size = 0;
+            for(LinkedHashMap<Long, Long> waiting:pending){
+                size += waiting.size();
+            }
+            if(size > MAX_PENDING){
+                for(LinkedHashMap<Long, Long> waiting:pending){
+                    waiting.clear();
+                }
+                for(Subscription subscription:subscriptions.values()){
+                    overflowed[subscription.table.ordinal()] = true;
+                }
+            }
+            if(!scheduled){
+                scheduled = true;
+                deliveries.execute(this::deliver);
+            }
+        }
+
+        private void deliver(){
+            while(true){
+                List<LinkedHashMap<Long, Long>> changes = new ArrayList<>();
+                boolean[] overflow = new boolean[overflowed.length];
+                try {
+                    // changes go on merging until the client catches up
+                    output.awaitUnsent(MAX_UNSENT);
+                } catch (IOException e) {
+                    logger.error(Throwables.getStackTraceAsString(e));
+                    close();
+                }
+                synchronized (this){
+                    boolean empty = true;
+                    for(int i=0;i<pending.size();i++){
+                        changes.add(pending.get(i));
+                        empty &= pending.get(i).isEmpty() && !overflowed[i];
+                        pending.set(i, new LinkedHashMap<>());
+                        overflow[i] = overflowed[i];
+                        overflowed[i] = false;
+                    }
+                    if(empty || closed){
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    for(Table table:Table.values()){
+                        if(overflow[table.ordinal()]){
+                            output.write(new byte[]{(byte) (0x5D | (table != Table.CHUNKS ? 0x20 : 0)), -1, -1, -1, -1});
+                        }
+                        write(table, changes.get(table.ordinal()));
+                    }
+                    output.flush();
+                } catch (IOException e) {
+                    logger.error(Throwables.getStackTraceAsString(e));
+                    close();
+                }
+            }
+        }
+
+        private void write(Table table, LinkedHashMap<Long, Long> changes) throws IOException{
+            boolean chunk = table == Table.CHUNKS;
+            Iterator<java.util.Map.Entry<Long, Long>> entries = changes.entrySet().iterator();
+            while(entries.hasNext()){
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                int count = Math.min(changes.size(), MAX_NOTIFICATION);
+                out.writeByte(0x5D | (!chunk ? 0x20 : 0));
+                out.writeInt(count);
+                for(int i=0;i<count;i++){
+                    java.util.Map.Entry<Long, Long> entry = entries.next();
+                    entries.remove();
+                    Map.Pos pos = map.position(entry.getKey());
+                    out.writeInt(pos.x);
+                    if(chunk){
+                        out.writeInt(pos.y);
+                    }
+                    out.writeInt(pos.z);
+                    out.writeLong(entry.getValue());
+                }
+                output.write(bytes.toByteArray());
+            }
+        }
+
+        /**
+         * Drops every subscription, called when the connection closes.
+         */
+        void close(){
+            subscribers.remove(this);
+            synchronized (this){
+                closed = true;
+            }
+        }
+    }
+
+    /**
+     * Told the keys of each table changed by a commit, on the publishing
+     * thread, so it must not block.
+     */
+    interface Listener {
+        void committed(Set<Long>[] keys);
+    }
+
+    private static final class Subscription {
+        private final Table table;
+        private final Predicate<Map.Pos> filter;
+
+        private Subscription(Table table, Predicate<Map.Pos> filter){
+            this.table = table;
+            this.filter = filter;
+        }
+    }
+}
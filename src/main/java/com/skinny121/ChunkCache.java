@@ -0,0 +1,427 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.cache.CacheStats;
+import com.skinny121.ChunkStore.Table;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Holds recently used chunk and column data in memory, bounded by the
+ * number of bytes held. Entries are split by key between stripes, each
+ * under a lock of its own so lookups from many connections rarely contend,
+ * and each stripe is a segmented LRU. New entries go on probation, and only
+ * those read again are moved to the protected part, which takes most of
+ * the room. So a scan or a burst of reading ahead, whose entries are read
+ * once, only pushes out other entries on probation and not the chunks
+ * every client keeps asking for. Absent entries are cached too, as a zero
+ * length marker.
+ *
+ * Several maps can share one cache and so one budget, each through its own
+ * view of it from {@link #share}.
+ *
+ * Entries may also be prefetched before they are asked for, which are then
+ * tracked until first read or evicted to tell whether prefetching pays off.
+ */
+public class ChunkCache {
+    // rough cost of an entry beyond its data, so empty entries still count
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final byte[] ABSENT = new byte[0];
+    // the most stripes, and the least room each one has
+    private static final int MAX_STRIPES = 16;
+    private static final long MIN_STRIPE_BYTES = 64 * 1024;
+    // the share of a stripe kept for entries read more than once
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final Shared shared;
+    // tells apart the entries of the maps sharing the cache
+    private final int owner;
+
+    public ChunkCache(long maxBytes){
+        this(new Shared(maxBytes), 0);
+    }
+
+    private ChunkCache(Shared shared, int owner){
+        this.shared = shared;
+        this.owner = owner;
+    }
+
+    /**
+     * Returns a view of this cache for another map, whose entries are kept
+     * apart from those of every other view but count towards the same size.
+     */
+    public ChunkCache share(){
+        return new ChunkCache(shared, shared.owners.incrementAndGet());
+    }
+
+    private Stripe stripe(Key key){
+        Stripe[] stripes = shared.stripes;
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * Drops every entry of this view.
+     */
+    public void invalidateAll(){
+        for(Stripe stripe:shared.stripes){
+            synchronized (stripe){
+                stripe.removeIf(key -> key.owner == owner);
+            }
+        }
+    }
+
+    /**
+     * Returns the cached data, loading it with the loader on a miss. A loader
+     * result of null is cached as absent. Lookups of an entry being loaded
+     * wait for that load rather than loading it again.
+     */
+    public byte[] get(Table table, long address, Loader loader){
+        Key key = new Key(owner, table, address);
+        Stripe stripe = stripe(key);
+        CompletableFuture<byte[]> load;
+        boolean loads = false;
+        synchronized (stripe){
+            byte[] data = stripe.read(key);
+            if(data != null){
+                shared.hits.increment();
+                return data == ABSENT ? null : data;
+            }
+            shared.misses.increment();
+            load = stripe.loading.get(key);
+            if(load == null){
+                load = new CompletableFuture<>();
+                stripe.loading.put(key, load);
+                loads = true;
+            }
+        }
+        if(!loads){
+            try {
+                byte[] data = load.join();
+                return data == ABSENT ? null : data;
+            } catch (CompletionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        byte[] data;
+        try {
+            byte[] loaded = loader.load();
+            data = loaded == null ? ABSENT : loaded;
+        } catch (RuntimeException e) {
+            synchronized (stripe){
+                stripe.loading.remove(key, load);
+            }
+            load.completeExceptionally(e);
+            throw new IllegalStateException(e);
+        }
+        synchronized (stripe){
+            // unless it was saved over while loading
+            if(stripe.loading.remove(key, load)){
+                stripe.add(key, data);
+            }
+        }
+        load.complete(data);
+        return data == ABSENT ? null : data;
+    }
+
+    /**
+     * Returns true or false if the presence is cached, otherwise null. This
+     * does not count as a hit or a miss.
+     */
+    public Boolean contains(Table table, long address){
+        Key key = new Key(owner, table, address);
+        Stripe stripe = stripe(key);
+        byte[] data;
+        synchronized (stripe){
+            data = stripe.peek(key);
+        }
+        return data == null ? null : data != ABSENT;
+    }
+
+    /**
+     * Returns the cached data without loading it, null if it is absent or not
+     * cached. This does not count as a hit or a miss.
+     */
+    public byte[] peek(Table table, long address){
+        Key key = new Key(owner, table, address);
+        Stripe stripe = stripe(key);
+        byte[] data;
+        synchronized (stripe){
+            data = stripe.peek(key);
+        }
+        return data == ABSENT ? null : data;
+    }
+
+    /**
+     * Loads an entry that is not cached yet with the loader, returning false
+     * if it already was. This does not count as a hit or a miss, and the
+     * entry starts on probation like any other.
+     */
+    public boolean prefetch(Table table, long address, Loader loader){
+        Key key = new Key(owner, table, address);
+        Stripe stripe = stripe(key);
+        synchronized (stripe){
+            if(stripe.peek(key) != null || stripe.loading.containsKey(key)){
+                return false;
+            }
+        }
+        byte[] loaded = loader.load();
+        synchronized (stripe){
+            if(stripe.peek(key) != null || stripe.loading.containsKey(key)){
+                // read or saved while it was being loaded
+                return false;
+            }
+            // tracked first, so that it is forgotten if it is evicted at once
+            shared.prefetched.add(key);
+            stripe.add(key, loaded == null ? ABSENT : loaded);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the entry was prefetched and this is the first time it
+     * has been read since, after which it is no longer tracked.
+     */
+    public boolean usePrefetched(Table table, long address){
+        Set<Key> prefetched = shared.prefetched;
+        return !prefetched.isEmpty() && prefetched.remove(new Key(owner, table, address));
+    }
+
+    /**
+     * Writes through new data for an entry.
+     */
+    public void put(Table table, long address, byte[] data){
+        Key key = new Key(owner, table, address);
+        Stripe stripe = stripe(key);
+        synchronized (stripe){
+            // a load still running read what this replaces
+            stripe.loading.remove(key);
+            stripe.add(key, data);
+        }
+    }
+
+    public long hitCount(){
+        return shared.hits.sum();
+    }
+
+    public long missCount(){
+        return shared.misses.sum();
+    }
+
+    public CacheStats stats(){
+        return new CacheStats(hitCount(), missCount(), 0, 0, 0, shared.evictions.sum());
+    }
+
+    public interface Loader {
+        byte[] load();
+    }
+
+    /**
+     * What every view of a cache has in common.
+     */
+    private static final class Shared {
+        private final Stripe[] stripes;
+        private final AtomicInteger owners = new AtomicInteger();
+        // the prefetched entries not read yet, of every view
+        private final Set<Key> prefetched = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        private Shared(long maxBytes){
+            int count = 1;
+            while(count < MAX_STRIPES && maxBytes / (count * 2) >= MIN_STRIPE_BYTES){
+                count *= 2;
+            }
+            stripes = new Stripe[count];
+            for(int i=0;i<count;i++){
+                stripes[i] = new Stripe(this, maxBytes / count);
+            }
+        }
+    }
+
+    /**
+     * A segmented LRU over part of the keys, guarded by itself.
+     */
+    private static final class Stripe {
+        private final Shared shared;
+        private final long capacity;
+        private final long protectedCapacity;
+        // each from least to most recently used
+        private final LinkedHashMap<Key, byte[]> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<Key, byte[]> protectedEntries = new LinkedHashMap<>();
+        private long probationBytes;
+        private long protectedBytes;
+        // the loads running, an entry saved while it loads is taken out
+        private final java.util.Map<Key, CompletableFuture<byte[]>> loading = new HashMap<>();
+
+        private Stripe(Shared shared, long capacity){
+            this.shared = shared;
+            this.capacity = capacity;
+            protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+        }
+
+        private static long weight(byte[] data){
+            return data.length + ENTRY_OVERHEAD;
+        }
+
+        private byte[] peek(Key key){
+            byte[] data = protectedEntries.get(key);
+            return data != null ? data : probation.get(key);
+        }
+
+        /**
+         * Returns the entry, moving it to the most recently used end of the
+         * protected part.
+         */
+        private byte[] read(Key key){
+            byte[] data = protectedEntries.remove(key);
+            if(data == null){
+                data = probation.remove(key);
+                if(data == null){
+                    return null;
+                }
+                probationBytes -= weight(data);
+                protectedBytes += weight(data);
+            }
+            protectedEntries.put(key, data);
+            // the least recently used protected entries get another chance on probation
+            Iterator<java.util.Map.Entry<Key, byte[]>> eldest = protectedEntries.entrySet().iterator();
+            while(protectedBytes > protectedCapacity && protectedEntries.size() > 1){
+                java.util.Map.Entry<Key, byte[]> demoted = eldest.next();
+                eldest.remove();
+                protectedBytes -= weight(demoted.getValue());
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationBytes += weight(demoted.getValue());
+            }
+            return data;
+        }
+
+        /**
+         * Adds an entry on probation, or replaces one where it is.
+         */
+        private void add(Key key, byte[] data){
+            byte[] old = protectedEntries.get(key);
+            if(old != null){
+                protectedEntries.put(key, data);
+                protectedBytes += weight(data) - weight(old);
+            }else{
+                old = probation.remove(key);
+                if(old != null){
+                    probationBytes -= weight(old);
+                }
+                probation.put(key, data);
+                probationBytes += weight(data);
+            }
+            if(old != null){
+                // new data was saved rather than read
+                shared.prefetched.remove(key);
+            }
+            evict();
+        }
+
+        private void evict(){
+            Iterator<java.util.Map.Entry<Key, byte[]>> victims = probation.entrySet().iterator();
+            while(probationBytes + protectedBytes > capacity && victims.hasNext()){
+                java.util.Map.Entry<Key, byte[]> victim = victims.next();
+                victims.remove();
+                probationBytes -= weight(victim.getValue());
+                shared.prefetched.remove(victim.getKey());
+                shared.evictions.increment();
+            }
+            victims = protectedEntries.entrySet().iterator();
+            while(probationBytes + protectedBytes > capacity && victims.hasNext()){
+                java.util.Map.Entry<Key, byte[]> victim = victims.next();
+                victims.remove();
+                protectedBytes -= weight(victim.getValue());
+                shared.prefetched.remove(victim.getKey());
+                shared.evictions.increment();
+            }
+        }
+
+        private void removeIf(Predicate<Key> filter){
+            Iterator<java.util.Map.Entry<Key, byte[]>> entries = probation.entrySet().iterator();
+            while(entries.hasNext()){
+                java.util.Map.Entry<Key, byte[]> entry = entries.next();
+                if(filter.test(entry.getKey())){
+                    entries.remove();
+                    probationBytes -= weight(entry.getValue());
+                    shared.prefetched.remove(entry.getKey());
+                }
+            }
+            entries = protectedEntries.entrySet().iterator();
+            while(entries.hasNext()){
+                java.util.Map.Entry<Key, byte[]> entry = entries.next();
+                if(filter.test(entry.getKey())){
+                    entries.remove();
+                    protectedBytes -= weight(entry.getValue());
+                    shared.prefetched.remove(entry.getKey());
+                }
+            }
+            // so loads still running are not added after
+            loading.keySet().removeIf(filter);
+        }
+    }
+
+    private static final class Key {
+        private final int owner;
+        private final Table table;
+        private final long address;
+
+        private Key(int owner, Table table, long address){
+            this.owner = owner;
+            this.table = table;
+            this.address = address;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+            return key.owner == owner && key.table == table && key.address == address;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (address ^ (address >>> 32));
+            result = 31 * result + table.ordinal();
+            result = 31 * result + owner;
+            return result;
+        }
+    }
+}
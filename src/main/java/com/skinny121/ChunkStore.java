@@ -0,0 +1,123 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * The storage behind a {@link Map}, holding chunk and column data by their
+ * packed long keys. Keys are ordered as signed longs.
+ */
+public interface ChunkStore {
+    enum Table {
+        CHUNKS("chunks"),
+        COLUMNS("columns"),
+        // the sorted y of every chunk in each column, kept by the map
+        CUBE_INDEX("cubeIndex");
+
+        private final String storeName;
+
+        Table(String storeName){
+            this.storeName = storeName;
+        }
+
+        /**
+         * The name the table is stored under.
+         */
+        public String storeName(){
+            return storeName;
+        }
+    }
+
+    byte[] get(Table table, long key);
+
+    /**
+     * Copies an entry into a buffer rather than a new array, returning its
+     * length or -1 if it is not present. The buffer is asked for with the
+     * length, and must have room for that many bytes at its position.
+     */
+    default int read(Table table, long key, IntFunction<ByteBuffer> into){
+        byte[] data = get(table, key);
+        if(data == null){
+            return -1;
+        }
+        into.apply(data.length).put(data);
+        return data.length;
+    }
+
+    boolean contains(Table table, long key);
+
+    void save(Table table, long key, byte[] data);
+
+    /**
+     * Saves many entries as one batch, a later entry with the same key wins.
+     */
+    void saveAll(Table table, long[] keys, byte[][] data);
+
+    /**
+     * Fills an empty table from entries in ascending key order, which is much
+     * cheaper than saving them one at a time. Only meant for building a new
+     * store offline, the entries are durable after the next commit.
+     */
+    void load(Table table, Iterator<java.util.Map.Entry<Long, byte[]>> sorted);
+
+    boolean isEmpty(Table table);
+
+    /**
+     * Iterates the keys in order, starting after the given key or at the
+     * start if it is null.
+     */
+    Iterator<Long> keys(Table table, Long after);
+
+    /**
+     * Iterates the entries with keys from lo to hi inclusive, in order.
+     */
+    Iterator<java.util.Map.Entry<Long, byte[]>> entries(Table table, long lo, long hi);
+
+    /**
+     * Returns a small piece of metadata about the store, or null if it is not set.
+     */
+    String getMeta(String name);
+
+    /**
+     * Sets a piece of metadata, it is durable after the next commit.
+     */
+    void setMeta(String name, String value);
+
+    /**
+     * The names of every piece of metadata that is set.
+     */
+    Set<String> metaNames();
+
+    /**
+     * Makes everything saved so far durable.
+     */
+    void commit();
+
+    void close();
+}
@@ -0,0 +1,524 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * Wraps the store kept at a path so that it can be compacted while in use.
+ * A compaction copies the live entries in order into a new store next to it,
+ * at a limited rate, while reads and writes carry on against the old one.
+ * Keys saved during the copy are copied again at the end, and then the new
+ * store takes the place of the old one.
+ *
+ * The files of a store are taken to be the path and everything next to it
+ * whose name starts with the path's name and a dot.
+ */
+public class CompactingStore implements ChunkStore {
+    private static final Logger logger = LogManager.getLogger();
+    // how many entries the copy commits the new store after
+    private static final int COMMIT_BATCH = 4096;
+    // how often commits check whether the store has grown enough to compact
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+    // prefixes the names of the new store while it is being written
+    private static final String COMPACTING = "compacting-";
+    // the marker that the new store is complete and is replacing the old one
+    private static final String COMPACTED = "compacted-";
+
+    private final Path directory;
+    private final String name;
+    private final Function<Path, ChunkStore> opener;
+    private final double ratio;
+    // null if the copy is not limited
+    private volatile RateLimiter rateLimiter;
+    // held shared by every operation, and exclusively to switch stores
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile ChunkStore store;
+    // bumped on every switch, so iterators know to carry on in the new store
+    private volatile int generation;
+    // the keys saved to each table during a copy, null when there is none
+    private volatile List<Set<Long>> captured;
+    private final AtomicReference<CompletableFuture<Void>> compaction = new AtomicReference<>();
+    private volatile boolean closed;
+    private volatile long baseSize;
+    private volatile long nextCheck;
+
+    /**
+     * Opens the store at the path with the opener, first finishing a switch
+     * that was interrupted. It is compacted once it has grown to the ratio
+     * times its size when opened or last compacted, never if the ratio is 0,
+     * and the copy reads at most the given bytes per second, 0 for no limit.
+     */
+    public CompactingStore(Path path, Function<Path, ChunkStore> opener, double ratio, long bytesPerSecond){
+        path = path.toAbsolutePath();
+        directory = path.getParent();
+        name = path.getFileName().toString();
+        this.opener = opener;
+        this.ratio = ratio;
+        setRate(bytesPerSecond);
+        try {
+            if(Files.exists(directory.resolve(COMPACTED + name))){
+                replaceFiles();
+            }else{
+                deleteFiles(COMPACTING + name);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        store = opener.apply(path);
+        baseSize = diskSize();
+        nextCheck = System.nanoTime() + CHECK_INTERVAL;
+    }
+
+    /**
+     * Limits copies from now on to the given bytes per second, 0 for no limit.
+     */
+    public void setRate(long bytesPerSecond){
+        rateLimiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+    }
+
+    private List<Path> files(String prefix) throws IOException{
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for(Path file:stream){
+                String fileName = file.getFileName().toString();
+                if(fileName.equals(prefix) || fileName.startsWith(prefix + ".")){
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    private void deleteFiles(String prefix) throws IOException{
+        for(Path file:files(prefix)){
+            try (Stream<Path> tree = Files.walk(file)) {
+                for(Path path:(Iterable<Path>) tree.sorted(Comparator.reverseOrder())::iterator){
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the old store and moves the new one into its place. Safe to
+     * repeat if it is interrupted, as the marker is removed last.
+     */
+    private void replaceFiles() throws IOException{
+        if(!files(COMPACTING + name).isEmpty()){
+            deleteFiles(name);
+            for(Path file:files(COMPACTING + name)){
+                Files.move(file, directory.resolve(file.getFileName().toString().substring(COMPACTING.length())));
+            }
+        }
+        Files.delete(directory.resolve(COMPACTED + name));
+    }
+
+    /**
+     * How many bytes the store takes on disk.
+     */
+    public long diskSize(){
+        long size = 0;
+        try {
+            for(Path file:files(name)){
+                try (Stream<Path> tree = Files.walk(file)) {
+                    size += tree.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return size;
+    }
+
+    /**
+     * Starts compacting the store in the background, or returns the running
+     * compaction. The future completes once the new store is in use.
+     */
+    public CompletableFuture<Void> compact(){
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if(closed){
+            future.completeExceptionally(new IllegalStateException("The store is closed"));
+            return future;
+        }
+        if(!compaction.compareAndSet(null, future)){
+            CompletableFuture<Void> running = compaction.get();
+            return running != null ? running : compact();
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                copy();
+                future.complete(null);
+            } catch (Throwable e) {
+                logger.error("Compacting " + name + " failed", e);
+                future.completeExceptionally(e);
+            } finally {
+                compaction.set(null);
+            }
+        }, "Compactor");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    private void copy() throws IOException{
+        long start = System.nanoTime();
+        long before = diskSize();
+        deleteFiles(COMPACTING + name);
+        ChunkStore fresh = opener.apply(directory.resolve(COMPACTING + name));
+        boolean freshOpen = true;
+        List<Set<Long>> saved = new ArrayList<>();
+        for(int i=0;i<Table.values().length;i++){
+            saved.add(ConcurrentHashMap.newKeySet());
+        }
+        lock.writeLock().lock();
+        try {
+            captured = saved;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            for(Table table:Table.values()){
+                Iterator<Long> keys = keys(table, null);
+                fresh.load(table, new AbstractIterator<java.util.Map.Entry<Long, byte[]>>() {
+                    @Override
+                    protected java.util.Map.Entry<Long, byte[]> computeNext(){
+                        if(closed){
+                            throw new CancellationException("The store was closed");
+                        }
+                        while(keys.hasNext()){
+                            long key = keys.next();
+                            byte[] data = get(table, key);
+                            if(data != null){
+                                RateLimiter limiter = rateLimiter;
+                                if(limiter != null){
+                                    limiter.acquire(Math.max(1, data.length));
+                                }
+                                return new AbstractMap.SimpleImmutableEntry<>(key, data);
+                            }
+                        }
+                        return endOfData();
+                    }
+                });
+            }
+            fresh.commit();
+            lock.writeLock().lock();
+            try {
+                // only the keys saved during the copy, so everything waits on this briefly
+                for(Table table:Table.values()){
+                    for(long key:saved.get(table.ordinal())){
+                        fresh.save(table, key, store.get(table, key));
+                    }
+                }
+                for(String meta:store.metaNames()){
+                    fresh.setMeta(meta, store.getMeta(meta));
+                }
+                fresh.commit();
+                freshOpen = false;
+                fresh.close();
+                store.close();
+                try {
+                    Files.createFile(directory.resolve(COMPACTED + name));
+                    replaceFiles();
+                } finally {
+                    // the old store again if the switch did not start
+                    store = opener.apply(directory.resolve(name));
+                    generation++;
+                }
+            } finally {
+                captured = null;
+                lock.writeLock().unlock();
+            }
+        } finally {
+            captured = null;
+            if(freshOpen){
+                fresh.close();
+            }
+            deleteFiles(COMPACTING + name);
+        }
+        baseSize = diskSize();
+        logger.info("Compacted " + name + " from " + before + " to " + baseSize + " bytes in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, " + (saved.get(0).size()
+                + saved.get(1).size()) + " keys were saved during the copy");
+    }
+
+    /**
+     * Compacts in the background if the store has grown past the ratio.
+     */
+    private void checkSize(){
+        long now = System.nanoTime();
+        if(ratio > 0 && !closed && now - nextCheck > 0 && compaction.get() == null){
+            nextCheck = now + CHECK_INTERVAL;
+            if(diskSize() > ratio * baseSize){
+                compact();
+            }
+        }
+    }
+
+    private void captureSave(Table table, long key){
+        List<Set<Long>> captured = this.captured;
+        if(captured != null){
+            captured.get(table.ordinal()).add(key);
+        }
+    }
+
+    @Override
+    public byte[] get(Table table, long key){
+        lock.readLock().lock();
+        try {
+            return store.get(table, key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int read(Table table, long key, IntFunction<ByteBuffer> into){
+        lock.readLock().lock();
+        try {
+            return store.read(table, key, into);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Table table, long key){
+        lock.readLock().lock();
+        try {
+            return store.contains(table, key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void save(Table table, long key, byte[] data){
+        lock.readLock().lock();
+        try {
+            store.save(table, key, data);
+            captureSave(table, key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveAll(Table table, long[] keys, byte[][] data){
+        lock.readLock().lock();
+        try {
+            store.saveAll(table, keys, data);
+            for(long key:keys){
+                captureSave(table, key);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void load(Table table, Iterator<java.util.Map.Entry<Long, byte[]>> sorted){
+        lock.readLock().lock();
+        try {
+            store.load(table, new AbstractIterator<java.util.Map.Entry<Long, byte[]>>() {
+                @Override
+                protected java.util.Map.Entry<Long, byte[]> computeNext(){
+                    if(!sorted.hasNext()){
+                        return endOfData();
+                    }
+                    java.util.Map.Entry<Long, byte[]> entry = sorted.next();
+                    captureSave(table, entry.getKey());
+                    return entry;
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty(Table table){
+        lock.readLock().lock();
+        try {
+            return store.isEmpty(table);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Long> keys(Table table, Long after){
+        return new Resuming<>(store -> store.keys(table, after), (store, last) -> store.keys(table, last), key -> key);
+    }
+
+    @Override
+    public Iterator<java.util.Map.Entry<Long, byte[]>> entries(Table table, long lo, long hi){
+        return new Resuming<>(store -> store.entries(table, lo, hi),
+                (store, last) -> last == hi ? Collections.emptyIterator() : store.entries(table, last + 1, hi),
+                java.util.Map.Entry::getKey);
+    }
+
+    @Override
+    public String getMeta(String name){
+        lock.readLock().lock();
+        try {
+            return store.getMeta(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setMeta(String name, String value){
+        lock.readLock().lock();
+        try {
+            store.setMeta(name, value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> metaNames(){
+        lock.readLock().lock();
+        try {
+            return store.metaNames();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void commit(){
+        lock.readLock().lock();
+        try {
+            store.commit();
+        } finally {
+            lock.readLock().unlock();
+        }
+        checkSize();
+    }
+
+    @Override
+    public void close(){
+        closed = true;
+        CompletableFuture<Void> running = compaction.get();
+        if(running != null){
+            running.handle((result, e) -> null).join();
+        }
+        lock.writeLock().lock();
+        try {
+            store.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Iterates the store in use, carrying on after the last key in the new
+     * store when they are switched.
+     */
+    private final class Resuming<T> implements Iterator<T> {
+        private final Function<ChunkStore, Iterator<T>> open;
+        private final BiFunction<ChunkStore, Long, Iterator<T>> resume;
+        private final Function<T, Long> key;
+        private Iterator<T> iterator;
+        private int iteratorGeneration;
+        // null until the first element
+        private Long last;
+
+        private Resuming(Function<ChunkStore, Iterator<T>> open, BiFunction<ChunkStore, Long, Iterator<T>> resume,
+                         Function<T, Long> key){
+            this.open = open;
+            this.resume = resume;
+            this.key = key;
+            lock.readLock().lock();
+            try {
+                iteratorGeneration = generation;
+                iterator = open.apply(store);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void checkGeneration(){
+            if(iteratorGeneration != generation){
+                iteratorGeneration = generation;
+                iterator = last == null ? open.apply(store) : resume.apply(store, last);
+            }
+        }
+
+        @Override
+        public boolean hasNext(){
+            lock.readLock().lock();
+            try {
+                checkGeneration();
+                return iterator.hasNext();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public T next(){
+            lock.readLock().lock();
+            try {
+                checkGeneration();
+                T next = iterator.next();
+                last = key.apply(next);
+                return next;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
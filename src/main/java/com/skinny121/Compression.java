@@ -0,0 +1,266 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How a store keeps chunk and column data. Compressed data is an int of the
+ * uncompressed length followed by a deflate stream, using the preset
+ * dictionary if there is one.
+ */
+public final class Compression {
+    public static final Compression NONE = new Compression(Codec.NONE, null);
+
+    // the most of a preset dictionary deflate can refer back to
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    // the length of the byte sequences counted when training a dictionary
+    private static final int GRAM = 8;
+    // the length of the pieces of sample a dictionary is built from
+    private static final int SEGMENT = 64;
+
+    public enum Codec {
+        NONE, DEFLATE
+    }
+
+    // shared by every instance, as a store is given a new one each time it is
+    // opened, and each use resets them and sets its own dictionary
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final Codec codec;
+    private final byte[] dictionary;
+
+    public Compression(Codec codec, byte[] dictionary){
+        this.codec = codec;
+        this.dictionary = dictionary == null || dictionary.length == 0 ? null : dictionary;
+    }
+
+    /**
+     * Reads the compression recorded in a store's meta data.
+     */
+    public static Compression fromMeta(ChunkStore store){
+        String codec = store.getMeta("compression");
+        if(codec == null){
+            return NONE;
+        }
+        String dictionary = store.getMeta("dictionary");
+        return new Compression(Codec.valueOf(codec),
+                dictionary == null ? null : Base64.getDecoder().decode(dictionary));
+    }
+
+    /**
+     * Records this in a store's meta data, the caller commits it.
+     */
+    public void toMeta(ChunkStore store){
+        store.setMeta("compression", codec.name());
+        if(dictionary != null){
+            store.setMeta("dictionary", Base64.getEncoder().encodeToString(dictionary));
+        }
+    }
+
+    public Codec getCodec(){
+        return codec;
+    }
+
+    /**
+     * The preset dictionary, or null if there is none.
+     */
+    public byte[] getDictionary(){
+        return dictionary;
+    }
+
+    public byte[] encode(byte[] data){
+        if(codec == Codec.NONE){
+            return data;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if(dictionary != null){
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        out.write(data.length >>> 24);
+        out.write(data.length >>> 16);
+        out.write(data.length >>> 8);
+        out.write(data.length);
+        byte[] buffer = new byte[Math.min(Math.max(data.length, 64), 64 * 1024)];
+        while(!deflater.finished()){
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    public byte[] decode(byte[] data){
+        if(codec == Codec.NONE || data == null){
+            return data;
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, 4, data.length - 4);
+        byte[] result = new byte[ByteBuffer.wrap(data).getInt()];
+        try {
+            int offset = 0;
+            while(offset < result.length){
+                int read = inflater.inflate(result, offset, result.length - offset);
+                if(read == 0){
+                    if(inflater.needsDictionary() && dictionary != null){
+                        inflater.setDictionary(dictionary);
+                    }else if(inflater.finished() || inflater.needsInput() || inflater.needsDictionary()){
+                        throw new DataFormatException("Truncated data");
+                    }
+                }
+                offset += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed data", e);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this == o) return true;
+        if(o == null || getClass() != o.getClass()) return false;
+        Compression other = (Compression) o;
+        return codec == other.codec && Arrays.equals(dictionary, other.dictionary);
+    }
+
+    @Override
+    public int hashCode(){
+        return 31 * codec.hashCode() + Arrays.hashCode(dictionary);
+    }
+
+    /**
+     * Builds a preset dictionary of at most size bytes out of the pieces of
+     * the samples that share the most byte sequences with other samples.
+     */
+    public static byte[] train(List<byte[]> samples, int size){
+        size = Math.min(size, MAX_DICTIONARY_SIZE);
+        // how many samples each sequence is in
+        HashMap<Long, Integer> frequency = new HashMap<>();
+        for(byte[] sample:samples){
+            Set<Long> seen = new HashSet<>();
+            for(int i=0;i+GRAM<=sample.length;i++){
+                if(seen.add(gram(sample, i))){
+                    frequency.merge(gram(sample, i), 1, Integer::sum);
+                }
+            }
+        }
+        PriorityQueue<Segment> queue = new PriorityQueue<>();
+        for(byte[] sample:samples){
+            for(int i=0;i+SEGMENT<=sample.length;i+=SEGMENT){
+                Segment segment = new Segment(sample, i);
+                segment.score = segment.score(frequency);
+                if(segment.score > 0){
+                    queue.add(segment);
+                }
+            }
+        }
+        // greedily takes the best segment, rescoring each as it comes up
+        // since the sequences in those already taken no longer count
+        List<Segment> chosen = new ArrayList<>();
+        int length = 0;
+        while(length < size && !queue.isEmpty()){
+            Segment segment = queue.poll();
+            int score = segment.score(frequency);
+            if(score <= 0){
+                continue;
+            }
+            if(!queue.isEmpty() && score < queue.peek().score){
+                segment.score = score;
+                queue.add(segment);
+                continue;
+            }
+            chosen.add(segment);
+            length += SEGMENT;
+            for(int i=segment.offset;i+GRAM<=segment.offset+SEGMENT;i++){
+                frequency.remove(gram(segment.sample, i));
+            }
+        }
+        // deflate reaches the end of the dictionary most cheaply, so the best go last
+        ByteBuffer dictionary = ByteBuffer.allocate(Math.min(length, size));
+        // any overflow is cut off the front of the worst
+        int skip = length - dictionary.capacity();
+        for(int i=chosen.size()-1;i>=0;i--){
+            Segment segment = chosen.get(i);
+            dictionary.put(segment.sample, segment.offset + skip, SEGMENT - skip);
+            skip = 0;
+        }
+        return dictionary.array();
+    }
+
+    private static long gram(byte[] data, int offset){
+        long gram = 0;
+        for(int i=0;i<GRAM;i++){
+            gram = gram << 8 | (data[offset + i] & 0xFF);
+        }
+        return gram;
+    }
+
+    private static final class Segment implements Comparable<Segment> {
+        private final byte[] sample;
+        private final int offset;
+        private int score;
+
+        private Segment(byte[] sample, int offset){
+            this.sample = sample;
+            this.offset = offset;
+        }
+
+        /**
+         * Sums how many other samples share each sequence in this segment.
+         */
+        private int score(HashMap<Long, Integer> frequency){
+            int score = 0;
+            for(int i=offset;i+GRAM<=offset+SEGMENT;i++){
+                Integer count = frequency.get(gram(sample, i));
+                if(count != null){
+                    score += count - 1;
+                }
+            }
+            return score;
+        }
+
+        @Override
+        public int compareTo(Segment other){
+            return Integer.compare(other.score, score);
+        }
+    }
+}
@@ -28,18 +28,29 @@ import com.google.common.base.Throwables;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
 
 
 /**
  * Packets:
  *
  *   bits
+ *   -tagged 1 (optional)
  *   -request 0/reply 1
  *   -indicates chunk 0/column 1
  *   -result bit false 0/true 1
@@ -67,41 +78,238 @@ import java.util.List;
  *      replies with array of two/three values
  *
  *   commit save 5
+ *      waits until everything saved is durable, commits from other
+ *      connections at about the same time are made together
+ *
+ *      with the result bit set in the request there is a reply once it
+ *      is durable, otherwise none
+ *
+ *   contains many 6
+ *      followed by an int count and then count lots of 2 or 3 ints
+ *
+ *      replies with the count followed by a boolean byte for each
+ *   get many 7
+ *      followed by an int count and then count lots of 2 or 3 ints
+ *
+ *      replies with the count followed by an array of bytes for each, a
+ *      length of -1 indicating not present
+ *   get box 8
+ *      followed by the 2 or 3 ints of the lowest corner and then the highest,
+ *      both inclusive
+ *
+ *      replies with a count followed by the 2 or 3 ints and array of bytes
+ *      of every chunk or column in the box
+ *   list page 9
+ *      followed by a boolean for whether a cursor follows, a long cursor and
+ *      an int for the most positions wanted
+ *
+ *      replies with a count followed by two/three values for each position,
+ *      then the long cursor of the last one if the count is not 0. The
+ *      result bit is set if there are more positions after it, which are
+ *      listed by sending that cursor back.
+ *   save many 10
+ *      followed by an int length of the rest of the packet, then an int count
+ *      and count lots of 2 or 3 ints and an array of bytes
+ *
+ *      the entries are saved as one batch, and with the result bit set in the
+ *      request they are committed too. Replies with the count once done, the
+ *      result bit set if they were committed.
+ *   options 11
+ *      followed by an int of option flags the client wants, bit 0 asks for
+ *      chunks and columns to be sent as they are stored
+ *
+ *      replies with the int flags granted, then a byte for how the store
+ *      compresses data, 0 none or 1 deflate, and an array of bytes of the
+ *      preset dictionary, which is empty if there is none. Once granted the
+ *      data in get, get many and get box replies is sent as stored, see
+ *      {@link Compression}.
+ *   get if changed 12
+ *      followed by 2 or 3 ints and the long version the client has, 0 if it
+ *      has none
+ *
+ *      reply has the result bit set if the chunk or column differs from that
+ *      version, followed by its long version and array of bytes, a length of
+ *      -1 and version 0 indicating not present. Otherwise it is unchanged and
+ *      nothing follows.
+ *   subscribe 13
+ *      for chunks followed by the 3 ints of the lowest corner of a box and then
+ *      the highest, both inclusive, for columns by an int count and count
+ *      lots of 2 ints
+ *
+ *      replies with an int subscription id. Afterwards each commit that
+ *      changes a chunk or column subscribed to is pushed to the client
+ *      between replies, with the result bit set, as a count followed by the
+ *      2 or 3 ints and long version of each, see get if changed. Changes not
+ *      yet sent are merged, and a count of -1 means too many were waiting
+ *      and they were dropped, so everything subscribed to has to be read
+ *      again.
+ *
+ *      with the result bit set in the request it is followed by a
+ *      subscription id to unsubscribe from, and the reply echoes it.
+ *   column bundle 14
+ *      followed by the 2 ints of a column and the lowest and highest y of
+ *      its chunks wanted, both inclusive
+ *
+ *      reply has the result bit set if the column is present, followed by its
+ *      array of bytes, then a count and the int y and array of bytes of every
+ *      chunk of the column in the range, in ascending y
+ *   select store 15
+ *      followed by an int dimension and the name of a world, as an unsigned
+ *      short length and that many bytes of modified UTF-8, empty for the
+ *      world the server was started with
+ *
+ *      reply has the result bit set if the store was found, every later
+ *      request then goes to it. Subscriptions and the option to send data
+ *      as stored are dropped, and have to be asked for again as the store
+ *      may compress differently.
+ *
+ *   Tagged requests
+ *      a request with the tagged bit set is followed by an int correlation id
+ *      before the rest of the packet, its reply has the tagged bit set and the
+ *      same id straight after the packet id. Tagged requests that only read
+ *      are looked up concurrently and replied to as soon as each finishes, in
+ *      any order. Every other request waits for those in flight before it runs,
+ *      and untagged replies keep the order of their requests.
+ *
+ *   Busy
+ *      a request the server can not take on right now, see
+ *      {@link AdmissionControl}, is not run. Its reply has the reply and result
+ *      bits set and an id of 0, followed by the first byte of the request, and
+ *      it is tagged with the correlation id if the request was. It may be sent
+ *      again later. A connection over the limit is sent 0x50 0x00 and closed.
  */
 public class Connection {
     private static final Logger logger = LogManager.getLogger();
 
+    private static final int TAGGED_MASK = 0x80;
     private static final int REQUEST_MASK = 0x40;
     private static final int CHUNK_MASK = 0x20;
     private static final int RESULT_MASK = 0x10;
     private static final int ID_MASK = 0xF;
+    static final int BUSY = REQUEST_MASK | RESULT_MASK;
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PAGE_SIZE = 64 * 1024;
+
+    // option flags
+    static final int OPTION_STORED_DATA = 0x1;
 
     private static int counter = 1;
     private final Socket socket;
-    private final Map map;
+    private final MapRegistry registry;
+    // the store selected, changed only while no lookups are running
+    private volatile Map map;
+    private final Metrics metrics;
+    // runs tagged lookups, null to run everything in order
+    private final ExecutorService lookups;
+    private final BufferPool pool;
+    private final AdmissionControl.Quota quota;
+    private Output output;
+
+    private volatile boolean closeRequested;
+    // whether data is sent as stored rather than decompressed
+    private volatile boolean storedData;
+    // created by the first subscribe
+    private volatile ChangeFeed.Subscriber subscriber;
+    // follows what the client reads for the map selected, null if it does not read ahead
+    private volatile ReadAhead readAhead;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // guarded by this, the number of tagged lookups still running
+    private int inFlight;
 
-    private boolean closeRequested;
     public Connection(Socket socket, Map map){
+        this(socket, MapRegistry.of(map), null);
+    }
+
+    public Connection(Socket socket, MapRegistry registry, ExecutorService lookups){
+        this(socket, registry, lookups, new BufferPool(), new AdmissionControl());
+    }
+
+    /**
+     * Serves the stores of the registry, starting with dimension 0 of the
+     * default world. Requests and replies are read and written through
+     * buffers from the pool, and only run once admitted.
+     */
+    public Connection(Socket socket, MapRegistry registry, ExecutorService lookups, BufferPool pool,
+                      AdmissionControl admission){
         this.socket = socket;
-        this.map = map;
+        this.registry = registry;
+        this.lookups = lookups;
+        this.pool = pool;
+        quota = admission.newQuota();
+        map = registry.acquire(MapRegistry.DEFAULT_WORLD, 0);
+        readAhead = map.newReadAhead();
+        metrics = registry.getMetrics();
+        metrics.connected();
+    }
+
+    /**
+     * Creates a connection that is driven by another engine, which feeds
+     * complete requests into {@link #handle} itself.
+     */
+    Connection(MapRegistry registry, ExecutorService lookups, BufferPool pool, AdmissionControl admission,
+               Output output){
+        this(null, registry, lookups, pool, admission);
+        this.output = output;
+    }
+
+    /**
+     * Where replies are sent, each reply is written whole.
+     */
+    interface Output {
+        void write(byte[] reply) throws IOException;
+
+        /**
+         * Writes the remaining bytes of the reply, which the caller may reuse
+         * once this returns.
+         */
+        default void write(ByteBuffer reply) throws IOException{
+            byte[] bytes = new byte[reply.remaining()];
+            reply.get(bytes);
+            write(bytes);
+        }
+
+        void flush() throws IOException;
+
+        /**
+         * Waits until at most the given number of bytes written are still to
+         * be sent. Outputs whose writes block until they are sent never wait.
+         */
+        default void awaitUnsent(int bytes) throws IOException{
+        }
     }
 
     public Connection run(){
         Thread thread = new Thread(() -> {
+            RequestReader reader = new RequestReader(pool);
+            SocketOutput socketOutput = null;
             try {
-                DataInputStream inputStream =
-                        new DataInputStream(socket.getInputStream());
-                DataOutputStream outputStream =
-                        new DataOutputStream(socket.getOutputStream());
-                while (!closeRequested) {
-                    readPacket(inputStream, outputStream);
+                ReadableByteChannel in = socket.getChannel() != null ?
+                        socket.getChannel() : Channels.newChannel(socket.getInputStream());
+                socketOutput = new SocketOutput(socket.getChannel() != null ?
+                        socket.getChannel() : Channels.newChannel(socket.getOutputStream()));
+                output = socketOutput;
+                // handle every request that has arrived, then flush all their replies at once
+                while (!closeRequested && reader.read(in)) {
+                    for (ByteBuffer request : reader.requests()) {
+                        if (closeRequested) {
+                            pool.release(request);
+                        } else {
+                            handle(request);
+                        }
+                    }
+                    flush();
                 }
-            } catch (EOFException e) {
-                // ignore can reasonably happen
-                // this means the connection ended same as closeRequested set to true
+                awaitLookups();
+                flush();
             } catch (IOException e) {
                 logger.error(Throwables.getStackTraceAsString(e));
             } finally {
+                closed();
+                reader.close();
+                if (socketOutput != null) {
+                    socketOutput.close();
+                }
                 try {
                     socket.getOutputStream().write(new byte[]{0});
                 } catch (IOException e) {}
@@ -119,9 +327,223 @@ public class Connection {
         return this;
     }
 
-    private void readPacket(DataInputStream in, DataOutputStream out)
+    /**
+     * Returns the length in bytes of the request at the buffer's position, or
+     * -1 if not enough of it has arrived yet to tell. The buffer is not modified.
+     * A request longer than the maximum is refused before any of it is buffered.
+     */
+    static int requestLength(ByteBuffer buffer, int maxRequest) throws IOException{
+        int length = requestLength(buffer);
+        if(length > maxRequest){
+            throw new IOException("Request of " + length + " bytes is larger than the limit of " + maxRequest);
+        }
+        return length;
+    }
+
+    private static int requestLength(ByteBuffer buffer) throws IOException{
+        int start = buffer.position();
+        int available = buffer.remaining();
+        if(available < 1){
+            return -1;
+        }
+        byte tag = buffer.get(start);
+        if((tag & REQUEST_MASK) != 0){
+            // handle rejects it on its own
+            return 1;
+        }
+        int header = (tag & TAGGED_MASK) != 0 ? 5 : 1;
+        int coords = (tag & CHUNK_MASK) == 0 ? 12 : 8;
+        switch (tag & ID_MASK) {
+            case 1:   //contains
+            case 2:   //get
+                return header + coords;
+            case 8:   //get box
+                return header + 2 * coords;
+            case 12:  //get if changed
+                return header + coords + 8;
+            case 14:  //column bundle
+                return header + 16;
+            case 13:  //subscribe
+                if((tag & RESULT_MASK) != 0){
+                    return header + 4;
+                }else if((tag & CHUNK_MASK) == 0){
+                    return header + 2 * coords;
+                }
+                if(available < header + 4){
+                    return -1;
+                }
+                int columns = buffer.getInt(start + header);
+                if(columns < 0 || columns > (Integer.MAX_VALUE - header - 4) / coords){
+                    throw new IOException("Invalid count " + columns);
+                }
+                return header + 4 + columns * coords;
+            case 9:   //list page
+                return header + 1 + 8 + 4;
+            case 11:  //options
+                return header + 4;
+            case 15:  //select store
+                if(available < header + 6){
+                    return -1;
+                }
+                return header + 6 + (buffer.getShort(start + header + 4) & 0xFFFF);
+            case 6:   //contains many
+            case 7:   //get many
+                if(available < header + 4){
+                    return -1;
+                }
+                int count = buffer.getInt(start + header);
+                if(count < 0 || count > (Integer.MAX_VALUE - header - 4) / coords){
+                    throw new IOException("Invalid count " + count);
+                }
+                return header + 4 + count * coords;
+            case 10:  //save many
+                if(available < header + 4){
+                    return -1;
+                }
+                int length = buffer.getInt(start + header);
+                if(length < 4 || length > Integer.MAX_VALUE - header - 4){
+                    throw new IOException("Invalid packet length " + length);
+                }
+                return header + 4 + length;
+            case 3:   //save
+                if(available < header + coords + 4){
+                    return -1;
+                }
+                int len = buffer.getInt(start + header + coords);
+                if(len < 0 || len > Integer.MAX_VALUE - (header + coords + 4)){
+                    throw new IOException("Invalid payload length " + len);
+                }
+                return header + coords + 4 + len;
+            default:
+                return header;
+        }
+    }
+
+    boolean isCloseRequested(){
+        return closeRequested;
+    }
+
+    /**
+     * Handles one complete request as split out by {@link #requestLength},
+     * releasing its buffer to the pool once done. Replies are written to the
+     * output but not flushed.
+     */
+    void handle(ByteBuffer request) throws IOException{
+        byte tag = request.get(0);
+        boolean tagged = (tag & TAGGED_MASK) != 0 && (tag & REQUEST_MASK) == 0;
+        int correlation = tagged ? request.getInt(1) : 0;
+        int size = request.remaining();
+        request.position(tagged ? 5 : 1);
+        int id = tag & ID_MASK;
+        if((tag & REQUEST_MASK) == 0 && !quota.admit(id, size)){
+            try {
+                busy(tag, tagged, correlation);
+            } finally {
+                pool.release(request);
+            }
+            return;
+        }
+        if(tagged && lookups != null && isLookup(tag)){
+            synchronized (this){
+                inFlight++;
+            }
+            lookups.execute(PriorityExecutor.task(() -> {
+                try {
+                    execute(tag, request, true, correlation, size);
+                } catch (IOException | RuntimeException e) {
+                    logger.error(Throwables.getStackTraceAsString(e));
+                } finally {
+                    pool.release(request);
+                    quota.done(id);
+                    boolean last;
+                    synchronized (this){
+                        last = --inFlight == 0;
+                        notifyAll();
+                    }
+                    if(last){
+                        try {
+                            output.flush();
+                        } catch (IOException e) {
+                            logger.error(Throwables.getStackTraceAsString(e));
+                        }
+                    }
+                }
+            }, AdmissionControl.isInteractive(id)));
+        }else{
+            try {
+                awaitLookups();
+                execute(tag, request, tagged, correlation, size);
+            } finally {
+                pool.release(request);
+                if((tag & REQUEST_MASK) == 0){
+                    quota.done(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replies that the request was not admitted.
+     */
+    private void busy(byte tag, boolean tagged, int correlation) throws IOException{
+        metrics.busy();
+        ByteBuffer reply = ByteBuffer.allocate(tagged ? 6 : 2);
+        reply.put((byte) (BUSY | (tagged ? TAGGED_MASK : 0)));
+        if(tagged){
+            reply.putInt(correlation);
+        }
+        reply.put(tag);
+        reply.flip();
+        output.write(reply);
+    }
+
+    /**
+     * Flushes the replies written so far.
+     */
+    void flush() throws IOException{
+        output.flush();
+    }
+
+    private static boolean isLookup(byte tag){
+        int id = tag & ID_MASK;
+        return id == 1 || id == 2 || id == 6 || id == 7 || id == 8 || id == 9 || id == 12 || id == 14;
+    }
+
+    private synchronized void awaitLookups() throws IOException{
+        try {
+            while(inFlight > 0){
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void execute(byte tag, ByteBuffer in, boolean tagged, int correlation, int size)
+            throws IOException{
+        long start = System.nanoTime();
+        ReplyBuffer reply = new ReplyBuffer(pool);
+        try {
+            try {
+                readPacket(tag, in, reply);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Request " + tag + " is shorter than what it holds");
+            }
+            int length = reply.size();
+            metrics.request(tag & ID_MASK, System.nanoTime() - start, size,
+                    length + (tagged && length > 0 ? 4 : 0));
+            if(length == 0){
+                return;
+            }
+            // the packet id is moved in front of the correlation id in place
+            output.write(reply.finish(tagged, TAGGED_MASK, correlation));
+        } finally {
+            reply.release();
+        }
+    }
+
+    private void readPacket(byte tag, ByteBuffer in, ReplyBuffer out)
             throws IOException{
-        byte tag = in.readByte();
         if((tag & REQUEST_MASK) == 0) {
             boolean chunk = (tag & CHUNK_MASK) == 0;
             // packet id
@@ -144,7 +566,37 @@ public class Connection {
                     listPacket(chunk, in, out);
                     break;
                 case 5:
-                    commitPacket();
+                    commitPacket((tag & RESULT_MASK) != 0, out);
+                    break;
+                case 6:   //contains many
+                    containsManyPacket(chunk, in, out);
+                    break;
+                case 7:   //get many
+                    getManyPacket(chunk, in, out);
+                    break;
+                case 8:   //get box
+                    getBoxPacket(chunk, in, out);
+                    break;
+                case 9:   //list page
+                    listPagePacket(chunk, in, out);
+                    break;
+                case 10:  //save many
+                    saveManyPacket(chunk, (tag & RESULT_MASK) != 0, in, out);
+                    break;
+                case 11:  //options
+                    optionsPacket(in, out);
+                    break;
+                case 12:  //get if changed
+                    getIfChangedPacket(chunk, in, out);
+                    break;
+                case 13:  //subscribe
+                    subscribePacket(chunk, (tag & RESULT_MASK) != 0, in, out);
+                    break;
+                case 14:  //column bundle
+                    columnBundlePacket(in, out);
+                    break;
+                case 15:  //select store
+                    selectPacket(in, out);
                     break;
             }
         }else{
@@ -153,66 +605,121 @@ public class Connection {
         }
     }
 
-    private void containsPacket(boolean chunk, DataInputStream in, DataOutputStream out)
+    private void containsPacket(boolean chunk, ByteBuffer in, ReplyBuffer out)
             throws IOException{
-        int x = in.readInt();
+        int x = in.getInt();
         // the y or z coord based on chunk or column
-        int yz = in.readInt();
+        int yz = in.getInt();
         boolean result;
         if(chunk){
-            int z = in.readInt();
-            logger.info("Received packet contains("+x+", "+yz+", "+z+")");
+            int z = in.getInt();
+            logger.debug("Received packet contains({}, {}, {})", x, yz, z);
             result = map.containsChunk(x, yz, z);
         }else{
-            logger.info("Received packet contains("+x+", "+yz+")");
+            logger.debug("Received packet contains({}, {})", x, yz);
             result = map.containsColumn(x, yz);
         }
         out.writeByte(0x41 | (!chunk ? CHUNK_MASK : 0) | (result ? RESULT_MASK : 0));
     }
 
-    private void getPacket(boolean chunk, DataInputStream in, DataOutputStream out)
+    private void getPacket(boolean chunk, ByteBuffer in, ReplyBuffer out)
             throws IOException{
-        int x = in.readInt();
+        int x = in.getInt();
         // the y or z coord based on chunk or column
-        int yz = in.readInt();
-        byte[] data=null;
+        int yz = in.getInt();
+        int z = chunk ? in.getInt() : 0;
         if(chunk){
-            int z = in.readInt();
-            logger.info("Received packet get("+x+", "+yz+", "+z+")");
-            if(map.containsChunk(x, yz, z)){
-                data = map.getChunk(x, yz, z);
+            logger.debug("Received packet get({}, {}, {})", x, yz, z);
+        }else{
+            logger.debug("Received packet get({}, {})", x, yz);
+        }
+        int length;
+        if(storedData || map.getCompression().getCodec() == Compression.Codec.NONE){
+            // copied from the store straight into the reply, after its id and length
+            int header = out.size();
+            out.writeByte(0);
+            IntFunction<ByteBuffer> into = len -> {
+                out.writeInt(len);
+                return out.room(len);
+            };
+            length = chunk ? map.readChunk(x, yz, z, into) : map.readColumn(x, yz, into);
+            out.setByte(header, 0x42 | (!chunk ? CHUNK_MASK : 0) | (length >= 0 ? RESULT_MASK : 0));
+        }else{
+            byte[] data = chunk ? map.getChunk(x, yz, z) : map.getColumn(x, yz);
+            length = data == null ? -1 : data.length;
+            out.writeByte(0x42 | (!chunk ? CHUNK_MASK : 0) | (data != null ? RESULT_MASK : 0));
+            if(data != null){
+                out.writeInt(data.length);
+                out.write(data);
             }
-        }else if(map.containsColumn(x, yz)){
-            logger.info("Received packet get("+x+", "+yz+")");
-            data = map.getColumn(x, yz);
+        }
+        if(length >= 0){
+            metrics.payload(length);
+        }
+        logger.debug("Sending {} bytes", Math.max(length, 0));
+        readAhead(chunk, x, yz, z);
+    }
+
+    /**
+     * Tells the read ahead about a chunk, or for a column x and z, the client read.
+     */
+    private void readAhead(boolean chunk, int x, int yz, int z){
+        ReadAhead tracker = readAhead;
+        if(tracker == null){
+            return;
+        }
+        if(chunk){
+            tracker.readChunk(x, yz, z);
         }else{
-            logger.info("Received packet get("+x+", "+yz+")");
+            tracker.readColumn(x, yz);
         }
-        out.writeByte(0x42 | (!chunk ? CHUNK_MASK : 0) | (data!=null ? RESULT_MASK : 0));
-        if(data != null) {
-            // write out array
+    }
+
+    private void getIfChangedPacket(boolean chunk, ByteBuffer in, ReplyBuffer out)
+            throws IOException{
+        int x = in.getInt();
+        // the y or z coord based on chunk or column
+        int yz = in.getInt();
+        int z = chunk ? in.getInt() : 0;
+        long known = in.getLong();
+        readAhead(chunk, x, yz, z);
+        // the version is kept, so an unchanged one is not read again
+        long version = chunk ? map.getChunkVersion(x, yz, z) : map.getColumnVersion(x, yz);
+        if(version == known){
+            out.writeByte(0x4C | (!chunk ? CHUNK_MASK : 0));
+            return;
+        }
+        byte[] stored = chunk ? map.getChunk(x, yz, z, true) : map.getColumn(x, yz, true);
+        out.writeByte(0x4C | (!chunk ? CHUNK_MASK : 0) | RESULT_MASK);
+        // of what is sent, in case it was saved again since
+        out.writeLong(Map.version(stored));
+        if(stored == null){
+            out.writeInt(-1);
+        }else{
+            byte[] data = storedData ? stored : map.getCompression().decode(stored);
             out.writeInt(data.length);
             out.write(data);
         }
-        logger.info("Sending " + (data == null ? 0:data.length) + " bytes");
     }
 
-    private void savePacket(boolean chunk, DataInputStream in, DataOutputStream out)
+    private void savePacket(boolean chunk, ByteBuffer in, ReplyBuffer out)
             throws IOException{
-        int x = in.readInt();
+        checkWritable();
+        int x = in.getInt();
         // the y or z coord based on chunk or column
-        int yz = in.readInt();
+        int yz = in.getInt();
         int z = 0;
         if(chunk){
-            z = in.readInt();
-            logger.info("save chunk ("+x+", "+yz+", "+z+")");
+            z = in.getInt();
+            logger.debug("save chunk ({}, {}, {})", x, yz, z);
         }else{
-            logger.info("save column ("+x+", "+yz+")");
+            logger.debug("save column ({}, {})", x, yz);
         }
         // read in array
-        int len = in.readInt();
+        int len = in.getInt();
+        metrics.payload(len);
         byte[] data = new byte[len];
-        in.readFully(data);
+        in.get(data);
         // save chunk/column
         if(chunk){
             map.saveChunk(x, yz, z, data);
@@ -221,12 +728,57 @@ public class Connection {
         }
     }
 
-    private void listPacket(boolean chunk, DataInputStream in, DataOutputStream out)
+    private void saveManyPacket(boolean chunk, boolean commit, ByteBuffer in, ReplyBuffer out)
+            throws IOException{
+        checkWritable();
+        int length = in.getInt();
+        int count = in.getInt();
+        int size = chunk ? 3 : 2;
+        // every entry takes at least its coords and a length
+        if(count < 0 || count > (length - 4) / (4 * size + 4)){
+            throw new IOException("Invalid count " + count);
+        }
+        int[] coords = new int[count * size];
+        byte[][] data = new byte[count][];
+        for(int i=0;i<count;i++){
+            for(int j=0;j<size;j++){
+                coords[i * size + j] = in.getInt();
+            }
+            int len = in.getInt();
+            if(len < 0 || len > in.remaining()){
+                throw new IOException("Invalid payload length " + len);
+            }
+            metrics.payload(len);
+            data[i] = new byte[len];
+            in.get(data[i]);
+        }
+        if(chunk){
+            logger.debug("save {} chunks", count);
+            map.saveChunks(coords, data);
+        }else{
+            logger.debug("save {} columns", count);
+            map.saveColumns(coords, data);
+        }
+        if(commit){
+            map.save();
+        }
+        out.writeByte(0x4A | (!chunk ? CHUNK_MASK : 0) | (commit ? RESULT_MASK : 0));
+        out.writeInt(count);
+    }
+
+    private void checkWritable() throws IOException{
+        if(map.isReadOnly()){
+            // a replica only takes the changes streamed from its primary
+            throw new IOException("Refused a save to a read only map");
+        }
+    }
+
+    private void listPacket(boolean chunk, ByteBuffer in, ReplyBuffer out)
             throws IOException{
         int len;
         int[] result;
         if(chunk){
-            logger.info("Received packet list chunks");
+            logger.debug("Received packet list chunks");
             List<Map.Pos> chunks = map.getChunks();
             len = chunks.size();
             result = new int[3*len];
@@ -236,7 +788,7 @@ public class Connection {
                 result[3*i+2] = chunks.get(i).z;
             }
         }else{
-            logger.info("Received packet list columns");
+            logger.debug("Received packet list columns");
             List<Map.Pos> columns = map.getColumns();
             len = columns.size();
             result = new int[2*len];
@@ -252,11 +804,315 @@ public class Connection {
         }
     }
 
-    private void commitPacket(){
+    private void containsManyPacket(boolean chunk, ByteBuffer in, ReplyBuffer out)
+            throws IOException{
+        int[] coords = readCoords(chunk, in);
+        boolean[] result;
+        if(chunk){
+            logger.debug("Received packet contains {} chunks", coords.length/3);
+            result = map.containsChunks(coords);
+        }else{
+            logger.debug("Received packet contains {} columns", coords.length/2);
+            result = map.containsColumns(coords);
+        }
+        out.writeByte(0x46 | (!chunk ? CHUNK_MASK : 0));
+        out.writeInt(result.length);
+        for(boolean b:result){
+            out.writeBoolean(b);
+        }
+    }
+
+    private void getManyPacket(boolean chunk, ByteBuffer in, ReplyBuffer out)
+            throws IOException{
+        int[] coords = readCoords(chunk, in);
+        byte[][] result;
+        if(chunk){
+            logger.debug("Received packet get {} chunks", coords.length/3);
+            result = map.lookupChunks(coords, storedData);
+        }else{
+            logger.debug("Received packet get {} columns", coords.length/2);
+            result = map.lookupColumns(coords, storedData);
+        }
+        out.writeByte(0x47 | (!chunk ? CHUNK_MASK : 0));
+        out.writeInt(result.length);
+        for(byte[] data:result){
+            if(data == null){
+                out.writeInt(-1);
+            }else{
+                metrics.payload(data.length);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+        int size = chunk ? 3 : 2;
+        for(int i=0;i<coords.length;i+=size){
+            readAhead(chunk, coords[i], coords[i+1], chunk ? coords[i+2] : 0);
+        }
+    }
+
+    private void getBoxPacket(boolean chunk, ByteBuffer in, ReplyBuffer out)
+            throws IOException{
+        List<java.util.Map.Entry<Map.Pos, byte[]>> result;
+        if(chunk){
+            int x0 = in.getInt(), y0 = in.getInt(), z0 = in.getInt();
+            int x1 = in.getInt(), y1 = in.getInt(), z1 = in.getInt();
+            logger.debug("Received packet get box({}, {}, {}) to ({}, {}, {})", x0, y0, z0, x1, y1, z1);
+            result = map.getChunks(x0, y0, z0, x1, y1, z1, storedData);
+        }else{
+            int x0 = in.getInt(), z0 = in.getInt();
+            int x1 = in.getInt(), z1 = in.getInt();
+            logger.debug("Received packet get box({}, {}) to ({}, {})", x0, z0, x1, z1);
+            result = map.getColumns(x0, z0, x1, z1, storedData);
+        }
+        out.writeByte(0x48 | (!chunk ? CHUNK_MASK : 0));
+        out.writeInt(result.size());
+        for(java.util.Map.Entry<Map.Pos, byte[]> entry:result){
+            Map.Pos pos = entry.getKey();
+            out.writeInt(pos.x);
+            if(chunk){
+                out.writeInt(pos.y);
+            }
+            out.writeInt(pos.z);
+            out.writeInt(entry.getValue().length);
+            out.write(entry.getValue());
+        }
+    }
+
+    private void columnBundlePacket(ByteBuffer in, ReplyBuffer out) throws IOException{
+        int x = in.getInt(), z = in.getInt();
+        int y0 = in.getInt(), y1 = in.getInt();
+        logger.debug("Received packet column bundle({}, {}) from y {} to {}", x, z, y0, y1);
+        byte[] column = map.getColumn(x, z, storedData);
+        List<java.util.Map.Entry<Map.Pos, byte[]>> chunks = map.getColumnChunks(x, z, y0, y1, storedData);
+        out.writeByte(0x4E | (column != null ? RESULT_MASK : 0));
+        if(column != null){
+            metrics.payload(column.length);
+            out.writeInt(column.length);
+            out.write(column);
+        }
+        out.writeInt(chunks.size());
+        for(java.util.Map.Entry<Map.Pos, byte[]> entry:chunks){
+            metrics.payload(entry.getValue().length);
+            out.writeInt(entry.getKey().y);
+            out.writeInt(entry.getValue().length);
+            out.write(entry.getValue());
+        }
+        ReadAhead tracker = readAhead;
+        if(tracker != null){
+            tracker.readBundle(x, z, y0, y1);
+        }
+    }
+
+    private void optionsPacket(ByteBuffer in, ReplyBuffer out) throws IOException{
+        int granted = in.getInt() & OPTION_STORED_DATA;
+        logger.debug("Received packet options {}", granted);
+        storedData = (granted & OPTION_STORED_DATA) != 0;
+        Compression compression = map.getCompression();
+        byte[] dictionary = compression.getDictionary();
+        out.writeByte(0x4B);
+        out.writeInt(granted);
+        out.writeByte(compression.getCodec().ordinal());
+        out.writeInt(dictionary == null ? 0 : dictionary.length);
+        if(dictionary != null){
+            out.write(dictionary);
+        }
+    }
+
+    private void subscribePacket(boolean chunk, boolean unsubscribe, ByteBuffer in, ReplyBuffer out)
+            throws IOException{
+        if(subscriber == null){
+            subscriber = map.getChanges().subscriber(output);
+        }
+        int id;
+        if(unsubscribe){
+            id = in.getInt();
+            logger.debug("Received packet unsubscribe {}", id);
+            subscriber.unsubscribe(id);
+        }else if(chunk){
+            int x0 = in.getInt(), y0 = in.getInt(), z0 = in.getInt();
+            int x1 = in.getInt(), y1 = in.getInt(), z1 = in.getInt();
+            logger.debug("Received packet subscribe to ({}, {}, {}) to ({}, {}, {})", x0, y0, z0, x1, y1, z1);
+            id = subscriber.subscribe(ChunkStore.Table.CHUNKS, pos -> pos.x >= x0 && pos.x <= x1
+                    && pos.y >= y0 && pos.y <= y1 && pos.z >= z0 && pos.z <= z1);
+        }else{
+            int[] coords = readCoords(false, in);
+            logger.debug("Received packet subscribe to {} columns", coords.length/2);
+            Set<Long> columns = new HashSet<>();
+            for(int i=0;i<coords.length;i+=2){
+                columns.add(((long) coords[i] << 32) | (coords[i+1] & 0xFFFFFFFFL));
+            }
+            id = subscriber.subscribe(ChunkStore.Table.COLUMNS,
+                    pos -> columns.contains(((long) pos.x << 32) | (pos.z & 0xFFFFFFFFL)));
+        }
+        out.writeByte(0x4D | (!chunk ? CHUNK_MASK : 0));
+        out.writeInt(id);
+    }
+
+    /**
+     * Drops anything the connection left behind once it is closed.
+     */
+    boolean isClosed(){
+        return closed.get();
+    }
+
+    /**
+     * What a connection over the limit is sent before it is closed.
+     */
+    static byte[] refusal(){
+        return new byte[]{(byte) BUSY, 0};
+    }
+
+    void closed(){
+        if(!closed.compareAndSet(false, true)){
+            return;
+        }
+        metrics.disconnected();
+        if(subscriber != null){
+            subscriber.close();
+        }
+        registry.release(map);
+    }
+
+    /**
+     * Reads a count followed by that many 2 or 3 int coordinates.
+     */
+    private static int[] readCoords(boolean chunk, ByteBuffer in) throws IOException{
+        int count = in.getInt();
+        int[] coords = new int[count * (chunk ? 3 : 2)];
+        for(int i=0;i<coords.length;i++){
+            coords[i] = in.getInt();
+        }
+        return coords;
+    }
+
+    private void listPagePacket(boolean chunk, ByteBuffer in, ReplyBuffer out)
+            throws IOException{
+        boolean resume = in.get() != 0;
+        long cursor = in.getLong();
+        int limit = Math.max(1, Math.min(in.getInt(), MAX_PAGE_SIZE));
+        logger.debug("Received packet list {} page of {}", chunk ? "chunks" : "columns", limit);
+        Iterator<Map.Pos> positions = chunk ?
+                map.iterateChunks(resume ? cursor : null) : map.iterateColumns(resume ? cursor : null);
+        // positions go straight from the iterator to the output, only a page at a time
+        int header = out.size();
+        out.writeByte(0);
+        out.writeInt(0);
+        int count = 0;
+        Map.Pos last = null;
+        while(count < limit && positions.hasNext()){
+            last = positions.next();
+            out.writeInt(last.x);
+            if(chunk){
+                out.writeInt(last.y);
+            }
+            out.writeInt(last.z);
+            count++;
+        }
+        boolean more = positions.hasNext();
+        out.setByte(header, 0x49 | (!chunk ? CHUNK_MASK : 0) | (more ? RESULT_MASK : 0));
+        out.setInt(header + 1, count);
+        if(last != null){
+            out.writeLong(last.key());
+        }
+    }
+
+    private static String readUTF(ByteBuffer in) throws IOException{
+        byte[] utf = new byte[2 + (in.getShort(in.position()) & 0xFFFF)];
+        in.get(utf);
+        return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+    }
+
+    private void selectPacket(ByteBuffer in, ReplyBuffer out) throws IOException{
+        int dimension = in.getInt();
+        String world = readUTF(in);
+        logger.debug("Received packet select store {} {}", world, dimension);
+        Map selected;
+        try {
+            selected = registry.acquire(world, dimension);
+        } catch (IllegalArgumentException e) {
+            logger.info(e.getMessage());
+            out.writeByte(0x4F);
+            return;
+        }
+        if(subscriber != null){
+            subscriber.close();
+            subscriber = null;
+        }
+        storedData = false;
+        registry.release(map);
+        map = selected;
+        readAhead = selected.newReadAhead();
+        out.writeByte(0x4F | RESULT_MASK);
+    }
+
+    private void commitPacket(boolean acknowledge, ReplyBuffer out) throws IOException{
         map.save();
+        if(acknowledge){
+            out.writeByte(0x45);
+        }
     }
 
     public void close(){
         closeRequested = true;
     }
+
+    /**
+     * Gathers the replies of the blocking engine in a pooled buffer, writing
+     * them to the socket when it fills or is flushed.
+     */
+    private final class SocketOutput implements Output {
+        private final WritableByteChannel channel;
+        // guarded by this, null once closed
+        private ByteBuffer buffer = pool.acquire(OUTPUT_BUFFER_SIZE);
+
+        private SocketOutput(WritableByteChannel channel){
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(byte[] reply) throws IOException{
+            write(ByteBuffer.wrap(reply));
+        }
+
+        @Override
+        public synchronized void write(ByteBuffer reply) throws IOException{
+            if(buffer == null){
+                throw new IOException("The connection is closed");
+            }
+            if(reply.remaining() > buffer.remaining()){
+                drain();
+                if(reply.remaining() > buffer.remaining()){
+                    // too large to gather, sent as it is
+                    while(reply.hasRemaining()){
+                        channel.write(reply);
+                    }
+                    return;
+                }
+            }
+            buffer.put(reply);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException{
+            if(buffer != null){
+                drain();
+            }
+        }
+
+        private void drain() throws IOException{
+            buffer.flip();
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Gives the buffer back, anything still being written after this fails.
+         */
+        private synchronized void close(){
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
 }
@@ -0,0 +1,210 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.util.concurrent.Striped;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A Bloom filter over the keys of a table, kept in direct buffers, which
+ * answers most lookups of keys that are not present without going to the
+ * store. It never forgets a key, which is fine as a map never deletes one.
+ * Once it holds as many keys as it was sized for, another filter twice as
+ * large is added for the keys after, so false positives stay rare as the
+ * table grows.
+ *
+ * Adding is thread safe, and a key is seen by every lookup that starts
+ * after it was added.
+ */
+final class ExistenceFilter {
+    // about a 1% false positive rate
+    static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+    private static final long MIN_KEYS = 1 << 16;
+    // 2^30 bytes of bits, so a byte offset always fits in an int
+    private static final long MAX_BITS = 1L << 33;
+    // the keys held at once in each block while building
+    private static final int KEY_BLOCK = 1 << 16;
+
+    // newest last, replaced whole when one is added
+    private volatile Layer[] layers;
+    // written after every add so that lookups see the bits it set
+    private final AtomicLong added = new AtomicLong();
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    ExistenceFilter(long expected){
+        layers = new Layer[]{new Layer(Math.max(expected, MIN_KEYS))};
+    }
+
+    /**
+     * Builds a filter holding every key, sized to them. The keys are read
+     * once, and an empty table is not read at all.
+     */
+    static ExistenceFilter of(ChunkStore store, ChunkStore.Table table){
+        if(store.isEmpty(table)){
+            return new ExistenceFilter(0);
+        }
+        // held until they are counted, in blocks so growing copies nothing
+        List<long[]> blocks = new ArrayList<>();
+        long count = 0;
+        Iterator<Long> keys = store.keys(table, null);
+        while(keys.hasNext()){
+            if(count % KEY_BLOCK == 0){
+                blocks.add(new long[KEY_BLOCK]);
+            }
+            blocks.get(blocks.size() - 1)[(int) (count % KEY_BLOCK)] = keys.next();
+            count++;
+        }
+        // room to grow before the first new layer
+        ExistenceFilter filter = new ExistenceFilter(count * 2);
+        for(long i=0;i<count;i++){
+            filter.add(blocks.get((int) (i / KEY_BLOCK))[(int) (i % KEY_BLOCK)]);
+        }
+        return filter;
+    }
+
+    /**
+     * Returns false if the key was never added, and true if it was or, now
+     * and then, when it was not.
+     */
+    boolean mightContain(long key){
+        if(added.get() == 0){
+            return false;
+        }
+        long h1 = mix(key);
+        long h2 = mix(key ^ 0x9e3779b97f4a7c15L) | 1;
+        Layer[] current = layers;
+        for(int i=current.length-1;i>=0;i--){
+            if(current[i].mightContain(h1, h2)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void add(long key){
+        long h1 = mix(key);
+        long h2 = mix(key ^ 0x9e3779b97f4a7c15L) | 1;
+        Layer[] current = layers;
+        boolean present = false;
+        for(int i=0;i<current.length-1 && !present;i++){
+            present = current[i].mightContain(h1, h2);
+        }
+        Layer newest = current[current.length - 1];
+        if(!present && newest.add(h1, h2, locks) && newest.keys.incrementAndGet() == newest.capacity){
+            grow(newest);
+        }
+        added.incrementAndGet();
+    }
+
+    private synchronized void grow(Layer full){
+        Layer[] current = layers;
+        if(current[current.length - 1] != full){
+            return;
+        }
+        Layer[] grown = new Layer[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = new Layer(full.capacity * 2);
+        layers = grown;
+    }
+
+    /**
+     * The bytes of memory the bits take.
+     */
+    long getBytes(){
+        long bytes = 0;
+        for(Layer layer:layers){
+            bytes += layer.bits.capacity();
+        }
+        return bytes;
+    }
+
+    private static long mix(long key){
+        // the murmur3 finalizer, as in OffHeapIndex
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static final class Layer {
+        private final ByteBuffer bits;
+        private final long mask;
+        private final long capacity;
+        // the keys that set at least one new bit
+        private final AtomicLong keys = new AtomicLong();
+
+        private Layer(long capacity){
+            long size = 64;
+            while(size < capacity * BITS_PER_KEY && size < MAX_BITS){
+                size <<= 1;
+            }
+            bits = ByteBuffer.allocateDirect((int) (size / 8));
+            mask = size - 1;
+            this.capacity = Math.min(capacity, size / BITS_PER_KEY);
+        }
+
+        private boolean mightContain(long h1, long h2){
+            for(int i=0;i<HASHES;i++){
+                long bit = (h1 + i * h2) & mask;
+                if((bits.getLong((int) (bit >>> 6) << 3) & (1L << bit)) == 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sets the bits of a key, returning whether any was not set before.
+         */
+        private boolean add(long h1, long h2, Striped<Lock> locks){
+            boolean changed = false;
+            for(int i=0;i<HASHES;i++){
+                long bit = (h1 + i * h2) & mask;
+                int offset = (int) (bit >>> 6) << 3;
+                if((bits.getLong(offset) & (1L << bit)) != 0){
+                    continue;
+                }
+                Lock lock = locks.getAt(offset >>> 3 & (locks.size() - 1));
+                lock.lock();
+                try {
+                    bits.putLong(offset, bits.getLong(offset) | (1L << bit));
+                } finally {
+                    lock.unlock();
+                }
+                changed = true;
+            }
+            return changed;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.base.Throwables;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a store's commit on a background thread, sharing each commit between all
+ * the requests that arrive within a short window of the first one, or until
+ * the batch is full. The requests waiting while a commit runs go into the
+ * next one.
+ */
+public class GroupCommitter {
+    private static final Logger logger = LogManager.getLogger();
+
+    private final Runnable commit;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean closeRequested;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public GroupCommitter(Runnable commit, long windowMicros, int maxBatch){
+        this.commit = commit;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = Math.max(1, maxBatch);
+        thread = new Thread(this::run, "Group Commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Asks for everything saved so far to be committed. The future completes
+     * once it is durable.
+     */
+    public CompletableFuture<Void> commit(){
+        Request request = new Request();
+        if(closeRequested){
+            request.future.completeExceptionally(new IllegalStateException("Committer is closed"));
+        }else{
+            requests.add(request);
+        }
+        return request.future;
+    }
+
+    private void run(){
+        List<Request> batch = new ArrayList<>();
+        while(!closeRequested || !requests.isEmpty()){
+            try {
+                Request first = requests.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null){
+                    continue;
+                }
+                batch.add(first);
+                long deadline = first.start + windowNanos;
+                requests.drainTo(batch, maxBatch - batch.size());
+                while(batch.size() < maxBatch){
+                    long wait = deadline - System.nanoTime();
+                    if(wait <= 0){
+                        break;
+                    }
+                    Request next = requests.poll(wait, TimeUnit.NANOSECONDS);
+                    if(next == null){
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                logger.error(Throwables.getStackTraceAsString(e));
+            }
+            if(!batch.isEmpty()){
+                commitBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commitBatch(List<Request> batch){
+        try {
+            commit.run();
+        } catch (RuntimeException e) {
+            logger.error(Throwables.getStackTraceAsString(e));
+            for(Request request:batch){
+                request.future.completeExceptionally(e);
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        for(Request request:batch){
+            long latency = now - request.start;
+            latencyNanos.addAndGet(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            request.future.complete(null);
+        }
+        commits.addAndGet(batch.size());
+        batches.incrementAndGet();
+        largestBatch.accumulateAndGet(batch.size(), Math::max);
+        if(logger.isDebugEnabled()){
+            logger.debug("Committed a batch of " + batch.size() + " in "
+                    + TimeUnit.NANOSECONDS.toMicros(now - batch.get(0).start) + "us");
+        }
+    }
+
+    /**
+     * The number of commit requests completed.
+     */
+    public long getCommits(){
+        return commits.get();
+    }
+
+    /**
+     * The number of store commits those requests were gathered into.
+     */
+    public long getBatches(){
+        return batches.get();
+    }
+
+    public long getLargestBatch(){
+        return largestBatch.get();
+    }
+
+    /**
+     * The mean time from a commit request to it being durable, in microseconds.
+     */
+    public long getMeanLatencyMicros(){
+        long count = commits.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(latencyNanos.get() / count);
+    }
+
+    public long getMaxLatencyMicros(){
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+    }
+
+    /**
+     * Commits any requests still waiting and stops the thread.
+     */
+    public void close(){
+        closeRequested = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            logger.error(Throwables.getStackTraceAsString(e));
+        }
+        // requests that raced with closing
+        for(Request request:requests){
+            request.future.completeExceptionally(new IllegalStateException("Committer is closed"));
+        }
+        if(batches.get() > 0){
+            logger.info(commits.get() + " commits in " + batches.get() + " batches, largest " + largestBatch.get()
+                    + ", mean latency " + getMeanLatencyMicros() + "us, max " + getMaxLatencyMicros() + "us");
+        }
+    }
+
+    private static final class Request {
+        private final long start = System.nanoTime();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+    }
+}
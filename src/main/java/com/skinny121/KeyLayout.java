@@ -0,0 +1,298 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How chunk coordinates are packed into the long keys of the store. Columns
+ * use the same packing with a y of 0.
+ *
+ * Keys are compared as signed longs by the store, so every layout is also
+ * described by the unsigned value {@code address ^ Long.MIN_VALUE}, which
+ * orders the same way. Each layout maps a coordinate onto an unsigned axis
+ * value such that fixing the high bits of that unsigned value fixes the high
+ * bits of every axis value, which lets a box be covered by key ranges.
+ */
+public enum KeyLayout {
+    /**
+     * The original layout, y then x then z. Neighbouring cubes with different
+     * y or x end up far apart.
+     */
+    LEGACY {
+        @Override
+        public long address(int x, int y, int z){
+            x = x & ((1<<22)-1);
+            z = z & ((1<<22)-1);
+            y = y & ((1<<20)-1);
+            return ((long)y << 44) | ((long)x << 22) | ((long)z);
+        }
+
+        @Override
+        public int x(long address){
+            return unpackSigned(address, 22, 22);
+        }
+
+        @Override
+        public int y(long address){
+            return unpackSigned(address, 20, 44);
+        }
+
+        @Override
+        public int z(long address){
+            return unpackSigned(address, 22, 0);
+        }
+
+        @Override
+        int axis(int coord, int axis){
+            // x and z are unsigned in the key, only the sign of y sorts correctly
+            return axis == Y ? (coord ^ (1<<19)) & ((1<<20)-1) : coord & ((1<<22)-1);
+        }
+
+        @Override
+        void axes(long address, int[] axes){
+            axes[X] = (int) (address >>> 22) & ((1<<22)-1);
+            axes[Y] = ((int) (address >>> 44) & ((1<<20)-1)) ^ (1<<19);
+            axes[Z] = (int) address & ((1<<22)-1);
+        }
+    },
+    /**
+     * Interleaves the bits of x, y and z (Z-order) so that cubes near each
+     * other in the world are mostly near each other in the store.
+     */
+    MORTON {
+        @Override
+        public long address(int x, int y, int z){
+            long ux = axis(x, X);
+            long uy = axis(y, Y);
+            long uz = axis(z, Z);
+            long morton = spread(uz & ((1<<20)-1))
+                    | spread(ux & ((1<<20)-1)) << 1
+                    | spread(uy) << 2
+                    | (uz >> 20 & 1) << 60
+                    | (ux >> 20 & 1) << 61
+                    | (uz >> 21 & 1) << 62
+                    | (ux >> 21 & 1) << 63;
+            return morton ^ Long.MIN_VALUE;
+        }
+
+        @Override
+        public int x(long address){
+            long morton = address ^ Long.MIN_VALUE;
+            int ux = compact(morton >>> 1) | (int) (morton >>> 61 & 1) << 20 | (int) (morton >>> 63 & 1) << 21;
+            return signExtend(ux ^ (1<<21), 22);
+        }
+
+        @Override
+        public int y(long address){
+            long morton = address ^ Long.MIN_VALUE;
+            return signExtend(compact(morton >>> 2) ^ (1<<19), 20);
+        }
+
+        @Override
+        public int z(long address){
+            long morton = address ^ Long.MIN_VALUE;
+            int uz = compact(morton) | (int) (morton >>> 60 & 1) << 20 | (int) (morton >>> 62 & 1) << 21;
+            return signExtend(uz ^ (1<<21), 22);
+        }
+
+        @Override
+        int axis(int coord, int axis){
+            // flipping the sign bit makes the two's complement value sort unsigned
+            return axis == Y ? (coord ^ (1<<19)) & ((1<<20)-1) : (coord ^ (1<<21)) & ((1<<22)-1);
+        }
+
+        @Override
+        void axes(long address, int[] axes){
+            axes[X] = axis(x(address), X);
+            axes[Y] = axis(y(address), Y);
+            axes[Z] = axis(z(address), Z);
+        }
+
+        /**
+         * Spreads the low 20 bits out to every third bit.
+         */
+        private long spread(long v){
+            v = (v | v << 32) & 0x1f00000000ffffL;
+            v = (v | v << 16) & 0x1f0000ff0000ffL;
+            v = (v | v << 8) & 0x100f00f00f00f00fL;
+            v = (v | v << 4) & 0x10c30c30c30c30c3L;
+            v = (v | v << 2) & 0x1249249249249249L;
+            return v;
+        }
+
+        /**
+         * The inverse of spread, gathering the first 20 of every third bit.
+         */
+        private int compact(long v){
+            v &= 0x1249249249249249L;
+            v = (v ^ (v >>> 2)) & 0x10c30c30c30c30c3L;
+            v = (v ^ (v >>> 4)) & 0x100f00f00f00f00fL;
+            v = (v ^ (v >>> 8)) & 0x1f0000ff0000ffL;
+            v = (v ^ (v >>> 16)) & 0x1f00000000ffffL;
+            v = (v ^ (v >>> 32)) & 0x1fffffL;
+            return (int) v & ((1<<20)-1);
+        }
+    };
+
+    static final int X = 0;
+    static final int Y = 1;
+    static final int Z = 2;
+
+    private static final int MIN_XZ = -(1<<21);
+    private static final int MAX_XZ = (1<<21)-1;
+    private static final int MIN_Y = -(1<<19);
+    private static final int MAX_Y = (1<<19)-1;
+
+    public abstract long address(int x, int y, int z);
+
+    public abstract int x(long address);
+
+    public abstract int y(long address);
+
+    public abstract int z(long address);
+
+    /**
+     * Maps a coordinate onto its unsigned value along an axis of the key.
+     */
+    abstract int axis(int coord, int axis);
+
+    /**
+     * Unpacks the unsigned axis values of an address.
+     */
+    abstract void axes(long address, int[] axes);
+
+    /*
+        This method is from the tall worlds source.
+        https://github.com/TallWorlds/CubicChunks/blob/develop/src/main/cubicchunks/util/Bits.java
+     */
+    static int unpackSigned(long packed, int size, int offset) {
+        // first, offset to the far left and back so we can preserve the two's complement
+        int complementOffset = 64 - offset - size;
+        packed = packed << complementOffset >> complementOffset;
+
+        // then unpack the integer
+        packed = packed >> offset;
+        return (int)packed;
+    }
+
+    private static int signExtend(int value, int bits){
+        return value << (32 - bits) >> (32 - bits);
+    }
+
+    /**
+     * Covers the box with at most about maxRanges ascending, inclusive ranges
+     * of addresses. Every address in the box is in a range, but the ranges may
+     * also hold addresses outside of it once the limit stops them being split.
+     */
+    public List<long[]> ranges(int x0, int y0, int z0, int x1, int y1, int z1, int maxRanges){
+        int[][][] box = {
+                intervals(Math.max(x0, MIN_XZ), Math.min(x1, MAX_XZ), X),
+                intervals(Math.max(y0, MIN_Y), Math.min(y1, MAX_Y), Y),
+                intervals(Math.max(z0, MIN_XZ), Math.min(z1, MAX_XZ), Z)};
+        List<long[]> ranges = new ArrayList<>();
+        if(box[X].length == 0 || box[Y].length == 0 || box[Z].length == 0){
+            return ranges;
+        }
+        // cells are {unsigned prefix, free low bits}, split a level at a time
+        List<long[]> partial = new ArrayList<>();
+        partial.add(new long[]{0, 64});
+        int[] min = new int[3];
+        int[] max = new int[3];
+        while(!partial.isEmpty() && ranges.size() + 2 * partial.size() <= maxRanges){
+            List<long[]> next = new ArrayList<>();
+            for(long[] cell:partial){
+                int level = (int) cell[1] - 1;
+                for(long prefix:new long[]{cell[0], cell[0] | 1L << level}){
+                    long last = prefix | ((1L << level) - 1);
+                    axes(prefix ^ Long.MIN_VALUE, min);
+                    axes(last ^ Long.MIN_VALUE, max);
+                    int overlap = overlap(box, min, max);
+                    if(overlap == INSIDE || (overlap == PARTIAL && level == 0)){
+                        ranges.add(new long[]{prefix, last});
+                    }else if(overlap == PARTIAL){
+                        next.add(new long[]{prefix, level});
+                    }
+                }
+            }
+            partial = next;
+        }
+        for(long[] cell:partial){
+            ranges.add(new long[]{cell[0], cell[1] == 64 ? -1L : cell[0] | ((1L << cell[1]) - 1)});
+        }
+        ranges.sort((a, b) -> Long.compareUnsigned(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>();
+        for(long[] range:ranges){
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if(previous != null && previous[1] + 1 == range[0]){
+                previous[1] = range[1];
+            }else{
+                merged.add(range);
+            }
+        }
+        for(long[] range:merged){
+            range[0] ^= Long.MIN_VALUE;
+            range[1] ^= Long.MIN_VALUE;
+        }
+        return merged;
+    }
+
+    private static final int OUTSIDE = 0;
+    private static final int PARTIAL = 1;
+    private static final int INSIDE = 2;
+
+    private static int overlap(int[][][] box, int[] min, int[] max){
+        int result = INSIDE;
+        for(int axis=0;axis<3;axis++){
+            int axisOverlap = OUTSIDE;
+            for(int[] interval:box[axis]){
+                if(min[axis] >= interval[0] && max[axis] <= interval[1]){
+                    axisOverlap = INSIDE;
+                }else if(min[axis] <= interval[1] && max[axis] >= interval[0]){
+                    axisOverlap = Math.max(axisOverlap, PARTIAL);
+                }
+            }
+            result = Math.min(result, axisOverlap);
+        }
+        return result;
+    }
+
+    /**
+     * The inclusive coordinate range as one or two intervals of axis values,
+     * two when the layout wraps negative values around past the positive ones.
+     */
+    private int[][] intervals(int lo, int hi, int axis){
+        if(lo > hi){
+            return new int[0][];
+        }
+        int a = axis(lo, axis);
+        int b = axis(hi, axis);
+        if(a <= b){
+            return new int[][]{{a, b}};
+        }
+        return new int[][]{{a, axis(-1, axis)}, {axis(0, axis), b}};
+    }
+}
@@ -0,0 +1,95 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Offline tool that copies a store into a new one with a different key
+ * layout or compression. The server must not have either store open while
+ * it runs. The new store takes the same --name=value options as the server,
+ * and --train-dictionary trains a deflate dictionary on the source chunks.
+ */
+public class LayoutMigrator {
+    // how many chunks a dictionary is trained on
+    private static final int DICTIONARY_SAMPLES = 1024;
+
+    public static void main(String[] args){
+        final Logger logger = LogManager.getLogger();
+        int optionStart = args.length > 2 && !args[2].startsWith("--") ? 3 : 2;
+        Properties options = args.length < 2 ? null : TWMapServerMain.parseOptions(args, optionStart);
+        if(options == null){
+            logger.error("Require the source store, the new store, optionally the layout, legacy or morton, "
+                    + "and then options of the form --name=value.");
+            return;
+        }
+        if(Files.exists(Paths.get(args[1]))){
+            logger.error("The new store " + args[1] + " already exists.");
+            return;
+        }
+        if(optionStart == 3){
+            options.setProperty("layout", args[2]);
+        }else if(!options.containsKey("layout")){
+            options.setProperty("layout", "morton");
+        }
+        MapConfig config = MapConfig.fromOptions(options);
+        Map from = new Map(args[0]);
+        try {
+            if(options.containsKey("train-dictionary")){
+                byte[] dictionary = trainDictionary(from);
+                logger.info("Trained a " + dictionary.length + " byte dictionary");
+                config.withCompression(new Compression(Compression.Codec.DEFLATE, dictionary));
+            }
+            Map to = new Map(args[1], config);
+            try {
+                logger.info("Copying " + args[0] + " (" + from.getLayout() + ", " + from.getCompression().getCodec()
+                        + ") to " + args[1] + " (" + to.getLayout() + ", " + to.getCompression().getCodec() + ")");
+                from.copyTo(to);
+            } finally {
+                to.close();
+            }
+        } finally {
+            from.close();
+        }
+    }
+
+    private static byte[] trainDictionary(Map map){
+        List<byte[]> samples = new ArrayList<>();
+        Iterator<Map.Pos> positions = map.iterateChunks(null);
+        while(positions.hasNext() && samples.size() < DICTIONARY_SAMPLES){
+            Map.Pos pos = positions.next();
+            samples.add(map.getChunk(pos.x, pos.y, pos.z));
+        }
+        return Compression.train(samples, Compression.MAX_DICTIONARY_SIZE);
+    }
+}
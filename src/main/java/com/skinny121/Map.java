@@ -24,48 +24,243 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.skinny121;
 
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
-import org.mapdb.Serializer;
-
-import java.io.File;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.skinny121.ChunkStore.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 public class Map {
-    private final DB database;
-    private ConcurrentNavigableMap<Long, byte[]> chunks;
-    private ConcurrentNavigableMap<Long, byte[]> cols;
+    private static final Logger logger = LogManager.getLogger();
+    // how many entries the copy in copyTo puts between commits
+    private static final int COPY_BATCH = 4096;
+    // the most key ranges a box query is split into
+    private static final int MAX_BOX_RANGES = 256;
+    // the most versions remembered for each table
+    private static final int VERSIONS = 1 << 15;
+
+    /**
+     * The tables of chunk and column data, the rest are kept by the map.
+     */
+    static final Table[] DATA_TABLES = {Table.CHUNKS, Table.COLUMNS};
+
+    private final ChunkStore store;
+    private final KeyLayout layout;
+    private final Compression compression;
+    // null when caching is off
+    private final ChunkCache cache;
+    private final GroupCommitter committer;
+    private final ChangeFeed changes;
+    private final Metrics metrics;
+    private final boolean readOnly;
+    // null when reading ahead is off, or there is no cache to read into
+    private final Prefetcher prefetcher;
+    // guards updating the cube index of a column
+    private final Striped<Lock> indexLocks = Striped.lock(64);
+    // by table, null for tables without one or when they are off
+    private final ExistenceFilter[] filters = new ExistenceFilter[Table.values().length];
+    // by table, the versions of what was recently saved or asked for, so
+    // they are not hashed again, null for tables other than data tables
+    private final Cache<Long, Long>[] versions = newVersions();
 
 
     public Map(String filename){
-        Path path = Paths.get(filename);
-        if(Files.isDirectory(path)){
-            path = path.resolve("cubes.dim0.db");
+        this(filename, new MapConfig());
+    }
+
+    public Map(String filename, KeyLayout newLayout){
+        this(filename, new MapConfig().withLayout(newLayout));
+    }
+
+    /**
+     * Opens the store, using the configured key layout if it is new. An
+     * existing store keeps the layout it was created with.
+     */
+    public Map(String filename, MapConfig config){
+        this(openStore(Paths.get(filename), config), config);
+    }
+
+    /**
+     * Serves the given store, using the configured key layout if it is new.
+     */
+    public Map(ChunkStore store, MapConfig config){
+        this.store = store;
+        String recorded = store.getMeta("layout");
+        if(recorded != null){
+            layout = KeyLayout.valueOf(recorded);
+        }else if(store.isEmpty(Table.CHUNKS) && store.isEmpty(Table.COLUMNS)){
+            layout = config.getLayout();
+            store.setMeta("layout", layout.name());
+            config.getCompression().toMeta(store);
+            store.commit();
+        }else{
+            // stores from before the layout was recorded
+            layout = KeyLayout.LEGACY;
+        }
+        compression = Compression.fromMeta(store);
+        if(store.getMeta("cubeIndex") == null){
+            // stores from before the cube index was kept
+            if(!store.isEmpty(Table.CHUNKS)){
+                buildIndex();
+            }
+            store.setMeta("cubeIndex", "1");
+            store.commit();
+        }
+        for(Table table:DATA_TABLES){
+            versions[table.ordinal()] = CacheBuilder.newBuilder().maximumSize(VERSIONS).build();
+        }
+        if(config.hasExistenceFilter()){
+            for(Table table:DATA_TABLES){
+                filters[table.ordinal()] = ExistenceFilter.of(store, table);
+            }
+        }
+        if(config.getSharedCache() != null){
+            cache = config.getSharedCache().share();
+        }else{
+            cache = config.getCacheBytes() > 0 ? new ChunkCache(config.getCacheBytes()) : null;
+        }
+        metrics = config.getMetrics() != null ? config.getMetrics() : new Metrics();
+        prefetcher = cache != null ? config.getPrefetcher() : null;
+        readOnly = config.isReadOnly();
+        changes = new ChangeFeed(this);
+        committer = new GroupCommitter(() -> {
+            Set<Long>[] changed = changes.drain();
+            long start = System.nanoTime();
+            store.commit();
+            metrics.commit(System.nanoTime() - start);
+            changes.publish(changed);
+        }, config.getCommitWindowMicros(), config.getCommitBatch());
+    }
+
+    /**
+     * Opens the configured kind of store at the path. A directory that is not
+     * a store itself is taken to be a save, and the configured dimension in it
+     * is opened.
+     * With more than one shard, or if the path is already sharded, the store
+     * is a directory of shards, unless there is already a store there that is
+     * not sharded, which is opened as it is.
+     */
+    @SuppressWarnings("unchecked")
+    private static Cache<Long, Long>[] newVersions(){
+        return (Cache<Long, Long>[]) new Cache<?, ?>[Table.values().length];
+    }
+
+    private static ChunkStore openStore(Path path, MapConfig config){
+        Function<Path, ChunkStore> opener;
+        // whether there is already a store that is not sharded
+        boolean single;
+        switch (config.getStore()) {
+            case "segment":
+                if(Files.isDirectory(path) && !Files.exists(path.resolve("segment-000000.dat"))
+                        && !ShardedStore.isSharded(path)){
+                    path = path.resolve("cubes.dim" + config.getDimension() + ".segments");
+                }
+                opener = segments -> new SegmentStore(segments, config.getSegmentSize());
+                single = Files.exists(path.resolve("segment-000000.dat"));
+                break;
+            case "mapdb":
+                if(Files.isDirectory(path) && !ShardedStore.isSharded(path)){
+                    path = path.resolve("cubes.dim" + config.getDimension() + ".db");
+                }
+                opener = MapDbStore::new;
+                single = Files.isRegularFile(path);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown store " + config.getStore());
+        }
+        if(single && config.getShards() > 1){
+            logger.info("{} is not sharded, so it is opened as one store", path);
         }
-        database = DBMaker.fileDB(path.toFile())
-                .transactionEnable()
-                .closeOnJvmShutdown().make();
-        chunks = database.treeMap("chunks", Serializer.LONG, Serializer.BYTE_ARRAY).createOrOpen();
-        cols = database.treeMap("columns", Serializer.LONG, Serializer.BYTE_ARRAY).createOrOpen();
+        if(!single && (config.getShards() > 1 || ShardedStore.isSharded(path))){
+            List<CompactingStore> shards = new ArrayList<>();
+            ShardedStore sharded = new ShardedStore(path, shard -> {
+                CompactingStore compacting = new CompactingStore(shard, opener, config.getCompactRatio(), 0);
+                shards.add(compacting);
+                return compacting;
+            }, config.getShards(), config.getRegionSize(), config.getLayout());
+            // the shards share the compaction rate between them, an existing
+            // store keeps the number of shards it was made with
+            long rate = config.getCompactRate() > 0
+                    ? Math.max(1, config.getCompactRate() / sharded.getShardCount()) : 0;
+            for(CompactingStore shard:shards){
+                shard.setRate(rate);
+            }
+            return sharded;
+        }
+        return new CompactingStore(path, opener, config.getCompactRatio(), config.getCompactRate());
     }
 
-    /*
-        This method is from the tall worlds source.
-        https://github.com/TallWorlds/CubicChunks/blob/develop/src/main/cubicchunks/util/Bits.java
+    /**
+     * The committer shared by every connection saving to this map.
      */
-    private static int unpackSigned(long packed, int size, int offset) {
-        // first, offset to the far left and back so we can preserve the two's complement
-        int complementOffset = 64 - offset - size;
-        packed = packed << complementOffset >> complementOffset;
+    public GroupCommitter getCommitter(){
+        return committer;
+    }
 
-        // then unpack the integer
-        packed = packed >> offset;
-        return (int)packed;
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Where subscribers are told about committed changes.
+     */
+    public ChangeFeed getChanges(){
+        return changes;
+    }
+
+    /**
+     * The cache in front of the store, or null if there is none.
+     */
+    public ChunkCache getCache(){
+        return cache;
+    }
+
+    /**
+     * Whether saves are refused, true for a replica.
+     */
+    public boolean isReadOnly(){
+        return readOnly;
+    }
+
+    private void checkWritable(){
+        if(readOnly){
+            throw new IllegalStateException("The map is read only");
+        }
+    }
+
+    public KeyLayout getLayout(){
+        return layout;
+    }
+
+    /**
+     * How the data is kept in the store, which is fixed when it is created.
+     */
+    public Compression getCompression(){
+        return compression;
     }
 
     private long getAddress(int x, int z){
@@ -73,70 +268,709 @@ public class Map {
     }
 
     private long getAddress(int x, int y, int z){
-        x = x & ((1<<22)-1);
-        z = z & ((1<<22)-1);
-        y = y & ((1<<20)-1);
-        return ((long)y << 44) | ((long)x << 22) | ((long)z);
+        return layout.address(x, y, z);
     }
 
     private int getX(long address){
-        return unpackSigned(address, 22, 22);
+        return layout.x(address);
     }
 
     private int getZ(long address){
-        return unpackSigned(address, 22, 0);
+        return layout.z(address);
     }
 
     private int getY(long address){
-        return unpackSigned(address, 20, 44);
+        return layout.y(address);
     }
 
     public byte[] getChunk(int x, int y, int z){
-        return chunks.get(getAddress(x, y, z));
+        return getChunk(x, y, z, false);
+    }
+
+    /**
+     * Gets a chunk, either as it is stored or decompressed.
+     */
+    public byte[] getChunk(int x, int y, int z, boolean stored){
+        return decode(get(Table.CHUNKS, getAddress(x, y, z)), stored);
+    }
+
+    /**
+     * Copies a chunk as it is stored straight into a buffer, see
+     * {@link ChunkStore#read}, returning its length or -1 if it is not present.
+     */
+    public int readChunk(int x, int y, int z, IntFunction<ByteBuffer> into){
+        return read(Table.CHUNKS, getAddress(x, y, z), into);
     }
 
     public List<Pos> getChunks(){
         List<Pos> poss = new ArrayList<>();
-        for(long address:chunks.keySet()){
-            poss.add(new Pos(address));
+        Iterator<Long> keys = store.keys(Table.CHUNKS, null);
+        while(keys.hasNext()){
+            poss.add(new Pos(keys.next()));
         }
         return poss;
     }
 
+    /**
+     * Returns every chunk inside the inclusive box, read by scanning ordered
+     * ranges of keys rather than probing each position.
+     */
+    public List<java.util.Map.Entry<Pos, byte[]>> getChunks(int x0, int y0, int z0,
+                                                            int x1, int y1, int z1){
+        return getChunks(x0, y0, z0, x1, y1, z1, false);
+    }
+
+    public List<java.util.Map.Entry<Pos, byte[]>> getChunks(int x0, int y0, int z0,
+                                                            int x1, int y1, int z1, boolean stored){
+        return scan(Table.CHUNKS, x0, y0, z0, x1, y1, z1, stored);
+    }
+
+    /**
+     * Iterates the chunk positions in key order straight from the store,
+     * starting after the position with the given key, or at the start if it
+     * is null.
+     */
+    public Iterator<Pos> iterateChunks(Long after){
+        return iterate(Table.CHUNKS, after);
+    }
+
     public boolean containsChunk(int x, int y, int z){
-        return chunks.containsKey(getAddress(x, y, z));
+        return contains(Table.CHUNKS, getAddress(x, y, z));
     }
 
     public void saveChunk(int x, int y, int z, byte[] data){
-        chunks.put(getAddress(x, y, z), data);
+        checkWritable();
+        long address = getAddress(x, y, z);
+        put(Table.CHUNKS, address, compression.encode(data));
+        index(new long[]{address});
+    }
+
+    /**
+     * Looks up many chunks at once, given as x, y, z triples. The lookups are
+     * done in key order but the results are in the order given, null where
+     * a chunk is not present.
+     */
+    public byte[][] lookupChunks(int[] coords){
+        return lookupChunks(coords, false);
+    }
+
+    public byte[][] lookupChunks(int[] coords, boolean stored){
+        long[] addresses = new long[coords.length/3];
+        for(int i=0;i<addresses.length;i++){
+            addresses[i] = getAddress(coords[3*i], coords[3*i+1], coords[3*i+2]);
+        }
+        return lookup(Table.CHUNKS, addresses, stored);
+    }
+
+    /**
+     * Saves many chunks at once, given as x, y, z triples and their data.
+     */
+    public void saveChunks(int[] coords, byte[][] data){
+        checkWritable();
+        long[] addresses = new long[data.length];
+        for(int i=0;i<addresses.length;i++){
+            addresses[i] = getAddress(coords[3*i], coords[3*i+1], coords[3*i+2]);
+        }
+        put(Table.CHUNKS, addresses, encode(data));
+        index(addresses);
+    }
+
+    /**
+     * Checks many chunks at once, given as x, y, z triples.
+     */
+    public boolean[] containsChunks(int[] coords){
+        long[] addresses = new long[coords.length/3];
+        for(int i=0;i<addresses.length;i++){
+            addresses[i] = getAddress(coords[3*i], coords[3*i+1], coords[3*i+2]);
+        }
+        return contains(Table.CHUNKS, addresses);
     }
 
     public byte[] getColumn(int x, int z){
-        return cols.get(getAddress(x, z));
+        return getColumn(x, z, false);
+    }
+
+    public byte[] getColumn(int x, int z, boolean stored){
+        return decode(get(Table.COLUMNS, getAddress(x, z)), stored);
+    }
+
+    public int readColumn(int x, int z, IntFunction<ByteBuffer> into){
+        return read(Table.COLUMNS, getAddress(x, z), into);
     }
 
     public List<Pos> getColumns(){
         List<Pos> poss = new ArrayList<>();
-        for(long address:cols.keySet()){
-            poss.add(new Pos(address));
+        Iterator<Long> keys = store.keys(Table.COLUMNS, null);
+        while(keys.hasNext()){
+            poss.add(new Pos(keys.next()));
         }
         return poss;
     }
 
+    /**
+     * Returns every column inside the inclusive rectangle.
+     */
+    public List<java.util.Map.Entry<Pos, byte[]>> getColumns(int x0, int z0, int x1, int z1){
+        return getColumns(x0, z0, x1, z1, false);
+    }
+
+    public List<java.util.Map.Entry<Pos, byte[]>> getColumns(int x0, int z0, int x1, int z1, boolean stored){
+        return scan(Table.COLUMNS, x0, 0, z0, x1, 0, z1, stored);
+    }
+
+    /**
+     * The y of every chunk in the column in ascending order, read from the
+     * cube index.
+     */
+    public int[] getCubeYs(int x, int z){
+        return decodeYs(get(Table.CUBE_INDEX, getAddress(x, z)));
+    }
+
+    /**
+     * Returns the chunks of the column with y from y0 to y1 inclusive, in
+     * ascending y, found through the cube index rather than by probing each y.
+     */
+    public List<java.util.Map.Entry<Pos, byte[]>> getColumnChunks(int x, int z, int y0, int y1, boolean stored){
+        List<java.util.Map.Entry<Pos, byte[]>> result = new ArrayList<>();
+        for(int y:getCubeYs(x, z)){
+            if(y < y0 || y > y1){
+                continue;
+            }
+            byte[] data = get(Table.CHUNKS, getAddress(x, y, z));
+            // the index is written after the chunk, so this only misses while it is being saved
+            if(data != null){
+                result.add(new AbstractMap.SimpleImmutableEntry<>(new Pos(x, y, z), decode(data, stored)));
+            }
+        }
+        return result;
+    }
+
+    private static int[] decodeYs(byte[] index){
+        if(index == null){
+            return new int[0];
+        }
+        int[] ys = new int[index.length / 4];
+        ByteBuffer.wrap(index).asIntBuffer().get(ys);
+        return ys;
+    }
+
+    private static byte[] encodeYs(int[] ys){
+        ByteBuffer buffer = ByteBuffer.allocate(ys.length * 4);
+        buffer.asIntBuffer().put(ys);
+        return buffer.array();
+    }
+
+    /**
+     * Adds the saved chunks to the cube index of their columns.
+     */
+    private void index(long[] addresses){
+        java.util.Map<Long, List<Integer>> added = new HashMap<>();
+        for(long address:addresses){
+            added.computeIfAbsent(getAddress(getX(address), getZ(address)), column -> new ArrayList<>())
+                    .add(getY(address));
+        }
+        for(java.util.Map.Entry<Long, List<Integer>> column:added.entrySet()){
+            long address = column.getKey();
+            Lock lock = indexLocks.get(address);
+            lock.lock();
+            try {
+                // kept out of the cache's figures, which are for what clients read
+                byte[] index = cache == null ? null : cache.peek(Table.CUBE_INDEX, address);
+                int[] ys = decodeYs(index != null ? index : store.get(Table.CUBE_INDEX, address));
+                int[] merged = ys;
+                for(int y:column.getValue()){
+                    int at = Arrays.binarySearch(merged, y);
+                    if(at < 0){
+                        int insert = -at - 1;
+                        int[] grown = new int[merged.length + 1];
+                        System.arraycopy(merged, 0, grown, 0, insert);
+                        grown[insert] = y;
+                        System.arraycopy(merged, insert, grown, insert + 1, merged.length - insert);
+                        merged = grown;
+                    }
+                }
+                if(merged != ys){
+                    put(Table.CUBE_INDEX, address, encodeYs(merged));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Works out the cube index from every chunk in the store, replacing any
+     * there is. Only for stores that are not in use yet.
+     */
+    private void buildIndex(){
+        TreeMap<Long, List<Integer>> columns = new TreeMap<>();
+        Iterator<Long> keys = store.keys(Table.CHUNKS, null);
+        while(keys.hasNext()){
+            long address = keys.next();
+            columns.computeIfAbsent(getAddress(getX(address), getZ(address)), column -> new ArrayList<>())
+                    .add(getY(address));
+        }
+        Iterator<java.util.Map.Entry<Long, byte[]>> entries = Iterators.transform(columns.entrySet().iterator(),
+                column -> {
+                    int[] ys = new int[column.getValue().size()];
+                    for(int i=0;i<ys.length;i++){
+                        ys[i] = column.getValue().get(i);
+                    }
+                    Arrays.sort(ys);
+                    return new AbstractMap.SimpleImmutableEntry<>(column.getKey(), encodeYs(ys));
+                });
+        if(store.isEmpty(Table.CUBE_INDEX)){
+            store.load(Table.CUBE_INDEX, entries);
+        }else{
+            while(entries.hasNext()){
+                java.util.Map.Entry<Long, byte[]> entry = entries.next();
+                store.save(Table.CUBE_INDEX, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private List<java.util.Map.Entry<Pos, byte[]>> scan(Table table, int x0, int y0, int z0,
+                                                       int x1, int y1, int z1, boolean stored){
+        List<java.util.Map.Entry<Pos, byte[]>> result = new ArrayList<>();
+        for(long[] range:layout.ranges(x0, y0, z0, x1, y1, z1, MAX_BOX_RANGES)){
+            Iterator<java.util.Map.Entry<Long, byte[]>> entries = store.entries(table, range[0], range[1]);
+            while(entries.hasNext()){
+                java.util.Map.Entry<Long, byte[]> entry = entries.next();
+                Pos pos = new Pos(entry.getKey());
+                // ranges that were not split all the way also hold keys around the box
+                if(pos.x >= x0 && pos.x <= x1 && pos.y >= y0 && pos.y <= y1
+                        && pos.z >= z0 && pos.z <= z1){
+                    result.add(new AbstractMap.SimpleImmutableEntry<>(pos, decode(entry.getValue(), stored)));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Iterates the column positions in key order, see {@link #iterateChunks}.
+     */
+    public Iterator<Pos> iterateColumns(Long after){
+        return iterate(Table.COLUMNS, after);
+    }
+
+    private Iterator<Pos> iterate(Table table, Long after){
+        return Iterators.transform(store.keys(table, after), address -> new Pos(address));
+    }
+
     public boolean containsColumn(int x, int z){
-        return cols.containsKey(getAddress(x, z));
+        return contains(Table.COLUMNS, getAddress(x, z));
     }
 
     public void saveColumn(int x, int z, byte[] data){
-        cols.put(getAddress(x, z), data);
+        checkWritable();
+        put(Table.COLUMNS, getAddress(x, z), compression.encode(data));
+    }
+
+    /**
+     * The version of a chunk or column as stored, a hash of its content that
+     * changes whenever it is saved with different data. 0 if it is not present.
+     */
+    public static long version(byte[] stored){
+        if(stored == null){
+            return 0;
+        }
+        long version = Hashing.murmur3_128().hashBytes(stored).asLong();
+        return version == 0 ? 1 : version;
+    }
+
+    public long getChunkVersion(int x, int y, int z){
+        return getVersion(Table.CHUNKS, getAddress(x, y, z));
     }
 
+    public long getColumnVersion(int x, int z){
+        return getVersion(Table.COLUMNS, getAddress(x, z));
+    }
+
+    /**
+     * The version of what is stored at the address, see {@link #version},
+     * only read and hashed if it has not been saved or asked for lately.
+     */
+    long getVersion(Table table, long address){
+        try {
+            return versions[table.ordinal()].get(address, () -> version(get(table, address)));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private byte[] decode(byte[] data, boolean stored){
+        return stored ? data : compression.decode(data);
+    }
+
+    byte[] getStored(Table table, long address){
+        return get(table, address);
+    }
+
+    /**
+     * Saves data as it is stored by another map with the same layout and
+     * compression, even if this map is read only.
+     */
+    void apply(Table table, long[] addresses, byte[][] data){
+        put(table, addresses, data);
+    }
+
+    Pos position(long address){
+        return new Pos(address);
+    }
+
+    /**
+     * Iterates everything in a table as it is stored, in address order.
+     */
+    Iterator<java.util.Map.Entry<Long, byte[]>> storedEntries(Table table){
+        return store.entries(table, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Fills a table of a new map with data as it is stored, in ascending
+     * address order. Only for building a map offline, nothing is cached or
+     * published and it is durable after the next save.
+     */
+    void load(Table table, Iterator<java.util.Map.Entry<Long, byte[]>> sorted){
+        store.load(table, sorted);
+        if(versions[table.ordinal()] != null){
+            versions[table.ordinal()].invalidateAll();
+        }
+        if(table == Table.CHUNKS){
+            buildIndex();
+        }
+        if(filters[table.ordinal()] != null){
+            filters[table.ordinal()] = ExistenceFilter.of(store, table);
+        }
+    }
+
+    /**
+     * Returns false if the address is certainly not in the table, without
+     * going to the store.
+     */
+    private boolean mightContain(Table table, long address){
+        ExistenceFilter filter = filters[table.ordinal()];
+        return filter == null || filter.mightContain(address);
+    }
+
+    private byte[] get(Table table, long address){
+        if(!mightContain(table, address)){
+            return null;
+        }
+        if(cache == null){
+            return store.get(table, address);
+        }
+        byte[] data = cache.get(table, address, () -> store.get(table, address));
+        if(prefetcher != null && cache.usePrefetched(table, address)){
+            metrics.prefetchUsed();
+        }
+        return data;
+    }
+
+    /**
+     * Returns something to tell where a client reads, which reads ahead of it,
+     * or null if this map does not read ahead.
+     */
+    ReadAhead newReadAhead(){
+        return prefetcher == null ? null : new ReadAhead(this, prefetcher.getDepth());
+    }
+
+    /**
+     * Reads columns, given as x, z pairs, and their chunks with y from y0 to
+     * y1 into the cache in the background. The column data itself is only
+     * read if asked for. Returns false if too many prefetches were waiting
+     * and this one was dropped.
+     */
+    boolean prefetch(int[] columns, boolean columnData, int y0, int y1){
+        boolean taken = prefetcher.submit(() -> {
+            try {
+                for(int i=0;i<columns.length;i+=2){
+                    int x = columns[i], z = columns[i+1];
+                    if(columnData){
+                        prefetch(Table.COLUMNS, getAddress(x, z));
+                    }
+                    if(y0 > y1){
+                        continue;
+                    }
+                    for(int y:getCubeYs(x, z)){
+                        if(y >= y0 && y <= y1){
+                            prefetch(Table.CHUNKS, getAddress(x, y, z));
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the map was closed since, nothing is lost by not reading ahead
+            }
+        });
+        if(!taken){
+            metrics.prefetchDropped();
+        }
+        return taken;
+    }
+
+    /**
+     * Whether everything prefetching the column would read is still cached,
+     * or known not to be stored.
+     */
+    boolean isPrefetched(int x, int z, boolean columnData, int y0, int y1){
+        if(columnData && !isCached(Table.COLUMNS, getAddress(x, z))){
+            return false;
+        }
+        if(y0 > y1){
+            return true;
+        }
+        long address = getAddress(x, z);
+        byte[] index = cache.peek(Table.CUBE_INDEX, address);
+        if(index == null){
+            // no chunks if the column is cached as absent from the index
+            return cache.contains(Table.CUBE_INDEX, address) != null;
+        }
+        for(int y:decodeYs(index)){
+            if(y >= y0 && y <= y1 && !isCached(Table.CHUNKS, getAddress(x, y, z))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isCached(Table table, long address){
+        return !mightContain(table, address) || cache.contains(table, address) != null;
+    }
+
+    private void prefetch(Table table, long address){
+        if(mightContain(table, address) && cache.prefetch(table, address, () -> store.get(table, address))){
+            metrics.prefetched();
+        }
+    }
+
+    private int read(Table table, long address, IntFunction<ByteBuffer> into){
+        if(!mightContain(table, address)){
+            return -1;
+        }
+        if(cache == null){
+            return store.read(table, address, into);
+        }
+        byte[] data = get(table, address);
+        if(data == null){
+            return -1;
+        }
+        into.apply(data.length).put(data);
+        return data.length;
+    }
+
+    private boolean contains(Table table, long address){
+        if(!mightContain(table, address)){
+            return false;
+        }
+        Boolean cached = cache == null ? null : cache.contains(table, address);
+        if(cached != null && prefetcher != null && cache.usePrefetched(table, address)){
+            metrics.prefetchUsed();
+        }
+        return cached != null ? cached : store.contains(table, address);
+    }
+
+    private void put(Table table, long address, byte[] data){
+        // added first, so a lookup never misses what is in the store
+        ExistenceFilter filter = filters[table.ordinal()];
+        if(filter != null){
+            filter.add(address);
+        }
+        store.save(table, address, data);
+        if(cache != null){
+            cache.put(table, address, data);
+        }
+        saved(table, address, data);
+        changes.changed(table, address);
+    }
+
+    private byte[][] encode(byte[][] data){
+        if(compression.getCodec() == Compression.Codec.NONE){
+            return data;
+        }
+        byte[][] result = new byte[data.length][];
+        for(int i=0;i<data.length;i++){
+            result[i] = compression.encode(data[i]);
+        }
+        return result;
+    }
+
+    private void put(Table table, long[] addresses, byte[][] data){
+        ExistenceFilter filter = filters[table.ordinal()];
+        if(filter != null){
+            for(long address:addresses){
+                filter.add(address);
+            }
+        }
+        store.saveAll(table, addresses, data);
+        for(int i=0;i<addresses.length;i++){
+            if(cache != null){
+                cache.put(table, addresses[i], data[i]);
+            }
+            saved(table, addresses[i], data[i]);
+            changes.changed(table, addresses[i]);
+        }
+    }
+
+    /**
+     * Keeps the version of newly saved data, replacing one being read.
+     */
+    private void saved(Table table, long address, byte[] data){
+        Cache<Long, Long> known = versions[table.ordinal()];
+        if(known != null){
+            known.put(address, version(data));
+        }
+    }
+
+    /**
+     * Looks up many columns at once, given as x, z pairs.
+     */
+    public byte[][] lookupColumns(int[] coords){
+        return lookupColumns(coords, false);
+    }
+
+    public byte[][] lookupColumns(int[] coords, boolean stored){
+        long[] addresses = new long[coords.length/2];
+        for(int i=0;i<addresses.length;i++){
+            addresses[i] = getAddress(coords[2*i], coords[2*i+1]);
+        }
+        return lookup(Table.COLUMNS, addresses, stored);
+    }
+
+    /**
+     * Saves many columns at once, given as x, z pairs and their data.
+     */
+    public void saveColumns(int[] coords, byte[][] data){
+        checkWritable();
+        long[] addresses = new long[data.length];
+        for(int i=0;i<addresses.length;i++){
+            addresses[i] = getAddress(coords[2*i], coords[2*i+1]);
+        }
+        put(Table.COLUMNS, addresses, encode(data));
+    }
+
+    /**
+     * Checks many columns at once, given as x, z pairs.
+     */
+    public boolean[] containsColumns(int[] coords){
+        long[] addresses = new long[coords.length/2];
+        for(int i=0;i<addresses.length;i++){
+            addresses[i] = getAddress(coords[2*i], coords[2*i+1]);
+        }
+        return contains(Table.COLUMNS, addresses);
+    }
+
+    private byte[][] lookup(Table table, long[] addresses, boolean stored){
+        byte[][] result = new byte[addresses.length][];
+        for(int i:keyOrder(addresses)){
+            result[i] = decode(get(table, addresses[i]), stored);
+        }
+        return result;
+    }
+
+    private boolean[] contains(Table table, long[] addresses){
+        boolean[] result = new boolean[addresses.length];
+        for(int i:keyOrder(addresses)){
+            result[i] = contains(table, addresses[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the indices of the addresses sorted by the address, so that the
+     * tree is walked in order instead of at random.
+     */
+    private static int[] keyOrder(long[] addresses){
+        Integer[] indices = new Integer[addresses.length];
+        for(int i=0;i<indices.length;i++){
+            indices[i] = i;
+        }
+        Arrays.sort(indices, (a, b) -> Long.compare(addresses[a], addresses[b]));
+        int[] order = new int[indices.length];
+        for(int i=0;i<order.length;i++){
+            order[i] = indices[i];
+        }
+        return order;
+    }
+
+    /**
+     * Copies every chunk and column into another map, which may use a
+     * different key layout and compression. The other map is committed as
+     * the copy goes.
+     */
+    public void copyTo(Map other){
+        copy(Table.CHUNKS, other);
+        copy(Table.COLUMNS, other);
+        other.save();
+    }
+
+    private void copy(Table table, Map other){
+        int count = 0;
+        // the chunks copied since the last commit, to add to the cube index
+        long[] copied = new long[COPY_BATCH];
+        Iterator<java.util.Map.Entry<Long, byte[]>> entries = store.entries(table, Long.MIN_VALUE, Long.MAX_VALUE);
+        while(entries.hasNext()){
+            java.util.Map.Entry<Long, byte[]> entry = entries.next();
+            long address = entry.getKey();
+            byte[] data = entry.getValue();
+            if(!compression.equals(other.compression)){
+                data = other.compression.encode(compression.decode(data));
+            }
+            long otherAddress = other.getAddress(getX(address), getY(address), getZ(address));
+            other.put(table, otherAddress, data);
+            copied[count % COPY_BATCH] = otherAddress;
+            if(++count % COPY_BATCH == 0 || !entries.hasNext()){
+                if(table == Table.CHUNKS){
+                    int batch = count % COPY_BATCH == 0 ? COPY_BATCH : count % COPY_BATCH;
+                    other.index(Arrays.copyOf(copied, batch));
+                }
+                other.save();
+            }
+        }
+    }
+
+    /**
+     * Commits everything saved so far, returning once it is durable. Commits
+     * made at about the same time share one store commit.
+     */
     public void save(){
-        database.commit();
+        try {
+            saveAsync().join();
+        } catch (CompletionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Commits everything saved so far, the future completes once it is durable.
+     */
+    public CompletableFuture<Void> saveAsync(){
+        return committer.commit();
+    }
+
+    /**
+     * Compacts the store in the background while it is still in use, the
+     * future completes once the compacted store is in use. Only stores opened
+     * from a path can be compacted.
+     */
+    public CompletableFuture<Void> compact(){
+        if(store instanceof CompactingStore){
+            return ((CompactingStore) store).compact();
+        }
+        if(store instanceof ShardedStore){
+            return ((ShardedStore) store).compact();
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(new UnsupportedOperationException("The store can not be compacted"));
+        return future;
     }
 
     public void close(){
-        database.close();
+        committer.close();
+        changes.close();
+        store.close();
+        if(cache != null){
+            cache.invalidateAll();
+        }
     }
 
     public final class Pos{
@@ -154,6 +988,13 @@ public class Map {
             this.z = z;
         }
 
+        /**
+         * The key this position is stored under, which orders the listings.
+         */
+        public long key(){
+            return layout.address(x, y, z);
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -0,0 +1,334 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Settings for opening a {@link Map}, read from the server's --name=value options.
+ */
+public class MapConfig {
+    private KeyLayout layout = KeyLayout.LEGACY;
+    private long cacheBytes = 0;
+    private String store = "mapdb";
+    private int segmentSize = SegmentStore.DEFAULT_SEGMENT_SIZE;
+    private long commitWindowMicros = 1000;
+    private int commitBatch = 64;
+    private Compression compression = Compression.NONE;
+    private double compactRatio = 0;
+    private long compactRate = 16 * 1024 * 1024;
+    private int shards = 1;
+    private int regionSize = 32;
+    private int dimension = 0;
+    private boolean readOnly;
+    private boolean existenceFilter = true;
+    // shared between the maps of a registry, null for each map to have its own
+    private ChunkCache sharedCache;
+    private Metrics metrics;
+    private Prefetcher prefetcher;
+
+    public static MapConfig fromOptions(Properties options){
+        MapConfig config = new MapConfig();
+        config.layout = KeyLayout.valueOf(options.getProperty("layout", "legacy").toUpperCase());
+        config.cacheBytes = parseSize(options.getProperty("cache", "0"));
+        config.store = options.getProperty("store", config.store);
+        config.segmentSize = (int) parseSize(options.getProperty("segment-size",
+                String.valueOf(config.segmentSize)));
+        config.commitWindowMicros = Long.parseLong(options.getProperty("commit-window",
+                String.valueOf(config.commitWindowMicros)));
+        config.commitBatch = Integer.parseInt(options.getProperty("commit-batch",
+                String.valueOf(config.commitBatch)));
+        config.compactRatio = Double.parseDouble(options.getProperty("compact-ratio",
+                String.valueOf(config.compactRatio)));
+        config.compactRate = parseSize(options.getProperty("compact-rate", String.valueOf(config.compactRate)));
+        config.shards = Integer.parseInt(options.getProperty("shards", String.valueOf(config.shards)));
+        config.regionSize = Integer.parseInt(options.getProperty("shard-region", String.valueOf(config.regionSize)));
+        config.existenceFilter = Boolean.parseBoolean(options.getProperty("existence-filter", "true"));
+        String dictionary = options.getProperty("dictionary");
+        try {
+            config.compression = new Compression(
+                    Compression.Codec.valueOf(options.getProperty("compression", "none").toUpperCase()),
+                    dictionary == null ? null : Files.readAllBytes(Paths.get(dictionary)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return config;
+    }
+
+    /**
+     * The key layout for stores that are created, existing ones keep theirs.
+     */
+    public KeyLayout getLayout(){
+        return layout;
+    }
+
+    public MapConfig withLayout(KeyLayout layout){
+        this.layout = layout;
+        return this;
+    }
+
+    /**
+     * The most bytes of chunk and column data held in memory, 0 for no cache.
+     */
+    public long getCacheBytes(){
+        return cacheBytes;
+    }
+
+    public MapConfig withCacheBytes(long cacheBytes){
+        this.cacheBytes = cacheBytes;
+        return this;
+    }
+
+    /**
+     * The kind of store, mapdb or segment.
+     */
+    public String getStore(){
+        return store;
+    }
+
+    public MapConfig withStore(String store){
+        this.store = store;
+        return this;
+    }
+
+    /**
+     * The size of each file of a segment store.
+     */
+    public int getSegmentSize(){
+        return segmentSize;
+    }
+
+    public MapConfig withSegmentSize(int segmentSize){
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * How long a commit waits for others to share it with, in microseconds.
+     */
+    public long getCommitWindowMicros(){
+        return commitWindowMicros;
+    }
+
+    public MapConfig withCommitWindowMicros(long commitWindowMicros){
+        this.commitWindowMicros = commitWindowMicros;
+        return this;
+    }
+
+    /**
+     * The most commits that share one store commit.
+     */
+    public int getCommitBatch(){
+        return commitBatch;
+    }
+
+    public MapConfig withCommitBatch(int commitBatch){
+        this.commitBatch = commitBatch;
+        return this;
+    }
+
+    /**
+     * How the data of stores that are created is compressed, existing ones keep theirs.
+     */
+    public Compression getCompression(){
+        return compression;
+    }
+
+    public MapConfig withCompression(Compression compression){
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * How many times its size after the last compaction the store grows to
+     * before it is compacted again, 0 to only compact when asked to.
+     */
+    public double getCompactRatio(){
+        return compactRatio;
+    }
+
+    public MapConfig withCompactRatio(double compactRatio){
+        this.compactRatio = compactRatio;
+        return this;
+    }
+
+    /**
+     * The most bytes per second a compaction copies, 0 for no limit.
+     */
+    public long getCompactRate(){
+        return compactRate;
+    }
+
+    public MapConfig withCompactRate(long compactRate){
+        this.compactRate = compactRate;
+        return this;
+    }
+
+    /**
+     * How many stores a new store is split across, existing ones keep theirs.
+     */
+    public int getShards(){
+        return shards;
+    }
+
+    public MapConfig withShards(int shards){
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * The width in columns of the square regions that are kept together in one shard.
+     */
+    public int getRegionSize(){
+        return regionSize;
+    }
+
+    public MapConfig withRegionSize(int regionSize){
+        this.regionSize = regionSize;
+        return this;
+    }
+
+    /**
+     * The dimension opened when given a save directory.
+     */
+    public int getDimension(){
+        return dimension;
+    }
+
+    public MapConfig withDimension(int dimension){
+        this.dimension = dimension;
+        return this;
+    }
+
+    /**
+     * Whether saves are refused, as a replica only takes the changes
+     * streamed to it.
+     */
+    public boolean isReadOnly(){
+        return readOnly;
+    }
+
+    public MapConfig withReadOnly(boolean readOnly){
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    /**
+     * Whether a map keeps a filter of the chunks and columns it has in
+     * memory, so that looking up ones it does not have rarely reaches the
+     * store. It is built from every key when the map is opened.
+     */
+    public boolean hasExistenceFilter(){
+        return existenceFilter;
+    }
+
+    public MapConfig withExistenceFilter(boolean existenceFilter){
+        this.existenceFilter = existenceFilter;
+        return this;
+    }
+
+    /**
+     * A cache shared with other maps, which is used instead of one of
+     * {@link #getCacheBytes} bytes. Null if there is none.
+     */
+    public ChunkCache getSharedCache(){
+        return sharedCache;
+    }
+
+    public MapConfig withSharedCache(ChunkCache sharedCache){
+        this.sharedCache = sharedCache;
+        return this;
+    }
+
+    /**
+     * Where the map records its figures, null for it to have its own.
+     */
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    public MapConfig withMetrics(Metrics metrics){
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Reads ahead of clients into the cache, null if that is off. Nothing is
+     * read ahead without a cache.
+     */
+    public Prefetcher getPrefetcher(){
+        return prefetcher;
+    }
+
+    public MapConfig withPrefetcher(Prefetcher prefetcher){
+        this.prefetcher = prefetcher;
+        return this;
+    }
+
+    public MapConfig copy(){
+        MapConfig copy = new MapConfig();
+        copy.layout = layout;
+        copy.cacheBytes = cacheBytes;
+        copy.store = store;
+        copy.segmentSize = segmentSize;
+        copy.commitWindowMicros = commitWindowMicros;
+        copy.commitBatch = commitBatch;
+        copy.compression = compression;
+        copy.compactRatio = compactRatio;
+        copy.compactRate = compactRate;
+        copy.shards = shards;
+        copy.regionSize = regionSize;
+        copy.dimension = dimension;
+        copy.readOnly = readOnly;
+        copy.existenceFilter = existenceFilter;
+        copy.sharedCache = sharedCache;
+        copy.metrics = metrics;
+        copy.prefetcher = prefetcher;
+        return copy;
+    }
+
+    /**
+     * Parses a number of bytes with an optional k, m or g suffix.
+     */
+    static long parseSize(String size){
+        String value = size.trim().toLowerCase();
+        long unit = 1;
+        if(value.endsWith("k")){
+            unit = 1024;
+        }else if(value.endsWith("m")){
+            unit = 1024 * 1024;
+        }else if(value.endsWith("g")){
+            unit = 1024 * 1024 * 1024;
+        }
+        if(unit != 1){
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Stores chunks and columns in a transactional MapDB file, with a BTreeMap
+ * for each table. A table is only created once something is saved to it, so
+ * that {@link #load} can still build it bottom up.
+ */
+public class MapDbStore implements ChunkStore {
+    // how many entries a load into an existing table puts at once
+    private static final int LOAD_BATCH = 4096;
+
+    private final DB database;
+    // null until the table is first used
+    private final AtomicReferenceArray<ConcurrentNavigableMap<Long, byte[]>> tables =
+            new AtomicReferenceArray<>(Table.values().length);
+    private final ConcurrentNavigableMap<String, String> meta;
+    // how many loads built their table bottom up
+    private volatile int sinkLoads;
+
+    public MapDbStore(Path path){
+        database = DBMaker.fileDB(path.toFile())
+                .transactionEnable()
+                .closeOnJvmShutdown().make();
+        for(Table table:Table.values()){
+            if(database.exists(table.storeName())){
+                map(table);
+            }
+        }
+        meta = database.treeMap("meta", Serializer.STRING, Serializer.STRING).createOrOpen();
+    }
+
+    private ConcurrentNavigableMap<Long, byte[]> map(Table table){
+        ConcurrentNavigableMap<Long, byte[]> map = tables.get(table.ordinal());
+        if(map == null){
+            synchronized (tables){
+                map = tables.get(table.ordinal());
+                if(map == null){
+                    map = database.treeMap(table.storeName(), Serializer.LONG, Serializer.BYTE_ARRAY).createOrOpen();
+                    tables.set(table.ordinal(), map);
+                }
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public byte[] get(Table table, long key){
+        return map(table).get(key);
+    }
+
+    @Override
+    public boolean contains(Table table, long key){
+        return map(table).containsKey(key);
+    }
+
+    @Override
+    public void save(Table table, long key, byte[] data){
+        map(table).put(key, data);
+    }
+
+    @Override
+    public void saveAll(Table table, long[] keys, byte[][] data){
+        // in key order so neighbouring entries land in the same nodes
+        TreeMap<Long, byte[]> sorted = new TreeMap<>();
+        for(int i=0;i<keys.length;i++){
+            sorted.put(keys[i], data[i]);
+        }
+        map(table).putAll(sorted);
+    }
+
+    @Override
+    public void load(Table table, Iterator<java.util.Map.Entry<Long, byte[]>> sorted){
+        synchronized (tables){
+            if(tables.get(table.ordinal()) != null){
+                // already created, so fall back to putting them in batches
+                TreeMap<Long, byte[]> batch = new TreeMap<>();
+                while(sorted.hasNext()){
+                    java.util.Map.Entry<Long, byte[]> entry = sorted.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    if(batch.size() == LOAD_BATCH || !sorted.hasNext()){
+                        map(table).putAll(batch);
+                        batch.clear();
+                    }
+                }
+                return;
+            }
+            DB.TreeMapSink<Long, byte[]> sink = database.treeMap(table.storeName(), Serializer.LONG,
+                    Serializer.BYTE_ARRAY).createFromSink();
+            while(sorted.hasNext()){
+                java.util.Map.Entry<Long, byte[]> entry = sorted.next();
+                sink.put(entry.getKey(), entry.getValue());
+            }
+            tables.set(table.ordinal(), sink.create());
+            sinkLoads++;
+        }
+    }
+
+    int getSinkLoads(){
+        return sinkLoads;
+    }
+
+    @Override
+    public boolean isEmpty(Table table){
+        ConcurrentNavigableMap<Long, byte[]> map = tables.get(table.ordinal());
+        return map == null || map.isEmpty();
+    }
+
+    @Override
+    public Iterator<Long> keys(Table table, Long after){
+        return after == null ?
+                map(table).keySet().iterator() : map(table).keySet().tailSet(after, false).iterator();
+    }
+
+    @Override
+    public Iterator<java.util.Map.Entry<Long, byte[]>> entries(Table table, long lo, long hi){
+        return map(table).subMap(lo, true, hi, true).entrySet().iterator();
+    }
+
+    @Override
+    public String getMeta(String name){
+        return meta.get(name);
+    }
+
+    @Override
+    public void setMeta(String name, String value){
+        meta.put(name, value);
+    }
+
+    @Override
+    public Set<String> metaNames(){
+        return new HashSet<>(meta.keySet());
+    }
+
+    @Override
+    public void commit(){
+        database.commit();
+    }
+
+    @Override
+    public void close(){
+        database.close();
+    }
+}
@@ -0,0 +1,347 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.base.Throwables;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The maps served by one server, a store for each dimension of each world.
+ * A world is a save directory inside the root, or the root itself for the
+ * default world. Stores are opened when first used and closed again once
+ * nothing has used them for a while. They share one cache, and so one
+ * memory budget, as well as their metrics.
+ *
+ * Stores are opened and closed outside the registry's lock, so a slow open
+ * or close only holds up those waiting for that same store.
+ */
+public class MapRegistry {
+    private static final Logger logger = LogManager.getLogger();
+    public static final String DEFAULT_WORLD = "";
+
+    // null when only a single map is served
+    private final Path root;
+    private final MapConfig config;
+    private final long idleNanos;
+    private final int maxOpen;
+    private final Metrics metrics;
+    // guarded by this, in order of last use
+    private final LinkedHashMap<String, Entry> open = new LinkedHashMap<>(16, 0.75f, true);
+    // guarded by this, those taken out of open that are still being closed
+    private final HashMap<String, Entry> closing = new HashMap<>();
+    private final ScheduledExecutorService evictor;
+    private boolean closed;
+
+    /**
+     * Serves the worlds in the root, which is also the default world, opening
+     * their stores with the config. A store is closed once it has not been
+     * used for the idle time, and the least recently used unused stores are
+     * closed to keep at most maxOpen open.
+     */
+    public MapRegistry(Path root, MapConfig config, long idleMillis, int maxOpen){
+        this.root = root;
+        metrics = new Metrics();
+        this.config = config.copy().withMetrics(metrics);
+        if(config.getCacheBytes() > 0){
+            this.config.withSharedCache(new ChunkCache(config.getCacheBytes()));
+        }
+        idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.maxOpen = maxOpen;
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Map Evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleMillis / 4);
+        evictor.scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private MapRegistry(Map map){
+        root = null;
+        config = null;
+        idleNanos = Long.MAX_VALUE;
+        maxOpen = Integer.MAX_VALUE;
+        metrics = map.getMetrics();
+        evictor = null;
+        String key = key(DEFAULT_WORLD, 0);
+        Entry entry = new Entry(key);
+        entry.map.complete(map);
+        // never released, so it is never closed
+        entry.users = 1;
+        open.put(key, entry);
+    }
+
+    /**
+     * A registry serving only the given map, as the default world's
+     * dimension 0. Closing it leaves the map open.
+     */
+    public static MapRegistry of(Map map){
+        return new MapRegistry(map);
+    }
+
+    private static String key(String world, int dimension){
+        return world + "/" + dimension;
+    }
+
+    /**
+     * Returns the map of a dimension of a world, opening it if it is not
+     * open. It stays open at least until it is released.
+     */
+    public Map acquire(String world, int dimension){
+        String key = key(world, dimension);
+        Entry entry;
+        Entry previous = null;
+        boolean opens = false;
+        synchronized (this){
+            if(closed){
+                throw new IllegalStateException("The registry is closed");
+            }
+            entry = open.get(key);
+            if(entry == null){
+                entry = new Entry(key);
+                open.put(key, entry);
+                previous = closing.get(key);
+                opens = true;
+            }
+            entry.users++;
+        }
+        if(opens){
+            try {
+                if(previous != null){
+                    // its files are held until it is closed
+                    previous.closed.join();
+                }
+                entry.map.complete(openMap(world, dimension));
+            } catch (RuntimeException e) {
+                synchronized (this){
+                    open.remove(key, entry);
+                }
+                entry.map.completeExceptionally(e);
+                throw e;
+            }
+            close(closeUnused());
+        }
+        try {
+            return entry.map.join();
+        } catch (CompletionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Opens the store of a dimension of a world. Called without holding the lock.
+     */
+    Map openMap(String world, int dimension){
+        if(root == null){
+            throw new IllegalArgumentException("Only one store is served");
+        }
+        Path path = root;
+        if(!world.equals(DEFAULT_WORLD)){
+            if(!world.matches("[A-Za-z0-9_\\- ]+")){
+                throw new IllegalArgumentException("Invalid world name " + world);
+            }
+            path = root.resolve(world);
+        }
+        if((dimension != 0 || !world.equals(DEFAULT_WORLD)) && !Files.isDirectory(path)){
+            throw new IllegalArgumentException("No save directory for world " + world + " dimension " + dimension);
+        }
+        logger.info("Opening world " + world + " dimension " + dimension);
+        return new Map(path.toString(), config.copy().withDimension(dimension));
+    }
+
+    /**
+     * Lets a map acquired from the registry be closed once it is idle.
+     */
+    public synchronized void release(Map map){
+        for(Entry entry:open.values()){
+            if(entry.get() == map){
+                entry.users--;
+                entry.lastUsed = System.nanoTime();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes out the least recently used maps that are not in use while too
+     * many are open, for them to be closed once the lock is released.
+     */
+    private synchronized List<Entry> closeUnused(){
+        List<Entry> unused = new ArrayList<>();
+        int excess = open.size() - maxOpen;
+        for(Entry entry:open.values()){
+            if(unused.size() >= excess){
+                break;
+            }
+            if(entry.users == 0){
+                unused.add(entry);
+            }
+        }
+        for(Entry entry:unused){
+            take(entry);
+        }
+        if(open.size() > maxOpen){
+            logger.warn(open.size() + " stores are open and in use, more than the " + maxOpen + " allowed");
+        }
+        return unused;
+    }
+
+    /**
+     * Closes the maps that have not been used for the idle time, returning
+     * how many were closed.
+     */
+    int closeIdle(){
+        List<Entry> idle = new ArrayList<>();
+        synchronized (this){
+            long now = System.nanoTime();
+            for(Entry entry:open.values()){
+                if(entry.users == 0 && now - entry.lastUsed >= idleNanos){
+                    idle.add(entry);
+                }
+            }
+            for(Entry entry:idle){
+                take(entry);
+            }
+        }
+        close(idle);
+        return idle.size();
+    }
+
+    private void take(Entry entry){
+        open.remove(entry.key);
+        closing.put(entry.key, entry);
+    }
+
+    private void close(List<Entry> entries){
+        for(Entry entry:entries){
+            try {
+                logger.info("Closing idle store " + entry.key);
+                close(entry.map.join());
+            } catch (RuntimeException e) {
+                logger.error(Throwables.getStackTraceAsString(e));
+            } finally {
+                synchronized (this){
+                    closing.remove(entry.key, entry);
+                }
+                entry.closed.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Commits what the map was last sent before closing it, as whoever saved
+     * it may not have and it would otherwise be lost once it is closed.
+     */
+    private static void close(Map map){
+        try {
+            map.save();
+        } finally {
+            map.close();
+        }
+    }
+
+    /**
+     * The maps open at the moment.
+     */
+    public synchronized List<Map> getOpen(){
+        List<Map> maps = new ArrayList<>();
+        for(Entry entry:open.values()){
+            if(entry.get() != null){
+                maps.add(entry.get());
+            }
+        }
+        return maps;
+    }
+
+    /**
+     * The metrics shared by every map.
+     */
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    public void close(){
+        List<Entry> entries;
+        List<Entry> pending;
+        synchronized (this){
+            if(root == null || closed){
+                return;
+            }
+            closed = true;
+            evictor.shutdown();
+            entries = new ArrayList<>(open.values());
+            pending = new ArrayList<>(closing.values());
+            open.clear();
+        }
+        for(Entry entry:entries){
+            Map map;
+            try {
+                // waits for those still being opened
+                map = entry.map.join();
+            } catch (CompletionException e) {
+                continue;
+            }
+            close(map);
+        }
+        for(Entry entry:pending){
+            entry.closed.join();
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        // completed once the map is open
+        private final CompletableFuture<Map> map = new CompletableFuture<>();
+        // completed once the map is closed again
+        private final CompletableFuture<Void> closed = new CompletableFuture<>();
+        private int users;
+        private long lastUsed = System.nanoTime();
+
+        private Entry(String key){
+            this.key = key;
+        }
+
+        /**
+         * The map, or null if it is not open yet or failed to open.
+         */
+        private Map get(){
+            return map.isDone() && !map.isCompletedExceptionally() ? map.join() : null;
+        }
+    }
+}
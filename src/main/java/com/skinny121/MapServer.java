@@ -29,24 +29,59 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
-public class MapServer {
+/**
+ * The blocking engine, which runs every connection on its own thread.
+ */
+public class MapServer implements Server {
     private static final Logger logger = LogManager.getLogger();
     private final ServerSocket server;
-    private final Map map;
+    private final MapRegistry registry;
     private volatile boolean closeRequested = false;
-    private final List<Connection> connections = new ArrayList<>();
+    // closed connections are dropped on the next accept
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final ExecutorService lookups = newLookupPool();
+    private final BufferPool pool;
+    private final AdmissionControl admission;
     public MapServer(int port, Map map) throws IOException{
-        server = new ServerSocket(port);
+        this(port, MapRegistry.of(map));
+    }
+
+    public MapServer(int port, MapRegistry registry) throws IOException{
+        this(port, registry, new BufferPool());
+    }
+
+    public MapServer(int port, MapRegistry registry, BufferPool pool) throws IOException{
+        this(port, registry, pool, new AdmissionControl());
+    }
+
+    public MapServer(int port, MapRegistry registry, BufferPool pool, AdmissionControl admission) throws IOException{
+        // opened through a channel so each socket has one, which reads into direct buffers without copying
+        server = ServerSocketChannel.open().socket();
+        server.bind(new InetSocketAddress(port));
         server.setSoTimeout(100);
-        this.map = map;
+        this.registry = registry;
+        this.pool = pool;
+        this.admission = admission;
     }
 
+    /**
+     * Creates the pool that runs tagged lookups for every connection, reads
+     * of single chunks and columns ahead of boxes and pages.
+     */
+    static ExecutorService newLookupPool(){
+        return new PriorityExecutor("Lookup", Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
     public void accept(){
         Thread thread = new Thread(new Runnable() {
             @Override
@@ -54,7 +89,12 @@ public class MapServer {
                 while(!closeRequested) {
                     try {
                         Socket socket = server.accept();
-                        connections.add(new Connection(socket, map).run());
+                        connections.removeIf(Connection::isClosed);
+                        if(admission.canConnect(connections.size())){
+                            connections.add(new Connection(socket, registry, lookups, pool, admission).run());
+                        }else{
+                            refuse(socket);
+                        }
                     } catch (SocketTimeoutException e) {
                     } catch (IOException e) {
                         logger.error(Throwables.getStackTraceAsString(e));
@@ -69,6 +109,22 @@ public class MapServer {
         thread.start();
     }
 
+    private void refuse(Socket socket){
+        logger.info("Refusing a connection over the limit");
+        registry.getMetrics().busy();
+        try {
+            socket.getOutputStream().write(Connection.refusal());
+        } catch (IOException e) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.error(Throwables.getStackTraceAsString(e));
+            }
+        }
+    }
+
+    @Override
     public void close(){
         closeRequested = true;
         try {
@@ -79,6 +135,7 @@ public class MapServer {
         try {
             logger.info("Closing server");
             server.close();
+            lookups.shutdown();
         } catch (IOException e) {
             logger.error(Throwables.getStackTraceAsString(e));
         }
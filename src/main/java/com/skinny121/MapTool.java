@@ -0,0 +1,288 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.collect.AbstractIterator;
+import com.skinny121.ChunkStore.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Offline tool for building and taking apart stores in bulk, much faster
+ * than saving through the server. The server must not have any of the
+ * stores open while it runs.
+ *
+ * load builds a new store from a directory written by export or from
+ * another store, sorting the keys in the new layout up front so the store
+ * can be filled in order. export writes every chunk and column of a store
+ * to its own file, chunks/x.y.z.dat and columns/x.z.dat, uncompressed.
+ * compact copies a store as it is into a new one, leaving behind the space
+ * a store that has been saved to for a long time wastes.
+ */
+public class MapTool {
+    private static final Logger logger = LogManager.getLogger();
+    // how many entries are read or written in parallel at once
+    private static final int BATCH = 4096;
+
+    public static void main(String[] args) throws IOException{
+        Properties options = args.length < 3 ? null : TWMapServerMain.parseOptions(args, 3);
+        if(options == null || !Arrays.asList("load", "export", "compact").contains(args[0])){
+            logger.error("Require load <directory or store> <new store>, export <store> <new directory> or "
+                    + "compact <store> <new store>, then options of the form --name=value.");
+            return;
+        }
+        Path from = Paths.get(args[1]);
+        Path to = Paths.get(args[2]);
+        if(!Files.exists(from)){
+            logger.error(from + " does not exist.");
+            return;
+        }
+        if(Files.exists(to)){
+            logger.error(to + " already exists.");
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Integer.valueOf(options.getProperty("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        long start = System.nanoTime();
+        try {
+            if(args[0].equals("load") && isDump(from)){
+                Map map = new Map(to.toString(), MapConfig.fromOptions(options));
+                try {
+                    loadDump(from, map, pool);
+                } finally {
+                    map.close();
+                }
+            }else{
+                Map source = new Map(from.toString(), new MapConfig().withStore(options.getProperty("from-store", "mapdb")));
+                try {
+                    if(args[0].equals("export")){
+                        export(source, to, pool);
+                    }else{
+                        MapConfig config = MapConfig.fromOptions(options);
+                        if(args[0].equals("compact")){
+                            config.withLayout(source.getLayout()).withCompression(source.getCompression());
+                        }
+                        Map map = new Map(to.toString(), config);
+                        try {
+                            loadStore(source, map, pool);
+                        } finally {
+                            map.close();
+                        }
+                    }
+                } finally {
+                    source.close();
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        logger.info("Finished " + args[0] + " of " + from + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    private static boolean isDump(Path path){
+        return Files.isDirectory(path.resolve(Table.CHUNKS.storeName()))
+                || Files.isDirectory(path.resolve(Table.COLUMNS.storeName()));
+    }
+
+    /**
+     * Loads the files written by {@link #export} into a new map.
+     */
+    static void loadDump(Path directory, Map map, ForkJoinPool pool) throws IOException{
+        for(Table table:Map.DATA_TABLES){
+            Path tableDirectory = directory.resolve(table.storeName());
+            if(!Files.isDirectory(tableDirectory)){
+                continue;
+            }
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(tableDirectory, "*.dat")) {
+                for(Path file:stream){
+                    files.add(file);
+                }
+            }
+            long[] keys = new long[files.size()];
+            for(int i=0;i<keys.length;i++){
+                String name = files.get(i).getFileName().toString();
+                String[] coords = name.substring(0, name.length() - ".dat".length()).split("\\.");
+                int x = Integer.parseInt(coords[0]);
+                int z = Integer.parseInt(coords[coords.length - 1]);
+                keys[i] = map.getLayout().address(x, table == Table.CHUNKS ? Integer.parseInt(coords[1]) : 0, z);
+            }
+            load(map, table, keys, i -> {
+                try {
+                    return map.getCompression().encode(Files.readAllBytes(files.get(i)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, pool);
+            logger.info("Loaded " + keys.length + " " + table.storeName());
+        }
+        map.save();
+    }
+
+    /**
+     * Loads everything in one map into a new map, which may have another
+     * layout and compression.
+     */
+    static void loadStore(Map source, Map map, ForkJoinPool pool){
+        boolean recode = !source.getCompression().equals(map.getCompression());
+        for(Table table:Map.DATA_TABLES){
+            long[] sourceKeys = new long[1024];
+            long[] keys = new long[1024];
+            int count = 0;
+            Iterator<Map.Pos> positions = table == Table.CHUNKS ? source.iterateChunks(null) : source.iterateColumns(null);
+            while(positions.hasNext()){
+                Map.Pos pos = positions.next();
+                if(count == keys.length){
+                    sourceKeys = Arrays.copyOf(sourceKeys, count * 2);
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+                sourceKeys[count] = pos.key();
+                keys[count++] = map.getLayout().address(pos.x, pos.y, pos.z);
+            }
+            long[] from = Arrays.copyOf(sourceKeys, count);
+            load(map, table, Arrays.copyOf(keys, count), i -> {
+                byte[] data = source.getStored(table, from[i]);
+                return recode ? map.getCompression().encode(source.getCompression().decode(data)) : data;
+            }, pool);
+            logger.info("Loaded " + count + " " + table.storeName());
+        }
+        map.save();
+    }
+
+    /**
+     * Loads the entries with the given keys into a table in key order, reading
+     * and encoding each batch of them in parallel.
+     */
+    private static void load(Map map, Table table, long[] keys, IntFunction<byte[]> read, ForkJoinPool pool){
+        int[] order = sortedOrder(keys);
+        map.load(table, new AbstractIterator<java.util.Map.Entry<Long, byte[]>>() {
+            private int next;
+            private int batchStart;
+            private byte[][] batch = new byte[0][];
+
+            @Override
+            protected java.util.Map.Entry<Long, byte[]> computeNext(){
+                if(next == order.length){
+                    return endOfData();
+                }
+                if(next == batchStart + batch.length){
+                    int start = next;
+                    int length = Math.min(BATCH, order.length - start);
+                    batchStart = start;
+                    batch = pool.submit(() -> IntStream.range(0, length).parallel()
+                            .mapToObj(i -> read.apply(order[start + i]))
+                            .toArray(byte[][]::new)).join();
+                }
+                int index = order[next];
+                return new AbstractMap.SimpleImmutableEntry<>(keys[index], batch[next++ - batchStart]);
+            }
+        });
+    }
+
+    /**
+     * Returns the indices of the keys sorted by the key, sorted in parallel
+     * unless they are already in order.
+     */
+    static int[] sortedOrder(long[] keys){
+        int[] order = new int[keys.length];
+        boolean sorted = true;
+        for(int i=0;i<order.length;i++){
+            order[i] = i;
+            sorted &= i == 0 || keys[i - 1] < keys[i];
+        }
+        if(sorted){
+            return order;
+        }
+        Integer[] indices = new Integer[keys.length];
+        for(int i=0;i<indices.length;i++){
+            indices[i] = i;
+        }
+        Arrays.parallelSort(indices, (a, b) -> Long.compare(keys[a], keys[b]));
+        for(int i=0;i<order.length;i++){
+            order[i] = indices[i];
+        }
+        return order;
+    }
+
+    /**
+     * Writes every chunk and column to its own file in the directory,
+     * decompressed. The store is read in order while the files are written in
+     * parallel.
+     */
+    static void export(Map map, Path directory, ForkJoinPool pool) throws IOException{
+        Deque<ForkJoinTask<?>> writes = new ArrayDeque<>();
+        for(Table table:Map.DATA_TABLES){
+            Path tableDirectory = Files.createDirectories(directory.resolve(table.storeName()));
+            int count = 0;
+            List<java.util.Map.Entry<Long, byte[]>> batch = new ArrayList<>();
+            Iterator<java.util.Map.Entry<Long, byte[]>> entries = map.storedEntries(table);
+            while(entries.hasNext()){
+                batch.add(entries.next());
+                count++;
+                if(batch.size() == BATCH || !entries.hasNext()){
+                    List<java.util.Map.Entry<Long, byte[]>> toWrite = batch;
+                    writes.add(pool.submit(() -> toWrite.parallelStream().forEach(entry -> {
+                        Map.Pos pos = map.position(entry.getKey());
+                        String name = table == Table.CHUNKS ?
+                                pos.x + "." + pos.y + "." + pos.z + ".dat" : pos.x + "." + pos.z + ".dat";
+                        try {
+                            Files.write(tableDirectory.resolve(name), map.getCompression().decode(entry.getValue()));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })));
+                    batch = new ArrayList<>();
+                    // keep only a few batches in memory
+                    while(writes.size() > pool.getParallelism()){
+                        writes.poll().join();
+                    }
+                }
+            }
+            logger.info("Exporting " + count + " " + table.storeName());
+        }
+        while(!writes.isEmpty()){
+            writes.poll().join();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.beans.ConstructorProperties;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms for the requests a map serves, cheap enough to
+ * record on every request.
+ */
+public class Metrics implements MetricsMXBean {
+    private static final String[] PACKETS = {"close", "contains", "get", "save", "list", "commit",
+            "contains many", "get many", "get box", "list page", "save many", "options", "get if changed",
+            "subscribe", "column bundle", "select store"};
+
+    private final long started = System.nanoTime();
+    private final Histogram[] packets = new Histogram[PACKETS.length];
+    private final Histogram payloadSizes = new Histogram();
+    private final Histogram commits = new Histogram();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder prefetchesUsed = new LongAdder();
+    private final LongAdder prefetchesDropped = new LongAdder();
+
+    public Metrics(){
+        for(int i=0;i<packets.length;i++){
+            packets[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records a request that took the given time to handle.
+     */
+    void request(int id, long nanos, int in, int out){
+        packets[id].record(nanos);
+        bytesIn.add(in);
+        bytesOut.add(out);
+    }
+
+    void payload(int size){
+        payloadSizes.record(size);
+    }
+
+    void commit(long nanos){
+        commits.record(nanos);
+    }
+
+    /**
+     * Records a request or connection that was refused with a busy reply.
+     */
+    void busy(){
+        busy.increment();
+    }
+
+    void prefetched(){
+        prefetched.increment();
+    }
+
+    void prefetchUsed(){
+        prefetchesUsed.increment();
+    }
+
+    void prefetchDropped(){
+        prefetchesDropped.increment();
+    }
+
+    void connected(){
+        activeConnections.incrementAndGet();
+    }
+
+    void disconnected(){
+        activeConnections.decrementAndGet();
+    }
+
+    @Override
+    public int getActiveConnections(){
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getRequests(){
+        long requests = 0;
+        for(Histogram packet:packets){
+            requests += packet.getCount();
+        }
+        return requests;
+    }
+
+    @Override
+    public long getBytesIn(){
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut(){
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBusyReplies(){
+        return busy.sum();
+    }
+
+    @Override
+    public long getPrefetched(){
+        return prefetched.sum();
+    }
+
+    @Override
+    public long getPrefetchesUsed(){
+        return prefetchesUsed.sum();
+    }
+
+    @Override
+    public long getPrefetchesDropped(){
+        return prefetchesDropped.sum();
+    }
+
+    @Override
+    public Summary[] getPackets(){
+        List<Summary> summaries = new ArrayList<>();
+        for(int i=0;i<packets.length;i++){
+            if(packets[i].getCount() > 0){
+                summaries.add(summarize(PACKETS[i], packets[i], TimeUnit.MICROSECONDS.toNanos(1)));
+            }
+        }
+        return summaries.toArray(new Summary[summaries.size()]);
+    }
+
+    @Override
+    public Summary getPayloadSizes(){
+        return summarize("payload bytes", payloadSizes, 1);
+    }
+
+    @Override
+    public Summary getCommits(){
+        return summarize("store commit", commits, TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    private Summary summarize(String name, Histogram histogram, long unit){
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return new Summary(name, histogram.getCount(), histogram.getCount() / Math.max(seconds, 1e-3),
+                (long) histogram.getMean() / unit, histogram.getPercentile(0.5) / unit,
+                histogram.getPercentile(0.99) / unit, histogram.getPercentile(0.999) / unit,
+                histogram.getMax() / unit);
+    }
+
+    /**
+     * A readable report of everything, for the console.
+     */
+    public String report(){
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("connections %d, requests %d, busy %d, in %d bytes, out %d bytes%n",
+                getActiveConnections(), getRequests(), getBusyReplies(), getBytesIn(), getBytesOut()));
+        for(Summary summary:getPackets()){
+            report.append(summary.format("us")).append(System.lineSeparator());
+        }
+        report.append(getPayloadSizes().format("B")).append(System.lineSeparator());
+        report.append(String.format("prefetched %d, used %d, dropped %d%n",
+                getPrefetched(), getPrefetchesUsed(), getPrefetchesDropped()));
+        report.append(getCommits().format("us"));
+        return report.toString();
+    }
+
+    /**
+     * A summary of one histogram.
+     */
+    public static final class Summary {
+        private final String name;
+        private final long count;
+        private final double rate;
+        private final long mean;
+        private final long median;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        @ConstructorProperties({"name", "count", "rate", "mean", "median", "p99", "p999", "max"})
+        public Summary(String name, long count, double rate, long mean, long median, long p99, long p999, long max){
+            this.name = name;
+            this.count = count;
+            this.rate = rate;
+            this.mean = mean;
+            this.median = median;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        /**
+         * The mean number recorded per second since the server started.
+         */
+        public double getRate(){
+            return rate;
+        }
+
+        public long getMean(){
+            return mean;
+        }
+
+        public long getMedian(){
+            return median;
+        }
+
+        public long getP99(){
+            return p99;
+        }
+
+        public long getP999(){
+            return p999;
+        }
+
+        public long getMax(){
+            return max;
+        }
+
+        private String format(String unit){
+            return String.format("%-15s count %d, %.1f/s, mean %d%s, median %d%s, p99 %d%s, p99.9 %d%s, max %d%s",
+                    name, count, rate, mean, unit, median, unit, p99, unit, p999, unit, max, unit);
+        }
+    }
+}
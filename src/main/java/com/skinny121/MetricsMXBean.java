@@ -0,0 +1,73 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+/**
+ * The server's metrics as seen over JMX, times are in microseconds.
+ */
+public interface MetricsMXBean {
+    int getActiveConnections();
+
+    long getRequests();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * The requests and connections refused because the server was busy.
+     */
+    long getBusyReplies();
+
+    /**
+     * The chunks and columns read into the cache ahead of clients.
+     */
+    long getPrefetched();
+
+    /**
+     * How many of those were then read by a client while still cached.
+     */
+    long getPrefetchesUsed();
+
+    /**
+     * The prefetches dropped because too many were waiting.
+     */
+    long getPrefetchesDropped();
+
+    /**
+     * The latency of each kind of packet that has been received.
+     */
+    Metrics.Summary[] getPackets();
+
+    /**
+     * The sizes in bytes of the chunks and columns saved and sent.
+     */
+    Metrics.Summary getPayloadSizes();
+
+    /**
+     * How long each store commit took.
+     */
+    Metrics.Summary getCommits();
+}
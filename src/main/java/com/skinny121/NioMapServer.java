@@ -0,0 +1,464 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.base.Throwables;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector based engine. A single reactor thread accepts sockets and
+ * splits their input into requests, which are then run on a fixed pool of
+ * worker threads. Requests from one client are still run one at a time and
+ * in order, so it speaks exactly the same protocol as {@link MapServer}.
+ * A worker runs a few requests of a client before moving on to the next
+ * one waiting, preferring clients whose next request is interactive.
+ */
+public class NioMapServer implements Server {
+    private static final Logger logger = LogManager.getLogger();
+
+    // stop reading from a client once this many of its requests are waiting
+    private static final int MAX_QUEUED_REQUESTS = 256;
+    // the most requests of a client a worker runs before others get a turn
+    private static final int QUANTUM = 16;
+    // stop reading from and running the requests of a client once this many
+    // bytes of its replies are waiting to be sent
+    private static final int MAX_UNSENT = 1024 * 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final MapRegistry registry;
+    private final ExecutorService workers;
+    private final ExecutorService lookups;
+    private final BufferPool pool;
+    private final AdmissionControl admission;
+    private final AtomicInteger open = new AtomicInteger();
+    // clients whose interest ops need updating by the reactor thread
+    private final Queue<Client> changed = new ConcurrentLinkedQueue<>();
+    private volatile boolean closeRequested = false;
+
+    public NioMapServer(int port, Map map, int workerThreads) throws IOException{
+        this(port, MapRegistry.of(map), workerThreads);
+    }
+
+    public NioMapServer(int port, MapRegistry registry, int workerThreads) throws IOException{
+        this(port, registry, workerThreads, new BufferPool());
+    }
+
+    public NioMapServer(int port, MapRegistry registry, int workerThreads, BufferPool pool) throws IOException{
+        this(port, registry, workerThreads, pool, new AdmissionControl());
+    }
+
+    public NioMapServer(int port, MapRegistry registry, int workerThreads, BufferPool pool,
+                        AdmissionControl admission) throws IOException{
+        this.pool = pool;
+        this.admission = admission;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.registry = registry;
+        workers = new PriorityExecutor("Worker", workerThreads);
+        // kept apart from the workers, which block waiting on them
+        lookups = MapServer.newLookupPool();
+    }
+
+    @Override
+    public void accept(){
+        Thread thread = new Thread(() -> {
+            while(!closeRequested){
+                try {
+                    selector.select();
+                    updateInterests();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if(!key.isValid()){
+                            continue;
+                        }
+                        if(key.isAcceptable()){
+                            acceptClient();
+                            continue;
+                        }
+                        Client client = (Client) key.attachment();
+                        try {
+                            if(key.isReadable()){
+                                client.read();
+                            }
+                            if(key.isValid() && key.isWritable()){
+                                client.send();
+                            }
+                        } catch (IOException e) {
+                            logger.error(Throwables.getStackTraceAsString(e));
+                            client.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error(Throwables.getStackTraceAsString(e));
+                }
+            }
+            for(SelectionKey key:selector.keys()){
+                if(key.attachment() instanceof Client){
+                    ((Client) key.attachment()).shutdown();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error(Throwables.getStackTraceAsString(e));
+            }
+        });
+        thread.setDaemon(true);
+        thread.setName("Reactor");
+        thread.start();
+    }
+
+    private void acceptClient() throws IOException{
+        SocketChannel channel = server.accept();
+        if(channel == null){
+            return;
+        }
+        if(!admission.canConnect(open.get())){
+            logger.info("Refusing a connection over the limit");
+            registry.getMetrics().busy();
+            try {
+                channel.write(ByteBuffer.wrap(Connection.refusal()));
+            } catch (IOException e) {
+            } finally {
+                channel.close();
+            }
+            return;
+        }
+        open.incrementAndGet();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        client.key = channel.register(selector, SelectionKey.OP_READ, client);
+    }
+
+    private void updateInterests(){
+        Client client;
+        while((client = changed.poll()) != null){
+            client.updateInterest();
+        }
+    }
+
+    @Override
+    public void close(){
+        closeRequested = true;
+        selector.wakeup();
+        workers.shutdown();
+        lookups.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            logger.error(Throwables.getStackTraceAsString(e));
+        }
+        try {
+            logger.info("Closing server");
+            server.close();
+        } catch (IOException e) {
+            logger.error(Throwables.getStackTraceAsString(e));
+        }
+    }
+
+    private final class Client implements Connection.Output {
+        private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+        private final SocketChannel channel;
+        private final Connection connection;
+        private SelectionKey key;
+        private final RequestReader reader = new RequestReader(pool);
+
+        // guarded by this
+        private final Queue<ByteBuffer> requests = new ArrayDeque<>();
+        private boolean scheduled;
+
+        // guarded by itself, the replies waiting to be sent, null once closed
+        private final Object writeLock = new Object();
+        private ByteBuffer writes = pool.acquire(WRITE_BUFFER_SIZE);
+        // set once the close reply is queued, no more requests are read after it
+        private volatile boolean closing;
+        private boolean closed;
+
+        private Client(SocketChannel channel){
+            this.channel = channel;
+            this.connection = new Connection(registry, lookups, pool, admission, this);
+        }
+
+        /**
+         * Called on the reactor thread when the socket is readable.
+         */
+        private void read() throws IOException{
+            if(!reader.read(channel)){
+                // same as the end of the stream in the blocking engine
+                close();
+                return;
+            }
+            List<ByteBuffer> received = reader.requests();
+            if(!received.isEmpty()){
+                synchronized (this){
+                    requests.addAll(received);
+                }
+                schedule();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Called on the reactor thread when the socket is writable.
+         */
+        private void send() throws IOException{
+            synchronized (writeLock){
+                if(writes == null){
+                    return;
+                }
+                writes.flip();
+                channel.write(writes);
+                if(!writes.hasRemaining() && writes.capacity() > WRITE_BUFFER_SIZE){
+                    // give back the buffer grown for a large reply
+                    pool.release(writes);
+                    writes = pool.acquire(WRITE_BUFFER_SIZE);
+                }else{
+                    writes.compact();
+                }
+                writeLock.notifyAll();
+            }
+            // carries on with the requests held back while it was behind
+            schedule();
+            updateInterest();
+        }
+
+        private boolean hasWrites(){
+            synchronized (writeLock){
+                return writes != null && writes.position() > 0;
+            }
+        }
+
+        /**
+         * Whether the client has not read enough of its replies for more to be made.
+         */
+        private boolean isBehind(){
+            synchronized (writeLock){
+                return writes != null && writes.position() > MAX_UNSENT;
+            }
+        }
+
+        private void updateInterest(){
+            if(!key.isValid()){
+                return;
+            }
+            boolean hasWrites = hasWrites();
+            if(closing && !hasWrites){
+                close();
+                return;
+            }
+            int ops = 0;
+            if(hasWrites){
+                ops |= SelectionKey.OP_WRITE;
+            }
+            boolean behind = isBehind();
+            synchronized (this){
+                if(!closing && !behind && requests.size() < MAX_QUEUED_REQUESTS){
+                    ops |= SelectionKey.OP_READ;
+                }
+            }
+            key.interestOps(ops);
+        }
+
+        private synchronized void schedule(){
+            if(!scheduled && !requests.isEmpty() && !isBehind()){
+                scheduled = true;
+                submit();
+            }
+        }
+
+        // guarded by this
+        private void submit(){
+            int id = requests.peek().get(0) & 0xF;
+            workers.execute(PriorityExecutor.task(this::process, AdmissionControl.isInteractive(id)));
+        }
+
+        /**
+         * Runs on a worker thread, handling queued requests in order. After a
+         * quantum of them the client goes to the back of the queue.
+         */
+        private void process(){
+            try {
+                for(int handled=0;;handled++){
+                    ByteBuffer request;
+                    synchronized (this){
+                        if(!closing && isBehind()){
+                            // scheduled again by send once enough is sent
+                            scheduled = false;
+                            flush();
+                            return;
+                        }
+                        if(handled == QUANTUM && !closing && !requests.isEmpty()){
+                            flush();
+                            submit();
+                            return;
+                        }
+                        request = requests.poll();
+                        if(request == null || closing){
+                            if(request != null){
+                                pool.release(request);
+                            }
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                    connection.handle(request);
+                    if(connection.isCloseRequested()){
+                        write(new byte[]{0});
+                        closing = true;
+                    }
+                    boolean last;
+                    synchronized (this){
+                        last = closing || requests.isEmpty();
+                    }
+                    if(last){
+                        // the end of this batch
+                        flush();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error(Throwables.getStackTraceAsString(e));
+                synchronized (this){
+                    scheduled = false;
+                }
+                closing = true;
+                changed.add(this);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void write(byte[] reply) throws IOException{
+            write(ByteBuffer.wrap(reply));
+        }
+
+        @Override
+        public void write(ByteBuffer reply) throws IOException{
+            synchronized (writeLock){
+                if(writes == null){
+                    throw new IOException("The connection is closed");
+                }
+                if(writes.remaining() < reply.remaining()){
+                    ByteBuffer larger = pool.acquire(writes.position() + reply.remaining());
+                    writes.flip();
+                    larger.put(writes);
+                    pool.release(writes);
+                    writes = larger;
+                }
+                writes.put(reply);
+            }
+        }
+
+        @Override
+        public void flush(){
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        @Override
+        public void awaitUnsent(int bytes) throws IOException{
+            synchronized (writeLock){
+                while(writes != null && writes.position() > bytes){
+                    try {
+                        writeLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if(writes == null){
+                    throw new IOException("The connection is closed");
+                }
+            }
+        }
+
+        /**
+         * Sends the close reply and closes the socket, used when the server shuts down.
+         */
+        private void shutdown(){
+            try {
+                channel.write(ByteBuffer.wrap(new byte[]{0}));
+            } catch (IOException | RuntimeException e) {}
+            close();
+        }
+
+        private void close(){
+            if(closed){
+                return;
+            }
+            closed = true;
+            open.decrementAndGet();
+            connection.closed();
+            if(key != null){
+                key.cancel();
+            }
+            try {
+                logger.info("Closing Socket");
+                channel.close();
+            } catch (ClosedChannelException e) {
+            } catch (IOException e) {
+                logger.error(Throwables.getStackTraceAsString(e));
+            }
+            reader.close();
+            synchronized (this){
+                for(ByteBuffer request:requests){
+                    pool.release(request);
+                }
+                requests.clear();
+            }
+            synchronized (writeLock){
+                pool.release(writes);
+                writes = null;
+                writeLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An open addressing hash table from long keys to non-negative long values,
+ * kept in direct buffers so that millions of entries cost no objects on
+ * the heap. Not thread safe.
+ *
+ * The slots are split over pages of at most 2^22 slots (64MB) each, as a
+ * single buffer cannot pass 2GB. The table holds up to 2^31 slots, about
+ * 1.2 billion entries at its load factor, before put throws.
+ */
+final class OffHeapIndex {
+    private static final int SLOT_SIZE = 16;
+    private static final int PAGE_SLOTS = 1 << 22;
+    private static final long MAX_CAPACITY = 1L << 31;
+
+    private final int pageSlots;
+    private ByteBuffer[] pages;
+    private long mask;
+    private int size;
+
+    OffHeapIndex(int expected){
+        this(expected, PAGE_SLOTS);
+    }
+
+    /**
+     * Only tests pick the page size, to cover many pages without many entries.
+     */
+    OffHeapIndex(int expected, int pageSlots){
+        this.pageSlots = pageSlots;
+        long capacity = 16;
+        while(capacity < expected * 2L && capacity < MAX_CAPACITY){
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(long capacity){
+        int perPage = (int) Math.min(capacity, pageSlots);
+        pages = new ByteBuffer[(int) (capacity / perPage)];
+        for(int i=0;i<pages.length;i++){
+            pages[i] = ByteBuffer.allocateDirect(perPage * SLOT_SIZE);
+        }
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    int size(){
+        return size;
+    }
+
+    private ByteBuffer page(long slot){
+        return pages[(int) (slot / pageSlots)];
+    }
+
+    private int offset(long slot){
+        return (int) (slot % pageSlots) * SLOT_SIZE;
+    }
+
+    /**
+     * Returns the value for the key, or -1 if it is not present.
+     */
+    long get(long key){
+        long slot = hash(key) & mask;
+        while(true){
+            ByteBuffer page = page(slot);
+            int offset = offset(slot);
+            long stored = page.getLong(offset + 8);
+            if(stored == 0){
+                return -1;
+            }
+            if(page.getLong(offset) == key){
+                return stored - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Sets the value for the key, returning the previous value or -1.
+     */
+    long put(long key, long value){
+        if(size >= (mask + 1) / 10 * 6){
+            grow();
+        }
+        long slot = hash(key) & mask;
+        while(true){
+            ByteBuffer page = page(slot);
+            int offset = offset(slot);
+            long stored = page.getLong(offset + 8);
+            if(stored == 0){
+                page.putLong(offset, key);
+                // values are stored plus one so that 0 marks an empty slot
+                page.putLong(offset + 8, value + 1);
+                size++;
+                return -1;
+            }
+            if(page.getLong(offset) == key){
+                page.putLong(offset + 8, value + 1);
+                return stored - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Copies out every key, in no particular order.
+     */
+    long[] keys(){
+        long[] keys = new long[size];
+        int count = 0;
+        for(ByteBuffer page:pages){
+            for(int offset=0;offset<page.capacity();offset+=SLOT_SIZE){
+                if(page.getLong(offset + 8) != 0){
+                    keys[count++] = page.getLong(offset);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private void grow(){
+        long capacity = mask + 1;
+        if(capacity >= MAX_CAPACITY){
+            throw new IllegalStateException("Index is full at " + size + " entries");
+        }
+        ByteBuffer[] old = pages;
+        allocate(capacity * 2);
+        for(ByteBuffer page:old){
+            for(int offset=0;offset<page.capacity();offset+=SLOT_SIZE){
+                long stored = page.getLong(offset + 8);
+                if(stored != 0){
+                    put(page.getLong(offset), stored - 1);
+                }
+            }
+        }
+    }
+
+    private static long hash(long key){
+        // the murmur3 finalizer, keys that differ in a few high bits still spread
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
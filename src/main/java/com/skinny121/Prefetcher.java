@@ -0,0 +1,95 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads chunks and columns into the cache in the background ahead of the
+ * clients that will want them, see {@link ReadAhead}. Shared by every map of
+ * a server, it runs a few prefetches at once and drops any that would have
+ * to wait behind too many others, as by then they are likely too late.
+ */
+public class Prefetcher {
+    private final int depth;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param depth how many columns ahead of a client to read
+     * @param threads the most prefetches run at once
+     * @param queue the most prefetches waiting to run
+     */
+    public Prefetcher(int depth, int threads, int queue){
+        if(depth < 1 || threads < 1 || queue < 1){
+            throw new IllegalArgumentException("Invalid prefetch settings " + depth + ", " + threads + ", " + queue);
+        }
+        this.depth = depth;
+        AtomicInteger counter = new AtomicInteger(1);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+                r -> {
+                    Thread thread = new Thread(r, "Prefetch " + counter.getAndIncrement());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    /**
+     * Returns the prefetcher configured by the options, or null if read ahead is off.
+     */
+    public static Prefetcher fromOptions(Properties options){
+        int depth = Integer.parseInt(options.getProperty("prefetch-depth", "0"));
+        if(depth == 0){
+            return null;
+        }
+        return new Prefetcher(depth, Integer.parseInt(options.getProperty("prefetch-threads", "2")),
+                Integer.parseInt(options.getProperty("prefetch-queue", "64")));
+    }
+
+    public int getDepth(){
+        return depth;
+    }
+
+    /**
+     * Runs a prefetch in the background, returning false if it was dropped.
+     */
+    boolean submit(Runnable prefetch){
+        try {
+            executor.execute(prefetch);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public void close(){
+        executor.shutdownNow();
+    }
+}
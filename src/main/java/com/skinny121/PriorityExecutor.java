@@ -0,0 +1,91 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed pool of threads that runs interactive tasks ahead of bulk ones,
+ * and tasks of the same kind in the order they were given. A bulk task is
+ * only passed over by the next {@link #BULK_DELAY} interactive tasks, so a
+ * steady stream of them does not hold it back forever.
+ */
+class PriorityExecutor extends ThreadPoolExecutor {
+    static final int BULK_DELAY = 64;
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    PriorityExecutor(String name, int threads){
+        super(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), newFactory(name));
+    }
+
+    private static ThreadFactory newFactory(String name){
+        AtomicInteger counter = new AtomicInteger(1);
+        return r -> {
+            Thread thread = new Thread(r, name + " " + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Wraps a task so that an executor of this kind knows how urgent it is,
+     * any other executor just runs it.
+     */
+    static Runnable task(Runnable task, boolean interactive){
+        return new Task(task, interactive);
+    }
+
+    @Override
+    public void execute(Runnable command){
+        super.execute(command instanceof Task ? command : new Task(command, true));
+    }
+
+    private static final class Task implements Runnable, Comparable<Task> {
+        private final Runnable task;
+        private final long order;
+
+        private Task(Runnable task, boolean interactive){
+            this.task = task;
+            long next = sequence.getAndIncrement();
+            order = interactive ? next : next + BULK_DELAY;
+        }
+
+        @Override
+        public void run(){
+            task.run();
+        }
+
+        @Override
+        public int compareTo(Task other){
+            return Long.compare(order, other.order);
+        }
+    }
+}
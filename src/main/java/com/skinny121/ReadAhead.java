@@ -0,0 +1,221 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Follows where one connection reads, and once its reads move steadily in
+ * one direction prefetches the columns just ahead of them, and their chunks
+ * in the range of y being read. A client following a player reads all over
+ * the player's view, so the movement is taken from how the middle of its
+ * recent reads shifts, and the edge of the view from how far ahead of the
+ * middle they reach. So that a client reading around a player standing
+ * still does not set it off, two predictions in a row have to agree on the
+ * direction and most of the newer reads have to be of columns first read
+ * within the window, counting a column not read for a while as new again.
+ * Columns are asked for again once what was read ahead for them has left
+ * the cache, so a client coming back to an area reads ahead there too.
+ * Thread safe.
+ */
+final class ReadAhead {
+    static final int WINDOW = 64;
+    // reads between predictions
+    static final int STRIDE = 16;
+    // the least the middle has to move over half a window, in columns
+    private static final double MIN_MOVE = 0.5;
+    // the cosine of the widest angle between two predictions that still agree
+    private static final double MIN_AGREEMENT = 0.7;
+    // the most columns prefetched for one prediction, and the widest view followed
+    private static final int MAX_COLUMNS = 256;
+    private static final int MAX_REACH = 32;
+    // the reads after which a column read again counts as new
+    private static final int REVISIT = 1024;
+    // the columns read and asked for that are remembered
+    private static final int REMEMBERED = 4096;
+
+    private final Map map;
+    private final int depth;
+    // the last WINDOW reads, count % WINDOW is the oldest once full
+    private final int[] xs = new int[WINDOW];
+    private final int[] zs = new int[WINDOW];
+    // the range of y of the chunks read, empty if none were
+    private final int[] lows = new int[WINDOW];
+    private final int[] highs = new int[WINDOW];
+    private final boolean[] columnReads = new boolean[WINDOW];
+    // whether the column had not been read lately before the window
+    private final boolean[] fresh = new boolean[WINDOW];
+    private long count;
+    // the direction of the last prediction, 0 if there was no movement
+    private double lastX, lastZ;
+    // the read counts of the first and last reads of each column since it
+    // was last new
+    private final java.util.Map<Long, long[]> reads = lru();
+    // the read count when each column was last asked for, it is not asked
+    // for again within a window while it may still be being read
+    private final java.util.Map<Long, Long> asked = lru();
+
+    ReadAhead(Map map, int depth){
+        this.map = map;
+        this.depth = depth;
+    }
+
+    private static <V> java.util.Map<Long, V> lru(){
+        return new LinkedHashMap<Long, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(java.util.Map.Entry<Long, V> eldest){
+                return size() > REMEMBERED;
+            }
+        };
+    }
+
+    private static long key(int x, int z){
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    void readChunk(int x, int y, int z){
+        read(x, z, false, y, y);
+    }
+
+    void readColumn(int x, int z){
+        read(x, z, true, Integer.MAX_VALUE, Integer.MIN_VALUE);
+    }
+
+    /**
+     * A column read with its chunks from y0 to y1.
+     */
+    void readBundle(int x, int z, int y0, int y1){
+        read(x, z, true, y0, y1);
+    }
+
+    private void read(int x, int z, boolean column, int low, int high){
+        int[] columns;
+        int y0 = Integer.MAX_VALUE, y1 = Integer.MIN_VALUE;
+        boolean wantColumns = false;
+        synchronized (this){
+            long[] seen = reads.get(key(x, z));
+            if(seen == null || count - seen[1] >= REVISIT){
+                seen = new long[]{count, count};
+                reads.put(key(x, z), seen);
+            }
+            seen[1] = count;
+            int slot = (int) (count % WINDOW);
+            fresh[slot] = count - seen[0] < WINDOW;
+            count++;
+            xs[slot] = x;
+            zs[slot] = z;
+            columnReads[slot] = column;
+            lows[slot] = low;
+            highs[slot] = high;
+            if(count < WINDOW || count % STRIDE != 0){
+                return;
+            }
+            // the middle of the older and newer halves
+            double ox = 0, oz = 0, nx = 0, nz = 0;
+            int half = WINDOW / 2;
+            for(int i=0;i<WINDOW;i++){
+                int at = (int) ((count + i) % WINDOW);
+                if(i < half){
+                    ox += xs[at];
+                    oz += zs[at];
+                }else{
+                    nx += xs[at];
+                    nz += zs[at];
+                }
+            }
+            ox /= half;
+            oz /= half;
+            nx /= half;
+            nz /= half;
+            double dx = nx - ox, dz = nz - oz;
+            double moved = Math.sqrt(dx * dx + dz * dz);
+            if(moved < MIN_MOVE){
+                lastX = lastZ = 0;
+                return;
+            }
+            double ux = dx / moved, uz = dz / moved;
+            boolean agrees = ux * lastX + uz * lastZ >= MIN_AGREEMENT;
+            lastX = ux;
+            lastZ = uz;
+            if(!agrees){
+                return;
+            }
+            // how far the newer reads reach ahead of their middle, and to each side
+            double ahead = 0, side = 0;
+            int freshReads = 0;
+            for(int i=half;i<WINDOW;i++){
+                int at = (int) ((count + i) % WINDOW);
+                if(fresh[at]){
+                    freshReads++;
+                }
+                double rx = xs[at] - nx, rz = zs[at] - nz;
+                ahead = Math.max(ahead, rx * ux + rz * uz);
+                side = Math.max(side, Math.abs(rz * ux - rx * uz));
+                y0 = Math.min(y0, lows[at]);
+                y1 = Math.max(y1, highs[at]);
+                wantColumns |= columnReads[at];
+            }
+            if(freshReads < half / 2){
+                return;
+            }
+            ahead = Math.min(ahead, MAX_REACH);
+            int width = (int) Math.ceil(Math.min(side, MAX_REACH));
+            int[] found = new int[2 * MAX_COLUMNS];
+            int size = 0;
+            for(int step=1;step<=depth && size<MAX_COLUMNS;step++){
+                double cx = nx + ux * (ahead + step), cz = nz + uz * (ahead + step);
+                for(int w=-width;w<=width && size<MAX_COLUMNS;w++){
+                    int px = (int) Math.round(cx - uz * w), pz = (int) Math.round(cz + ux * w);
+                    Long last = asked.get(key(px, pz));
+                    if(last == null || count - last >= WINDOW){
+                        asked.put(key(px, pz), count);
+                        found[2 * size] = px;
+                        found[2 * size + 1] = pz;
+                        size++;
+                    }
+                }
+            }
+            columns = new int[2 * size];
+            System.arraycopy(found, 0, columns, 0, columns.length);
+        }
+        // only those with something left to read, checked outside the lock
+        int size = 0;
+        for(int i=0;i<columns.length;i+=2){
+            if(!map.isPrefetched(columns[i], columns[i+1], wantColumns, y0, y1)){
+                columns[size++] = columns[i];
+                columns[size++] = columns[i+1];
+            }
+        }
+        if(size > 0 && !map.prefetch(Arrays.copyOf(columns, size), wantColumns, y0, y1)){
+            // dropped, so the next prediction asks for them again
+            synchronized (this){
+                for(int i=0;i<size;i+=2){
+                    asked.remove(key(columns[i], columns[i+1]));
+                }
+            }
+        }
+    }
+}
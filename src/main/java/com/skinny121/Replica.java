@@ -0,0 +1,278 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.base.Throwables;
+import com.skinny121.ChunkStore.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Keeps a read only map up to date with the map of a {@link Replicator} on
+ * another server. Every change is committed once its commit record arrives,
+ * and acknowledged after that. If the connection is lost it reconnects and
+ * is sent everything again.
+ *
+ * Changes are applied to the map in batches as they arrive, not held back
+ * until their commit record, as the snapshot a replica is first sent can be
+ * far larger than memory. So readers of the replica can see part of a
+ * commit before the rest of it, and a lost connection can leave part of one
+ * applied until the resend replaces it. Only what is acknowledged is known
+ * to be committed in full.
+ */
+public class Replica {
+    private static final Logger logger = LogManager.getLogger();
+
+    // how many entries are saved to the map at once
+    private static final int BATCH = 4096;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final String host;
+    private final int port;
+    private volatile Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private KeyLayout layout;
+    private Compression compression;
+    private Map map;
+    private Thread thread;
+    private volatile boolean closed;
+    private volatile boolean connected;
+    private volatile long applied = -1;
+    private volatile long lagMillis;
+    private volatile long entries;
+
+    public Replica(String host, int port){
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Connects to the primary, returning a copy of the config with its key
+     * layout and compression that opens the map read only.
+     */
+    public MapConfig configure(MapConfig config) throws IOException{
+        connect();
+        return config.copy().withLayout(layout).withCompression(compression).withReadOnly(true);
+    }
+
+    /**
+     * Starts applying the changes to the map in the background. The map must
+     * have the primary's key layout and compression.
+     */
+    public void start(Map map) throws IOException{
+        if(socket == null){
+            connect();
+        }
+        check(map);
+        this.map = map;
+        thread = new Thread(this::run, "Replication from " + host + ":" + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void connect() throws IOException{
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        int type = in.readByte();
+        if(type != Replicator.META){
+            throw new IOException("Expected the layout of the primary, got " + type);
+        }
+        layout = KeyLayout.valueOf(in.readUTF());
+        Compression.Codec codec = Compression.Codec.valueOf(in.readUTF());
+        int length = in.readInt();
+        byte[] dictionary = null;
+        if(length >= 0){
+            dictionary = new byte[length];
+            in.readFully(dictionary);
+        }
+        compression = new Compression(codec, dictionary);
+        connected = true;
+        logger.info("Replicating from {}:{}", host, port);
+    }
+
+    private void check(Map map) throws IOException{
+        if(map.getLayout() != layout || !map.getCompression().equals(compression)){
+            throw new IOException("The map does not have the key layout and compression of the primary");
+        }
+    }
+
+    private void run(){
+        long backoff = 1000;
+        while(!closed){
+            try {
+                if(socket == null){
+                    connect();
+                    check(map);
+                }
+                backoff = 1000;
+                apply();
+            } catch (IOException e) {
+                if(closed){
+                    return;
+                }
+                logger.error("Replication from {}:{} failed: {}", host, port, e.getMessage());
+            } catch (RuntimeException e) {
+                logger.error(Throwables.getStackTraceAsString(e));
+            }
+            disconnect();
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    private void apply() throws IOException{
+        Batch[] batches = new Batch[Table.values().length];
+        for(Table table:Table.values()){
+            batches[table.ordinal()] = new Batch(table);
+        }
+        while(true){
+            int type = in.read();
+            switch (type) {
+                case Replicator.ENTRY:
+                    int table = in.readByte();
+                    if(table < 0 || table >= batches.length){
+                        throw new IOException("Invalid table " + table);
+                    }
+                    long key = in.readLong();
+                    int length = in.readInt();
+                    if(length < 0){
+                        throw new IOException("Invalid length " + length);
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    batches[table].add(key, data);
+                    break;
+                case Replicator.COMMIT:
+                    long sequence = in.readLong();
+                    long millis = in.readLong();
+                    for(Batch batch:batches){
+                        batch.flush();
+                    }
+                    map.save();
+                    applied = sequence;
+                    // only meaningful if the clocks of the two servers agree
+                    lagMillis = Math.max(0, System.currentTimeMillis() - millis);
+                    out.writeLong(sequence);
+                    out.flush();
+                    break;
+                case -1:
+                    throw new EOFException("The primary closed the connection");
+                default:
+                    throw new IOException("Unknown record " + type);
+            }
+        }
+    }
+
+    private void disconnect(){
+        connected = false;
+        Socket current = socket;
+        socket = null;
+        if(current != null){
+            try {
+                current.close();
+            } catch (IOException e) {
+                logger.error(Throwables.getStackTraceAsString(e));
+            }
+        }
+    }
+
+    /**
+     * The primary's sequence number of the last commit applied, -1 if none
+     * has been yet. It starts again from 0 if the primary restarts.
+     */
+    public long getApplied(){
+        return applied;
+    }
+
+    /**
+     * How long after the primary made the last commit applied it was applied.
+     */
+    public long getLagMillis(){
+        return lagMillis;
+    }
+
+    public String report(){
+        return String.format("replicating from %s:%d, %s, applied commit %d, %d entries, %d ms behind",
+                host, port, connected ? "connected" : "disconnected", applied, entries, lagMillis);
+    }
+
+    public void close(){
+        closed = true;
+        if(thread != null){
+            thread.interrupt();
+        }
+        // wakes the thread if it is reading
+        disconnect();
+    }
+
+    /**
+     * The entries of one table waiting to be saved, applied once full even
+     * if their commit record has not arrived yet.
+     */
+    private final class Batch {
+        private final Table table;
+        private final long[] keys = new long[BATCH];
+        private final byte[][] data = new byte[BATCH][];
+        private int size;
+
+        private Batch(Table table){
+            this.table = table;
+        }
+
+        private void add(long key, byte[] value){
+            keys[size] = key;
+            data[size] = value;
+            if(++size == BATCH){
+                flush();
+            }
+        }
+
+        private void flush(){
+            if(size == 0){
+                return;
+            }
+            map.apply(table, Arrays.copyOf(keys, size), Arrays.copyOf(data, size));
+            entries += size;
+            Arrays.fill(data, 0, size, null);
+            size = 0;
+        }
+    }
+}
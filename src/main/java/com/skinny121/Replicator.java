@@ -0,0 +1,312 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.base.Throwables;
+import com.skinny121.ChunkStore.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams the commits of a map to replicas on other servers. A replica that
+ * connects is sent the key layout and compression of the map, then every
+ * chunk and column it has, then the chunks and columns changed by each
+ * commit. Each batch of changes ends with a commit record, which the replica
+ * acknowledges once it has committed the batch itself.
+ * Changes are read when they are sent rather than when they are committed,
+ * so a replica that falls behind is sent each changed key once. The value
+ * sent may be newer than the commit whose sequence number follows it, as it
+ * may have been changed again since. The replica still ends up with the
+ * same values, just possibly ahead of the sequence it acknowledges.
+ */
+public class Replicator implements Server {
+    private static final Logger logger = LogManager.getLogger();
+
+    static final int META = 3;
+    static final int ENTRY = 1;
+    static final int COMMIT = 2;
+
+    private final ServerSocket server;
+    private final Map map;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private final ChangeFeed.Listener listener = this::committed;
+    // only changed on the publishing thread
+    private volatile long sequence;
+    private volatile long sequenceMillis = System.currentTimeMillis();
+    private volatile boolean closeRequested = false;
+
+    public Replicator(int port, Map map) throws IOException{
+        server = new ServerSocket(port);
+        server.setSoTimeout(100);
+        this.map = map;
+    }
+
+    @Override
+    public void accept(){
+        map.getChanges().addListener(listener);
+        Thread thread = new Thread(() -> {
+            while(!closeRequested){
+                try {
+                    Socket socket = server.accept();
+                    follow(socket);
+                } catch (SocketTimeoutException e) {
+                } catch (IOException e) {
+                    if(!closeRequested){
+                        logger.error(Throwables.getStackTraceAsString(e));
+                    }
+                }
+            }
+        }, "Replication Accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void follow(Socket socket) throws IOException{
+        socket.setTcpNoDelay(true);
+        Follower follower = new Follower(socket);
+        // added before the snapshot is read, so no commit made after it is missed
+        followers.add(follower);
+        logger.info("Replicating to {}", socket.getRemoteSocketAddress());
+        Thread sender = new Thread(follower::send, "Replication to " + socket.getRemoteSocketAddress());
+        sender.setDaemon(true);
+        sender.start();
+        Thread acks = new Thread(follower::readAcks, "Replication acks from " + socket.getRemoteSocketAddress());
+        acks.setDaemon(true);
+        acks.start();
+    }
+
+    private void committed(Set<Long>[] keys){
+        long millis = System.currentTimeMillis();
+        sequenceMillis = millis;
+        sequence++;
+        for(Follower follower:followers){
+            follower.committed(keys, sequence, millis);
+        }
+    }
+
+    /**
+     * The number of commits made since replication started.
+     */
+    public long getSequence(){
+        return sequence;
+    }
+
+    /**
+     * How far behind each replica is.
+     */
+    public String report(){
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("replication at commit %d, %d replicas", sequence, followers.size()));
+        long now = System.currentTimeMillis();
+        for(Follower follower:followers){
+            long behind = sequence - follower.acked;
+            report.append(System.lineSeparator()).append(String.format(
+                    "%s sent %d, acknowledged %d, %d commits behind, last acknowledged %d ms ago",
+                    follower.socket.getRemoteSocketAddress(), follower.sent, follower.acked, behind,
+                    now - follower.ackedMillis));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void close(){
+        closeRequested = true;
+        map.getChanges().removeListener(listener);
+        try {
+            server.close();
+        } catch (IOException e) {
+            logger.error(Throwables.getStackTraceAsString(e));
+        }
+        for(Follower follower:followers){
+            follower.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Long>[] newPending(){
+        Set<Long>[] pending = (Set<Long>[]) new Set<?>[Table.values().length];
+        for(int i=0;i<pending.length;i++){
+            pending[i] = new HashSet<>();
+        }
+        return pending;
+    }
+
+    /**
+     * One connected replica.
+     */
+    private final class Follower {
+        private final Socket socket;
+        private final DataOutputStream out;
+        // guarded by this, the keys committed but not sent yet
+        private Set<Long>[] pending = newPending();
+        private long pendingSequence = sequence;
+        private long pendingMillis = sequenceMillis;
+        private boolean dirty = true;
+        private boolean closed;
+        private volatile long sent = -1;
+        private volatile long acked = -1;
+        // when the replica last acknowledged a commit, until then when it connected
+        private volatile long ackedMillis = System.currentTimeMillis();
+
+        private Follower(Socket socket) throws IOException{
+            this.socket = socket;
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+
+        private synchronized void committed(Set<Long>[] keys, long sequence, long millis){
+            for(int i=0;i<keys.length;i++){
+                pending[i].addAll(keys[i]);
+            }
+            pendingSequence = sequence;
+            pendingMillis = millis;
+            dirty = true;
+            notifyAll();
+        }
+
+        /**
+         * Sends the snapshot and then each batch of changed keys. Values are
+         * read from the map at send time, so they may be newer than the
+         * sequence number of the commit record sent after them.
+         */
+        private void send(){
+            try {
+                out.writeByte(META);
+                out.writeUTF(map.getLayout().name());
+                out.writeUTF(map.getCompression().getCodec().name());
+                byte[] dictionary = map.getCompression().getDictionary();
+                out.writeInt(dictionary == null ? -1 : dictionary.length);
+                if(dictionary != null){
+                    out.write(dictionary);
+                }
+                // the snapshot, whose commit record is sent with the first batch
+                for(Table table:Table.values()){
+                    Iterator<java.util.Map.Entry<Long, byte[]>> entries = map.storedEntries(table);
+                    while(entries.hasNext()){
+                        java.util.Map.Entry<Long, byte[]> entry = entries.next();
+                        writeEntry(table, entry.getKey(), entry.getValue());
+                    }
+                }
+                while(true){
+                    Set<Long>[] keys;
+                    long sequence;
+                    long millis;
+                    synchronized (this){
+                        while(!dirty && !closed){
+                            wait();
+                        }
+                        if(closed){
+                            return;
+                        }
+                        keys = pending;
+                        pending = newPending();
+                        sequence = pendingSequence;
+                        millis = pendingMillis;
+                        dirty = false;
+                    }
+                    for(Table table:Table.values()){
+                        for(long key:keys[table.ordinal()]){
+                            // read as it is now, a later change replaces an earlier one
+                            byte[] data = map.getStored(table, key);
+                            if(data != null){
+                                writeEntry(table, key, data);
+                            }
+                        }
+                    }
+                    out.writeByte(COMMIT);
+                    out.writeLong(sequence);
+                    out.writeLong(millis);
+                    out.flush();
+                    sent = sequence;
+                }
+            } catch (IOException e) {
+                if(!isClosed()){
+                    logger.error("Replication to {} failed: {}", socket.getRemoteSocketAddress(), e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        private void writeEntry(Table table, long key, byte[] data) throws IOException{
+            out.writeByte(ENTRY);
+            out.writeByte(table.ordinal());
+            out.writeLong(key);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        private void readAcks(){
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while(true){
+                    acked = in.readLong();
+                    ackedMillis = System.currentTimeMillis();
+                }
+            } catch (IOException e) {
+                if(!isClosed()){
+                    logger.info("Replica {} disconnected", socket.getRemoteSocketAddress());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private synchronized boolean isClosed(){
+            return closed;
+        }
+
+        private void close(){
+            synchronized (this){
+                if(closed){
+                    return;
+                }
+                closed = true;
+                notifyAll();
+            }
+            followers.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.error(Throwables.getStackTraceAsString(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reply being written into a pooled buffer, which grows by swapping for a
+ * larger one. The first {@link #HEADROOM} bytes are left free, so the packet
+ * id can be moved in front of a correlation id without copying the reply.
+ */
+final class ReplyBuffer {
+    static final int HEADROOM = 4;
+
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    ReplyBuffer(BufferPool pool){
+        this.pool = pool;
+        buffer = pool.acquire(BufferPool.MIN_SIZE);
+        buffer.position(HEADROOM);
+    }
+
+    /**
+     * The number of bytes of reply written so far.
+     */
+    int size(){
+        return buffer.position() - HEADROOM;
+    }
+
+    /**
+     * Returns the buffer with room for at least length more bytes at its
+     * position, for the reply to be written straight into.
+     */
+    ByteBuffer room(int length){
+        if(buffer.remaining() < length){
+            long needed = (long) buffer.position() + length;
+            if(needed > Integer.MAX_VALUE){
+                throw new IllegalStateException("Reply of " + needed + " bytes is too large");
+            }
+            ByteBuffer larger = pool.acquire((int) Math.max(needed, Math.min(Integer.MAX_VALUE, 2L * buffer.capacity())));
+            buffer.flip();
+            larger.put(buffer);
+            pool.release(buffer);
+            buffer = larger;
+        }
+        return buffer;
+    }
+
+    void writeByte(int value){
+        room(1).put((byte) value);
+    }
+
+    void writeBoolean(boolean value){
+        writeByte(value ? 1 : 0);
+    }
+
+    void writeInt(int value){
+        room(4).putInt(value);
+    }
+
+    void writeLong(long value){
+        room(8).putLong(value);
+    }
+
+    void write(byte[] data){
+        room(data.length).put(data);
+    }
+
+    void write(byte[] data, int offset, int length){
+        room(length).put(data, offset, length);
+    }
+
+    /**
+     * Overwrites a byte already written, counting from the start of the reply.
+     */
+    void setByte(int index, int value){
+        buffer.put(HEADROOM + index, (byte) value);
+    }
+
+    void setInt(int index, int value){
+        buffer.putInt(HEADROOM + index, value);
+    }
+
+    /**
+     * Returns the reply ready to be sent, with the packet id moved in front
+     * of the correlation id if it is tagged. The buffer is given back with
+     * {@link #release}.
+     */
+    ByteBuffer finish(boolean tagged, int tagMask, int correlation){
+        buffer.flip();
+        if(tagged){
+            byte tag = buffer.get(HEADROOM);
+            buffer.put(0, (byte) (tag | tagMask));
+            buffer.putInt(1, correlation);
+        }else{
+            buffer.position(HEADROOM);
+        }
+        return buffer;
+    }
+
+    void release(){
+        pool.release(buffer);
+        buffer = null;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers the bytes read from a client and splits them into whole requests.
+ * Each request is copied into a buffer of its own from the pool, which is
+ * released once the request has been handled.
+ */
+final class RequestReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BufferPool pool;
+    // always left ready to be read into
+    private ByteBuffer buffer;
+
+    RequestReader(BufferPool pool){
+        this.pool = pool;
+        buffer = pool.acquire(BUFFER_SIZE);
+    }
+
+    /**
+     * Reads what is available, blocking if the channel does, returns false at
+     * the end of the stream.
+     */
+    boolean read(ReadableByteChannel channel) throws IOException{
+        return channel.read(buffer) >= 0;
+    }
+
+    /**
+     * Removes and returns the requests that have fully arrived.
+     */
+    List<ByteBuffer> requests() throws IOException{
+        buffer.flip();
+        List<ByteBuffer> requests = new ArrayList<>();
+        int len;
+        while((len = Connection.requestLength(buffer, pool.getMaxRequest())) >= 0 && len <= buffer.remaining()){
+            ByteBuffer request = pool.acquire(len);
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + len);
+            request.put(buffer);
+            buffer.limit(limit);
+            request.flip();
+            requests.add(request);
+        }
+        if(len > buffer.capacity()){
+            // a large save, grow to hold all of it
+            ByteBuffer larger = pool.acquire(len);
+            larger.put(buffer);
+            pool.release(buffer);
+            buffer = larger;
+        }else if(!buffer.hasRemaining() && buffer.capacity() > BUFFER_SIZE){
+            // give back the buffer grown for a large save
+            pool.release(buffer);
+            buffer = pool.acquire(BUFFER_SIZE);
+        }else{
+            buffer.compact();
+        }
+        return requests;
+    }
+
+    void close(){
+        pool.release(buffer);
+        buffer = null;
+    }
+}
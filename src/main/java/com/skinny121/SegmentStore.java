@@ -0,0 +1,534 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.base.Throwables;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Stores chunks and columns in an append only log split over memory mapped
+ * segment files. Every save appends a record and points an off heap index at
+ * it, and a commit appends a commit record and forces the segments written
+ * since the last one to disk. Overwritten records are left in place.
+ *
+ * Opening the store rebuilds the index by scanning the segments, keeping only
+ * records followed by a commit record. Meta changes are appended as a record
+ * just before the commit record, so they are kept or lost with the data.
+ *
+ * Record layout: byte table (or COMMIT or META), long key, int length, the data and
+ * an int CRC32 of everything before it.
+ */
+public class SegmentStore implements ChunkStore {
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final byte COMMIT = 127;
+    private static final byte META = 126;
+    private static final int HEADER = 1 + 8 + 4;
+    private static final int TRAILER = 4;
+    // where meta was kept before it went into the log, still read on open
+    private static final String META_FILE = "meta.properties";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // everything below is guarded by lock
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final List<FileChannel> channels = new ArrayList<>();
+    private final OffHeapIndex[] indexes = new OffHeapIndex[Table.values().length];
+    // sorted copies of each index's keys for ordered reads, null once stale
+    private final long[][] sortedKeys = new long[Table.values().length][];
+    private final Properties meta = new Properties();
+    private boolean metaChanged;
+    // where the next record goes in the last segment
+    private int position;
+    // the first segment written to since the last commit
+    private int firstDirty;
+    private long commits;
+
+    public SegmentStore(Path directory){
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SegmentStore(Path directory, int segmentSize){
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        for(Table table:Table.values()){
+            indexes[table.ordinal()] = new OffHeapIndex(1024);
+        }
+        try {
+            Files.createDirectories(directory);
+            Path metaFile = directory.resolve(META_FILE);
+            if(Files.exists(metaFile)){
+                try (InputStream in = Files.newInputStream(metaFile)) {
+                    meta.load(in);
+                }
+            }
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path segmentPath(int index){
+        return directory.resolve(String.format("segment-%06d.dat", index));
+    }
+
+    /**
+     * Maps the existing segments and replays them into the index.
+     */
+    private void recover() throws IOException{
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.dat")) {
+            for(Path path:stream){
+                paths.add(path);
+            }
+        }
+        paths.sort(null);
+        for(int i=0;i<paths.size();i++){
+            if(!paths.get(i).equals(segmentPath(i))){
+                throw new IOException("Missing segment " + segmentPath(i));
+            }
+            FileChannel channel = FileChannel.open(paths.get(i), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channels.add(channel);
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        }
+        // records since the last commit record: {table, key, location}
+        List<long[]> pending = new ArrayList<>();
+        byte[] pendingMeta = null;
+        int committedSegment = 0;
+        int committedEnd = 0;
+        int scannedEnd = 0;
+        for(int s=0;s<segments.size();s++){
+            ByteBuffer buffer = segments.get(s).duplicate();
+            int offset = 0;
+            int size;
+            while((size = validRecord(buffer, offset)) > 0){
+                byte table = buffer.get(offset);
+                if(table == COMMIT){
+                    for(long[] record:pending){
+                        indexes[(int) record[0]].put(record[1], record[2]);
+                    }
+                    pending.clear();
+                    if(pendingMeta != null){
+                        meta.clear();
+                        meta.load(new ByteArrayInputStream(pendingMeta));
+                        pendingMeta = null;
+                    }
+                    commits = buffer.getLong(offset + 1);
+                    committedSegment = s;
+                    committedEnd = offset + size;
+                }else if(table == META){
+                    pendingMeta = new byte[buffer.getInt(offset + 9)];
+                    buffer.position(offset + HEADER);
+                    buffer.get(pendingMeta);
+                }else{
+                    pending.add(new long[]{table, buffer.getLong(offset + 1), location(s, offset)});
+                }
+                offset += size;
+            }
+            if(s == committedSegment){
+                scannedEnd = offset;
+            }
+        }
+        if(!pending.isEmpty()){
+            logger.warn("Discarding " + pending.size() + " uncommitted records in " + directory);
+        }
+        // drop everything after the last commit so it can never be replayed
+        for(int s=segments.size()-1;s>committedSegment;s--){
+            channels.remove(s).close();
+            segments.remove(s);
+            Files.delete(segmentPath(s));
+        }
+        if(segments.isEmpty()){
+            addSegment(segmentSize);
+        }else{
+            MappedByteBuffer last = segments.get(committedSegment);
+            for(int i=committedEnd;i<scannedEnd;i++){
+                last.put(i, (byte) 0);
+            }
+            last.force();
+        }
+        position = committedEnd;
+        firstDirty = segments.size() - 1;
+        logger.info("Opened " + directory + " with " + indexes[Table.CHUNKS.ordinal()].size() + " chunks and "
+                + indexes[Table.COLUMNS.ordinal()].size() + " columns");
+    }
+
+    /**
+     * Returns the size of the record at the offset, or 0 if there is no valid record there.
+     */
+    private static int validRecord(ByteBuffer buffer, int offset){
+        if(offset + HEADER + TRAILER > buffer.limit()){
+            return 0;
+        }
+        byte table = buffer.get(offset);
+        if(table != COMMIT && table != META && (table < 0 || table >= Table.values().length)){
+            return 0;
+        }
+        int length = buffer.getInt(offset + 9);
+        if(length < 0 || length > buffer.limit() - offset - HEADER - TRAILER){
+            return 0;
+        }
+        if(buffer.getInt(offset + HEADER + length) != crc(buffer, offset, HEADER + length)){
+            return 0;
+        }
+        return HEADER + length + TRAILER;
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length){
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    private static long location(int segment, int offset){
+        return ((long) segment << 32) | offset;
+    }
+
+    private void addSegment(int size) throws IOException{
+        Path path = segmentPath(segments.size());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channels.add(channel);
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        position = 0;
+    }
+
+    /**
+     * Appends a record, returning its location. Must hold the write lock.
+     */
+    private long append(byte table, long key, byte[] data){
+        int size = HEADER + data.length + TRAILER;
+        try {
+            if(position + size > segments.get(segments.size() - 1).capacity()){
+                // the rest of the segment stays zeroed, which recovery reads as its end
+                addSegment(Math.max(segmentSize, size));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int segment = segments.size() - 1;
+        ByteBuffer buffer = segments.get(segment).duplicate();
+        buffer.position(position);
+        buffer.put(table).putLong(key).putInt(data.length).put(data);
+        buffer.putInt(crc(buffer, position, HEADER + data.length));
+        long location = location(segment, position);
+        position += size;
+        return location;
+    }
+
+    @Override
+    public byte[] get(Table table, long key){
+        lock.readLock().lock();
+        try {
+            long location = indexes[table.ordinal()].get(key);
+            if(location < 0){
+                return null;
+            }
+            ByteBuffer buffer = segments.get((int) (location >>> 32)).duplicate();
+            int offset = (int) location;
+            byte[] data = new byte[buffer.getInt(offset + 9)];
+            buffer.position(offset + HEADER);
+            buffer.get(data);
+            return data;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the entry straight from its segment into the buffer.
+     */
+    @Override
+    public int read(Table table, long key, IntFunction<ByteBuffer> into){
+        lock.readLock().lock();
+        try {
+            long location = indexes[table.ordinal()].get(key);
+            if(location < 0){
+                return -1;
+            }
+            ByteBuffer buffer = segments.get((int) (location >>> 32)).duplicate();
+            int offset = (int) location;
+            int length = buffer.getInt(offset + 9);
+            buffer.limit(offset + HEADER + length);
+            buffer.position(offset + HEADER);
+            into.apply(length).put(buffer);
+            return length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Table table, long key){
+        lock.readLock().lock();
+        try {
+            return indexes[table.ordinal()].get(key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void save(Table table, long key, byte[] data){
+        lock.writeLock().lock();
+        try {
+            long location = append((byte) table.ordinal(), key, data);
+            if(indexes[table.ordinal()].put(key, location) < 0){
+                synchronized (sortedKeys){
+                    sortedKeys[table.ordinal()] = null;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveAll(Table table, long[] keys, byte[][] data){
+        lock.writeLock().lock();
+        try {
+            boolean added = false;
+            for(int i=0;i<keys.length;i++){
+                long location = append((byte) table.ordinal(), keys[i], data[i]);
+                added |= indexes[table.ordinal()].put(keys[i], location) < 0;
+            }
+            if(added){
+                synchronized (sortedKeys){
+                    sortedKeys[table.ordinal()] = null;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void load(Table table, Iterator<java.util.Map.Entry<Long, byte[]>> sorted){
+        // appending is already sequential, so this only saves taking the lock per entry
+        lock.writeLock().lock();
+        try {
+            while(sorted.hasNext()){
+                java.util.Map.Entry<Long, byte[]> entry = sorted.next();
+                long location = append((byte) table.ordinal(), entry.getKey(), entry.getValue());
+                indexes[table.ordinal()].put(entry.getKey(), location);
+            }
+            synchronized (sortedKeys){
+                sortedKeys[table.ordinal()] = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty(Table table){
+        lock.readLock().lock();
+        try {
+            return indexes[table.ordinal()].size() == 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The keys of the table in order. The index is unordered, so this sorts a
+     * copy of its keys, which is kept until a new key is added.
+     */
+    private long[] sortedKeys(Table table){
+        lock.readLock().lock();
+        try {
+            // readers share the read lock, so they take turns filling in the copy
+            synchronized (sortedKeys){
+                long[] keys = sortedKeys[table.ordinal()];
+                if(keys == null){
+                    keys = indexes[table.ordinal()].keys();
+                    Arrays.sort(keys);
+                    sortedKeys[table.ordinal()] = keys;
+                }
+                return keys;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The index of the first key at or after the given key.
+     */
+    private static int ceiling(long[] keys, long key){
+        int index = Arrays.binarySearch(keys, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    @Override
+    public Iterator<Long> keys(Table table, Long after){
+        long[] keys = sortedKeys(table);
+        int start = after == null ? 0 : ceiling(keys, after);
+        if(after != null && start < keys.length && keys[start] == after){
+            start++;
+        }
+        int first = start;
+        return new Iterator<Long>() {
+            private int next = first;
+
+            @Override
+            public boolean hasNext() {
+                return next < keys.length;
+            }
+
+            @Override
+            public Long next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return keys[next++];
+            }
+        };
+    }
+
+    @Override
+    public Iterator<java.util.Map.Entry<Long, byte[]>> entries(Table table, long lo, long hi){
+        long[] keys = sortedKeys(table);
+        int first = ceiling(keys, lo);
+        return new Iterator<java.util.Map.Entry<Long, byte[]>>() {
+            private int next = first;
+
+            @Override
+            public boolean hasNext() {
+                return next < keys.length && keys[next] <= hi;
+            }
+
+            @Override
+            public java.util.Map.Entry<Long, byte[]> next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                long key = keys[next++];
+                return new AbstractMap.SimpleImmutableEntry<>(key, get(table, key));
+            }
+        };
+    }
+
+    @Override
+    public String getMeta(String name){
+        lock.readLock().lock();
+        try {
+            return meta.getProperty(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setMeta(String name, String value){
+        lock.writeLock().lock();
+        try {
+            meta.setProperty(name, value);
+            metaChanged = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> metaNames(){
+        lock.readLock().lock();
+        try {
+            return meta.stringPropertyNames();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void commit(){
+        lock.writeLock().lock();
+        try {
+            if(metaChanged){
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                meta.store(out, null);
+                append(META, 0, out.toByteArray());
+            }
+            append(COMMIT, ++commits, new byte[0]);
+            for(int s=firstDirty;s<segments.size();s++){
+                segments.get(s).force();
+            }
+            firstDirty = segments.size() - 1;
+            metaChanged = false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close(){
+        lock.writeLock().lock();
+        try {
+            // the mappings themselves are released when they are collected
+            for(FileChannel channel:channels){
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.error(Throwables.getStackTraceAsString(e));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
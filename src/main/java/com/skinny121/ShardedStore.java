@@ -0,0 +1,357 @@
+/*
+Copyright (c) 2015, Ben Lewis
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.skinny121;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * Splits chunks and columns across several stores in a directory by region,
+ * a square of columns, so that saves and commits to different regions do not
+ * wait on each other. Each shard is committed on its own thread, and
+ * listings merge the shards back into key order. The metadata, including
+ * the number of shards and region size, is kept in the first shard.
+ */
+public class ShardedStore implements ChunkStore {
+    // how many entries a load queues for each shard
+    private static final int LOAD_QUEUE = 1024;
+    private static final java.util.Map.Entry<Long, byte[]> END = new AbstractMap.SimpleImmutableEntry<>(0L, null);
+
+    private final ChunkStore[] shards;
+    private final AtomicBoolean[] dirty;
+    private final KeyLayout layout;
+    private final int regionSize;
+    private final ExecutorService executor;
+
+    /**
+     * Opens the shards in the directory with the opener, creating the given
+     * number of them if it is new. An existing store keeps its number of
+     * shards, region size and key layout.
+     */
+    public ShardedStore(Path directory, Function<Path, ChunkStore> opener, int shardCount, int regionSize,
+                        KeyLayout layout){
+        if(shardCount < 1 || regionSize < 1){
+            throw new IllegalArgumentException("Expected at least one shard and a region of at least one column, got "
+                    + shardCount + " and " + regionSize);
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ChunkStore first = opener.apply(directory.resolve(shardName(0)));
+        if(first.getMeta("shards") != null){
+            shardCount = Integer.parseInt(first.getMeta("shards"));
+            regionSize = Integer.parseInt(first.getMeta("region"));
+        }else{
+            first.setMeta("shards", String.valueOf(shardCount));
+            first.setMeta("region", String.valueOf(regionSize));
+            first.commit();
+        }
+        String recorded = first.getMeta("layout");
+        this.layout = recorded != null ? KeyLayout.valueOf(recorded) : layout;
+        this.regionSize = regionSize;
+        shards = new ChunkStore[shardCount];
+        dirty = new AtomicBoolean[shardCount];
+        shards[0] = first;
+        for(int i=0;i<shardCount;i++){
+            if(i > 0){
+                shards[i] = opener.apply(directory.resolve(shardName(i)));
+            }
+            dirty[i] = new AtomicBoolean();
+        }
+        AtomicInteger counter = new AtomicInteger(1);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Shard " + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static String shardName(int index){
+        return String.format("shard-%03d", index);
+    }
+
+    /**
+     * Whether the directory holds a sharded store.
+     */
+    static boolean isSharded(Path directory){
+        if(!Files.isDirectory(directory)){
+            return false;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.anyMatch(file -> file.getFileName().toString().startsWith(shardName(0)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int getShardCount(){
+        return shards.length;
+    }
+
+    /**
+     * The shard a key belongs to, given by the region of its column.
+     */
+    int shard(long key){
+        int regionX = Math.floorDiv(layout.x(key), regionSize);
+        int regionZ = Math.floorDiv(layout.z(key), regionSize);
+        return Math.floorMod(31 * regionX + regionZ, shards.length);
+    }
+
+    @Override
+    public byte[] get(Table table, long key){
+        return shards[shard(key)].get(table, key);
+    }
+
+    @Override
+    public int read(Table table, long key, IntFunction<ByteBuffer> into){
+        return shards[shard(key)].read(table, key, into);
+    }
+
+    @Override
+    public boolean contains(Table table, long key){
+        return shards[shard(key)].contains(table, key);
+    }
+
+    @Override
+    public void save(Table table, long key, byte[] data){
+        int shard = shard(key);
+        shards[shard].save(table, key, data);
+        dirty[shard].set(true);
+    }
+
+    @Override
+    public void saveAll(Table table, long[] keys, byte[][] data){
+        int[] counts = new int[shards.length];
+        int[] shardOf = new int[keys.length];
+        for(int i=0;i<keys.length;i++){
+            shardOf[i] = shard(keys[i]);
+            counts[shardOf[i]]++;
+        }
+        for(int shard=0;shard<shards.length;shard++){
+            if(counts[shard] == 0){
+                continue;
+            }
+            long[] shardKeys = new long[counts[shard]];
+            byte[][] shardData = new byte[counts[shard]][];
+            int next = 0;
+            for(int i=0;i<keys.length;i++){
+                if(shardOf[i] == shard){
+                    shardKeys[next] = keys[i];
+                    shardData[next++] = data[i];
+                }
+            }
+            shards[shard].saveAll(table, shardKeys, shardData);
+            dirty[shard].set(true);
+        }
+    }
+
+    /**
+     * Loads each shard on its own thread, from the entries that belong to it.
+     */
+    @Override
+    public void load(Table table, Iterator<java.util.Map.Entry<Long, byte[]>> sorted){
+        List<BlockingQueue<java.util.Map.Entry<Long, byte[]>>> queues = new ArrayList<>();
+        List<Future<?>> loads = new ArrayList<>();
+        for(ChunkStore shard:shards){
+            BlockingQueue<java.util.Map.Entry<Long, byte[]>> queue = new ArrayBlockingQueue<>(LOAD_QUEUE);
+            queues.add(queue);
+            loads.add(executor.submit(() -> shard.load(table, new AbstractIterator<java.util.Map.Entry<Long, byte[]>>() {
+                @Override
+                protected java.util.Map.Entry<Long, byte[]> computeNext(){
+                    java.util.Map.Entry<Long, byte[]> entry = take(queue);
+                    return entry == END ? endOfData() : entry;
+                }
+            })));
+        }
+        try {
+            while(sorted.hasNext()){
+                java.util.Map.Entry<Long, byte[]> entry = sorted.next();
+                int shard = shard(entry.getKey());
+                offer(queues.get(shard), loads.get(shard), entry);
+                dirty[shard].set(true);
+            }
+        } finally {
+            for(int i=0;i<shards.length;i++){
+                if(!loads.get(i).isDone()){
+                    offer(queues.get(i), loads.get(i), END);
+                }
+            }
+        }
+        for(Future<?> load:loads){
+            await(load);
+        }
+    }
+
+    /**
+     * Queues an entry for a shard's load, failing if the load has.
+     */
+    private static void offer(BlockingQueue<java.util.Map.Entry<Long, byte[]>> queue, Future<?> load,
+                              java.util.Map.Entry<Long, byte[]> entry){
+        try {
+            while(!queue.offer(entry, 100, TimeUnit.MILLISECONDS)){
+                if(load.isDone()){
+                    await(load);
+                    throw new IllegalStateException("A shard stopped loading");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean isEmpty(Table table){
+        for(ChunkStore shard:shards){
+            if(!shard.isEmpty(table)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Iterator<Long> keys(Table table, Long after){
+        List<Iterator<Long>> iterators = new ArrayList<>();
+        for(ChunkStore shard:shards){
+            iterators.add(shard.keys(table, after));
+        }
+        return Iterators.mergeSorted(iterators, Ordering.natural());
+    }
+
+    @Override
+    public Iterator<java.util.Map.Entry<Long, byte[]>> entries(Table table, long lo, long hi){
+        List<Iterator<java.util.Map.Entry<Long, byte[]>>> iterators = new ArrayList<>();
+        for(ChunkStore shard:shards){
+            iterators.add(shard.entries(table, lo, hi));
+        }
+        return Iterators.mergeSorted(iterators, (a, b) -> Long.compare(a.getKey(), b.getKey()));
+    }
+
+    @Override
+    public String getMeta(String name){
+        return shards[0].getMeta(name);
+    }
+
+    @Override
+    public void setMeta(String name, String value){
+        shards[0].setMeta(name, value);
+        dirty[0].set(true);
+    }
+
+    @Override
+    public Set<String> metaNames(){
+        return shards[0].metaNames();
+    }
+
+    /**
+     * Commits every shard saved to since the last commit, in parallel.
+     */
+    @Override
+    public void commit(){
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for(int i=0;i<shards.length;i++){
+            if(dirty[i].getAndSet(false)){
+                ChunkStore shard = shards[i];
+                commits.add(CompletableFuture.runAsync(shard::commit, executor));
+            }
+        }
+        try {
+            CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[commits.size()])).join();
+        } catch (java.util.concurrent.CompletionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Compacts the shards that can be one after another, see
+     * {@link CompactingStore#compact}.
+     */
+    public CompletableFuture<Void> compact(){
+        CompletableFuture<Void> compaction = CompletableFuture.completedFuture(null);
+        for(ChunkStore shard:shards){
+            if(shard instanceof CompactingStore){
+                compaction = compaction.thenCompose(result -> ((CompactingStore) shard).compact());
+            }
+        }
+        return compaction;
+    }
+
+    @Override
+    public void close(){
+        executor.shutdown();
+        for(ChunkStore shard:shards){
+            shard.close();
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue){
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(Future<?> future){
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
@@ -27,31 +27,145 @@ package com.skinny121;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class TWMapServerMain {
     public static void main(String[] args) throws Exception{
         final Logger logger = LogManager.getLogger();
-        if(args.length!=2) {
+        if(args.length<2) {
             logger.error("Require two arguments one for the file name the other for the port number.");
             return;
         }
-        final Map map = new Map(args[0]);
+        Properties options = parseOptions(args, 2);
+        if(options == null){
+            logger.error("Options must be of the form --name=value.");
+            return;
+        }
+        MapConfig config = MapConfig.fromOptions(options);
+        Prefetcher prefetcher = Prefetcher.fromOptions(options);
+        Replica replica = null;
+        String primary = options.getProperty("replicate-from");
+        if(primary != null){
+            int colon = primary.lastIndexOf(':');
+            if(colon < 0){
+                logger.error("Expected --replicate-from=host:port.");
+                return;
+            }
+            replica = new Replica(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+            config = replica.configure(config);
+        }
+        config.withPrefetcher(prefetcher);
+        final MapRegistry registry = new MapRegistry(Paths.get(args[0]), config,
+                TimeUnit.SECONDS.toMillis(Long.parseLong(options.getProperty("idle-close", "300"))),
+                Integer.parseInt(options.getProperty("max-open", "16")));
         int port = Integer.valueOf(args[1]);
+        // only the default map is replicated, and it is kept open while it is
+        Replicator replicator = null;
+        if(replica != null){
+            replica.start(registry.acquire(MapRegistry.DEFAULT_WORLD, 0));
+        }else if(options.getProperty("replication-port") != null){
+            replicator = new Replicator(Integer.parseInt(options.getProperty("replication-port")),
+                    registry.acquire(MapRegistry.DEFAULT_WORLD, 0));
+            replicator.accept();
+        }
 
-        MapServer mapServer = new MapServer(port, map);
+        BufferPool pool = new BufferPool((int) MapConfig.parseSize(options.getProperty("max-payload",
+                String.valueOf(BufferPool.DEFAULT_MAX_PAYLOAD))));
+        AdmissionControl admission = AdmissionControl.fromOptions(options);
+        Server mapServer;
+        String engine = options.getProperty("engine", "blocking");
+        switch (engine) {
+            case "blocking":
+                mapServer = new MapServer(port, registry, pool, admission);
+                break;
+            case "nio":
+                int workers = Integer.valueOf(options.getProperty("workers",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+                mapServer = new NioMapServer(port, registry, workers, pool, admission);
+                break;
+            default:
+                logger.error("Unknown engine " + engine + ", expected blocking or nio.");
+                if(replica != null){
+                    replica.close();
+                }
+                if(replicator != null){
+                    replicator.close();
+                }
+                registry.close();
+                if(prefetcher != null){
+                    prefetcher.close();
+                }
+                return;
+        }
 
         mapServer.accept();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(registry.getMetrics(),
+                new ObjectName("com.skinny121:type=Metrics"));
 
         Scanner scanner = new Scanner(System.in);
         boolean quit = false;
         while(!quit && scanner.hasNextLine()){
-           if(scanner.nextLine().matches("(q|Q)uit|(e|E)xit")){
+           String line = scanner.nextLine();
+           if(line.matches("(q|Q)uit|(e|E)xit")){
                quit = true;
+           }else if(line.trim().equalsIgnoreCase("stats")){
+               System.out.println(registry.getMetrics().report());
+               if(replicator != null){
+                   System.out.println(replicator.report());
+               }
+               if(replica != null){
+                   System.out.println(replica.report());
+               }
+           }else if(line.trim().equalsIgnoreCase("compact")){
+               for(Map map:registry.getOpen()){
+                   logger.info("Compacting a store in the background");
+                   map.compact().whenComplete((result, e) -> {
+                       if(e == null){
+                           logger.info("Compacted a store");
+                       }else{
+                           logger.error("Compacting failed", e);
+                       }
+                   });
+               }
            }
         }
 
         mapServer.close();
-        map.close();
+        if(replicator != null){
+            replicator.close();
+        }
+        if(replica != null){
+            replica.close();
+        }
+        registry.close();
+        if(prefetcher != null){
+            prefetcher.close();
+        }
+    }
+
+    /**
+     * Parses the trailing --name=value arguments, a bare --name is taken as true.
+     * Returns null if any argument is malformed.
+     */
+    static Properties parseOptions(String[] args, int start){
+        Properties options = new Properties();
+        for(int i=start;i<args.length;i++){
+            String arg = args[i];
+            if(!arg.startsWith("--") || arg.length() == 2){
+                return null;
+            }
+            int equals = arg.indexOf('=');
+            if(equals < 0){
+                options.setProperty(arg.substring(2), "true");
+            }else{
+                options.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        return options;
     }
 }
@@ -0,0 +1,109 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void limitTest(){
+        AdmissionControl admission = new AdmissionControl(2, 2, 1, 0, 0);
+        Assert.assertTrue(admission.canConnect(1));
+        Assert.assertFalse(admission.canConnect(2));
+        AdmissionControl.Quota quota = admission.newQuota();
+        Assert.assertTrue(quota.admit(3, 100));
+        // only one bulk request at a time
+        Assert.assertFalse(quota.admit(4, 1));
+        Assert.assertTrue(admission.newQuota().admit(2, 13));
+        Assert.assertEquals(2, admission.getInFlight());
+        Assert.assertFalse(quota.admit(1, 13));
+        // commits are always admitted
+        Assert.assertTrue(quota.admit(5, 1));
+        quota.done(3);
+        Assert.assertTrue(quota.admit(1, 13));
+        Assert.assertFalse(quota.admit(9, 14));
+    }
+
+    @Test
+    public void rateTest(){
+        AdmissionControl.Quota quota = new AdmissionControl(0, 0, 0, 2, 0).newQuota();
+        Assert.assertTrue(quota.admit(2, 13));
+        Assert.assertTrue(quota.admit(2, 13));
+        Assert.assertFalse(quota.admit(2, 13));
+        // each client has its own bucket
+        AdmissionControl bytes = new AdmissionControl(0, 0, 0, 0, 100);
+        Assert.assertTrue(bytes.newQuota().admit(3, 100));
+        quota = bytes.newQuota();
+        Assert.assertTrue(quota.admit(3, 150));
+        Assert.assertFalse(quota.admit(2, 13));
+    }
+
+    @Test
+    public void priorityTest() throws InterruptedException{
+        PriorityExecutor executor = new PriorityExecutor("Test", 1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<String> ran = new ArrayList<>();
+        executor.execute(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        executor.execute(PriorityExecutor.task(() -> ran.add("list"), false));
+        executor.execute(PriorityExecutor.task(() -> ran.add("get"), true));
+        executor.execute(PriorityExecutor.task(() -> ran.add("contains"), true));
+        blocked.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("get", "contains", "list"), ran);
+    }
+
+    @Test
+    public void busyTest() throws IOException{
+        Path path = Files.createTempDirectory(null);
+        Map map = new Map(path.resolve("test.db").toString());
+        List<byte[]> sent = new ArrayList<>();
+        Connection connection = new Connection(MapRegistry.of(map), null, new BufferPool(),
+                new AdmissionControl(0, 0, 0, 1, 0), new Connection.Output() {
+            @Override
+            public void write(byte[] reply){
+                sent.add(reply);
+            }
+
+            @Override
+            public void flush(){
+            }
+        });
+        try {
+            connection.handle(request(ByteBuffer.allocate(13).put((byte) 1).putInt(1).putInt(2).putInt(3)));
+            connection.handle(request(ByteBuffer.allocate(13).put((byte) 1).putInt(1).putInt(2).putInt(3)));
+            connection.handle(request(ByteBuffer.allocate(17).put((byte) 0x81).putInt(7).putInt(1).putInt(2).putInt(3)));
+            Assert.assertEquals(3, sent.size());
+            Assert.assertArrayEquals(new byte[]{0x41}, sent.get(0));
+            Assert.assertArrayEquals(new byte[]{0x50, 1}, sent.get(1));
+            Assert.assertArrayEquals(new byte[]{(byte) 0xD0, 0, 0, 0, 7, (byte) 0x81}, sent.get(2));
+            Assert.assertEquals(2, map.getMetrics().getBusyReplies());
+        } finally {
+            connection.closed();
+            map.close();
+            Files.delete(path.resolve("test.db"));
+            Files.delete(path.resolve("test.db.p"));
+            Files.delete(path.resolve("test.db.t"));
+            Files.delete(path);
+        }
+    }
+
+    private static ByteBuffer request(ByteBuffer request){
+        request.flip();
+        return request;
+    }
+}
@@ -0,0 +1,58 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+    private final BufferPool pool = new BufferPool(1024 * 1024);
+
+    @Test
+    public void reuseTest(){
+        ByteBuffer buffer = pool.acquire(5000);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(8192, buffer.capacity());
+        buffer.putInt(7);
+        pool.release(buffer);
+        ByteBuffer again = pool.acquire(8000);
+        Assert.assertSame(buffer, again);
+        Assert.assertEquals(0, again.position());
+        Assert.assertEquals(1, pool.getAllocations());
+        // buffers that did not come from the pool are not kept
+        pool.release(ByteBuffer.allocate(8192));
+        Assert.assertNotSame(again, pool.acquire(8192));
+        // larger than any size class
+        Assert.assertFalse(pool.acquire(pool.getMaxRequest() * 2).isDirect());
+    }
+
+    @Test
+    public void replyTest(){
+        ReplyBuffer reply = new ReplyBuffer(pool);
+        reply.writeByte(0x42);
+        reply.writeInt(3);
+        reply.write(new byte[10000]);
+        reply.setByte(0, 0x52);
+        Assert.assertEquals(10005, reply.size());
+        ByteBuffer tagged = reply.finish(true, 0x80, 9);
+        Assert.assertEquals(10009, tagged.remaining());
+        Assert.assertEquals((byte) 0xD2, tagged.get());
+        Assert.assertEquals(9, tagged.getInt());
+        Assert.assertEquals(3, tagged.getInt());
+        reply.release();
+    }
+
+    @Test
+    public void limitTest() throws IOException{
+        ByteBuffer save = ByteBuffer.allocate(17);
+        save.put((byte) 3).putInt(1).putInt(2).putInt(3).putInt(pool.getMaxPayload());
+        save.flip();
+        Assert.assertEquals(17 + pool.getMaxPayload(), Connection.requestLength(save, pool.getMaxRequest()));
+        save.putInt(13, pool.getMaxPayload() + 1024);
+        try {
+            Connection.requestLength(save, pool.getMaxRequest());
+            Assert.fail();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.skinny121;
+
+import com.skinny121.ChunkStore.Table;
+import org.junit.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ChangeFeedTest {
+    private Map map;
+    private Path path;
+    private final BlockingQueue<byte[]> sent = new LinkedBlockingQueue<>();
+    private final Connection.Output output = new Connection.Output() {
+        @Override
+        public void write(byte[] reply){
+            sent.add(reply);
+        }
+
+        @Override
+        public void flush(){
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        map = new Map(path.resolve("test.db").toString());
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        map.close();
+        Files.delete(path.resolve("test.db"));
+        Files.delete(path.resolve("test.db.p"));
+        Files.delete(path.resolve("test.db.t"));
+        Files.delete(path);
+    }
+
+    /**
+     * Reads the positions and versions of a pushed notification.
+     */
+    private List<long[]> next(boolean chunk) throws Exception{
+        byte[] packet = sent.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(packet);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet));
+        Assert.assertEquals(chunk ? 0x5D : 0x7D, in.readByte());
+        List<long[]> changes = new ArrayList<>();
+        for(int count=in.readInt();count>0;count--){
+            changes.add(chunk ? new long[]{in.readInt(), in.readInt(), in.readInt(), in.readLong()}
+                    : new long[]{in.readInt(), in.readInt(), in.readLong()});
+        }
+        return changes;
+    }
+
+    @Test
+    public void boxTest() throws Exception{
+        ChangeFeed.Subscriber subscriber = map.getChanges().subscriber(output);
+        subscriber.subscribe(Table.CHUNKS, pos -> pos.x >= 0 && pos.x <= 4);
+        map.saveChunk(1, 2, 3, new byte[]{1});
+        map.saveChunk(9, 2, 3, new byte[]{1});
+        // nothing is sent until the commit
+        Assert.assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        map.save();
+        List<long[]> changes = next(true);
+        Assert.assertEquals(1, changes.size());
+        Assert.assertArrayEquals(new long[]{1, 2, 3, Map.version(map.getChunk(1, 2, 3, true))}, changes.get(0));
+        subscriber.close();
+        map.saveChunk(1, 2, 3, new byte[]{2});
+        map.save();
+        Assert.assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void columnTest() throws Exception{
+        ChangeFeed.Subscriber subscriber = map.getChanges().subscriber(output);
+        int id = subscriber.subscribe(Table.COLUMNS, pos -> pos.x == 4 && pos.z == -4);
+        map.saveColumn(4, -4, new byte[]{1});
+        map.saveChunk(4, 0, -4, new byte[]{1});
+        map.save();
+        Assert.assertEquals(1, next(false).size());
+        Assert.assertTrue(subscriber.unsubscribe(id));
+        map.saveColumn(4, -4, new byte[]{2});
+        map.save();
+        Assert.assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void slowSubscriberTest() throws Exception{
+        CountDownLatch release = new CountDownLatch(1);
+        ChangeFeed.Subscriber slow = map.getChanges().subscriber(new Connection.Output() {
+            @Override
+            public void write(byte[] reply) throws IOException{
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                sent.add(reply);
+            }
+
+            @Override
+            public void flush(){
+            }
+        });
+        slow.subscribe(Table.CHUNKS, pos -> true);
+        // the first notification blocks, the rest merge while it waits
+        map.saveChunk(0, 0, 0, new byte[]{0});
+        map.save();
+        for(int i=0;i<10;i++){
+            map.saveChunk(1, 1, 1, new byte[]{(byte) i});
+            map.save();
+        }
+        release.countDown();
+        List<long[]> changes = new ArrayList<>();
+        while(changes.isEmpty() || changes.get(changes.size() - 1)[3] != Map.version(map.getChunk(1, 1, 1, true))){
+            changes.addAll(next(true));
+        }
+        // at most the first notification and the merged one
+        Assert.assertTrue(changes.size() <= 3);
+        Assert.assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void unsentTest() throws Exception{
+        CountDownLatch caughtUp = new CountDownLatch(1);
+        ChangeFeed.Subscriber behind = map.getChanges().subscriber(new Connection.Output() {
+            @Override
+            public void write(byte[] reply){
+                sent.add(reply);
+            }
+
+            @Override
+            public void flush(){
+            }
+
+            @Override
+            public void awaitUnsent(int bytes) throws IOException{
+                try {
+                    caughtUp.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        behind.subscribe(Table.COLUMNS, pos -> true);
+        // more changes than can wait while the client has not read what it was sent
+        int[] coords = new int[2 * (ChangeFeed.MAX_PENDING + 1)];
+        byte[][] data = new byte[ChangeFeed.MAX_PENDING + 1][];
+        for(int i=0;i<data.length;i++){
+            coords[2 * i] = i;
+            data[i] = new byte[]{1};
+        }
+        map.saveColumns(coords, data);
+        map.save();
+        // the changes are published in order, so once the next commit is they all have been
+        CountDownLatch published = new CountDownLatch(1);
+        map.getChanges().addListener(keys -> published.countDown());
+        map.save();
+        Assert.assertTrue(published.await(30, TimeUnit.SECONDS));
+        Assert.assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        caughtUp.countDown();
+        byte[] overflow = sent.poll(5, TimeUnit.SECONDS);
+        // told about the table subscribed to
+        Assert.assertArrayEquals(new byte[]{0x7D, -1, -1, -1, -1}, overflow);
+        Assert.assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+        behind.close();
+    }
+}
@@ -0,0 +1,75 @@
+package com.skinny121;
+
+import com.skinny121.ChunkStore.Table;
+import org.junit.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChunkCacheTest {
+    @Test
+    public void scanTest(){
+        ChunkCache cache = new ChunkCache(64 * 1024);
+        byte[] hot = new byte[]{1};
+        // read again, so no longer on probation
+        cache.get(Table.CHUNKS, 0, () -> hot);
+        cache.get(Table.CHUNKS, 0, () -> null);
+        for(int round=0;round<3;round++){
+            // a scan many times the size of the cache, each chunk read once
+            for(long address=1;address<=10000;address++){
+                cache.get(Table.CHUNKS, address, () -> new byte[64]);
+            }
+            Assert.assertArrayEquals(hot, cache.peek(Table.CHUNKS, 0));
+            cache.get(Table.CHUNKS, 0, () -> null);
+        }
+        Assert.assertNull(cache.peek(Table.CHUNKS, 1));
+        Assert.assertTrue(cache.stats().evictionCount() > 0);
+    }
+
+    @Test
+    public void sizeTest(){
+        ChunkCache cache = new ChunkCache(1024 * 1024);
+        // read twice, so they all try to stay protected
+        for(int round=0;round<2;round++){
+            for(long address=0;address<10000;address++){
+                cache.get(Table.COLUMNS, address, () -> new byte[1024]);
+            }
+        }
+        int cached = 0;
+        for(long address=0;address<10000;address++){
+            if(cache.peek(Table.COLUMNS, address) != null){
+                cached++;
+            }
+        }
+        Assert.assertTrue(String.valueOf(cached), cached > 0 && cached * (1024 + 96) <= 1024 * 1024);
+    }
+
+    @Test
+    public void loadTest() throws InterruptedException{
+        ChunkCache cache = new ChunkCache(1024 * 1024);
+        AtomicInteger loads = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for(int i=0;i<threads.length;i++){
+            threads[i] = new Thread(() -> cache.get(Table.CHUNKS, 5, () -> {
+                loads.incrementAndGet();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new byte[]{5};
+            }));
+            threads[i].start();
+        }
+        for(Thread thread:threads){
+            thread.join();
+        }
+        // the lookups of a chunk being loaded wait for the one load
+        Assert.assertEquals(1, loads.get());
+        // saved over while loading, the old data is not cached after
+        cache.get(Table.CHUNKS, 6, () -> {
+            cache.put(Table.CHUNKS, 6, new byte[]{7});
+            return new byte[]{6};
+        });
+        Assert.assertArrayEquals(new byte[]{7}, cache.peek(Table.CHUNKS, 6));
+    }
+}
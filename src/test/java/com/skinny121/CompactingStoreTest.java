@@ -0,0 +1,138 @@
+package com.skinny121;
+
+import com.skinny121.ChunkStore.Table;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+public class CompactingStoreTest {
+    private Path path;
+    private CompactingStore store;
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        store = open(0);
+    }
+
+    private CompactingStore open(long bytesPerSecond){
+        return new CompactingStore(path.resolve("store"), store -> new SegmentStore(store, 64 * 1024), 0,
+                bytesPerSecond);
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        store.close();
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void compactTest() throws Exception{
+        for(int round=0;round<10;round++){
+            for(int i=0;i<100;i++){
+                byte[] data = new byte[1000];
+                data[0] = (byte) round;
+                data[1] = (byte) i;
+                store.save(Table.CHUNKS, i, data);
+            }
+        }
+        store.save(Table.COLUMNS, -1, new byte[]{1});
+        store.setMeta("layout", "MORTON");
+        store.commit();
+        long before = store.diskSize();
+        store.compact().get();
+        Assert.assertTrue(store.diskSize() < before);
+        Assert.assertEquals(9, store.get(Table.CHUNKS, 5)[0]);
+        Assert.assertEquals(5, store.get(Table.CHUNKS, 5)[1]);
+        Assert.assertArrayEquals(new byte[]{1}, store.get(Table.COLUMNS, -1));
+        Assert.assertEquals("MORTON", store.getMeta("layout"));
+        Assert.assertFalse(Files.exists(path.resolve("compacting-store")));
+
+        store.close();
+        store = open(0);
+        Assert.assertEquals(99, store.get(Table.CHUNKS, 99)[1]);
+    }
+
+    @Test
+    public void concurrentTest() throws Exception{
+        for(int i=0;i<1000;i++){
+            store.save(Table.CHUNKS, i, new byte[100]);
+        }
+        store.commit();
+        store.close();
+        // slow enough that the writes below land during the copy
+        store = open(200 * 1000);
+        Iterator<Long> keys = store.keys(Table.CHUNKS, null);
+        Assert.assertEquals(0L, (long) keys.next());
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for(int round=1;!done.get();round++){
+                for(int i=0;i<1000;i+=7){
+                    store.save(Table.CHUNKS, i, new byte[]{(byte) round});
+                }
+                store.save(Table.CHUNKS, 1000 + round, new byte[]{(byte) round});
+            }
+        });
+        writer.start();
+        store.compact().get();
+        done.set(true);
+        writer.join();
+        // the iterator started on the old store carries on in the new one
+        for(long i=1;i<1000;i++){
+            Assert.assertEquals(i, (long) keys.next());
+        }
+        byte[] last = store.get(Table.CHUNKS, 994);
+        Assert.assertEquals(1, last.length);
+        store.commit();
+        store.close();
+        store = open(0);
+        Assert.assertArrayEquals(last, store.get(Table.CHUNKS, 994));
+        Assert.assertEquals(100, store.get(Table.CHUNKS, 1).length);
+    }
+
+    @Test
+    public void interruptedSwitchTest() throws IOException{
+        store.save(Table.CHUNKS, 1, new byte[]{1});
+        store.commit();
+        store.close();
+        SegmentStore compacted = new SegmentStore(path.resolve("compacting-store"), 64 * 1024);
+        compacted.save(Table.CHUNKS, 1, new byte[]{2});
+        compacted.commit();
+        compacted.close();
+
+        // a copy that did not finish is thrown away
+        store = open(0);
+        Assert.assertArrayEquals(new byte[]{1}, store.get(Table.CHUNKS, 1));
+        Assert.assertFalse(Files.exists(path.resolve("compacting-store")));
+        store.close();
+
+        compacted = new SegmentStore(path.resolve("compacting-store"), 64 * 1024);
+        compacted.save(Table.CHUNKS, 1, new byte[]{2});
+        compacted.commit();
+        compacted.close();
+        Files.createFile(path.resolve("compacted-store"));
+        // one that finished takes the old store's place
+        store = open(0);
+        Assert.assertArrayEquals(new byte[]{2}, store.get(Table.CHUNKS, 1));
+        Assert.assertFalse(Files.exists(path.resolve("compacted-store")));
+    }
+
+    @Test
+    public void mapTest() throws Exception{
+        Map map = new Map(path.resolve("test.db").toString());
+        map.saveChunk(1, 2, 3, new byte[]{4});
+        map.saveChunk(1, 2, 3, new byte[]{5});
+        map.save();
+        map.compact().get();
+        Assert.assertArrayEquals(new byte[]{5}, map.getChunk(1, 2, 3));
+        map.close();
+    }
+}
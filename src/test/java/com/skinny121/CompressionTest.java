@@ -0,0 +1,75 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class CompressionTest {
+    /**
+     * Makes data that repeats a shared block of records with a few random bytes changed.
+     */
+    private static List<byte[]> samples(int count){
+        Random random = new Random(3);
+        byte[] shared = new byte[4096];
+        random.nextBytes(shared);
+        List<byte[]> samples = new ArrayList<>();
+        for(int i=0;i<count;i++){
+            byte[] sample = new byte[2048];
+            int start = random.nextInt(shared.length - sample.length);
+            System.arraycopy(shared, start, sample, 0, sample.length);
+            for(int j=0;j<16;j++){
+                sample[random.nextInt(sample.length)] = (byte) random.nextInt();
+            }
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    @Test
+    public void roundTripTest(){
+        List<byte[]> samples = samples(10);
+        byte[] dictionary = Compression.train(samples, 8192);
+        for(Compression compression:new Compression[]{Compression.NONE,
+                new Compression(Compression.Codec.DEFLATE, null),
+                new Compression(Compression.Codec.DEFLATE, dictionary)}){
+            for(byte[] sample:samples){
+                Assert.assertArrayEquals(sample, compression.decode(compression.encode(sample)));
+            }
+            Assert.assertArrayEquals(new byte[0], compression.decode(compression.encode(new byte[0])));
+            Assert.assertNull(compression.decode(null));
+        }
+    }
+
+    @Test
+    public void dictionaryTest(){
+        List<byte[]> samples = samples(200);
+        byte[] dictionary = Compression.train(samples.subList(0, 100), 8192);
+        // only the shared block is worth having
+        Assert.assertTrue(dictionary.length > 2048 && dictionary.length <= 8192);
+        Compression plain = new Compression(Compression.Codec.DEFLATE, null);
+        Compression trained = new Compression(Compression.Codec.DEFLATE, dictionary);
+        int plainSize = 0, trainedSize = 0;
+        for(byte[] sample:samples.subList(100, 200)){
+            plainSize += plain.encode(sample).length;
+            trainedSize += trained.encode(sample).length;
+        }
+        Assert.assertTrue(plainSize + " " + trainedSize, trainedSize * 2 < plainSize);
+    }
+
+    @Test
+    public void sharedTest(){
+        // the deflaters and inflaters of a thread are shared by every instance
+        List<byte[]> samples = samples(20);
+        Compression first = new Compression(Compression.Codec.DEFLATE, Compression.train(samples.subList(0, 10), 4096));
+        Compression second = new Compression(Compression.Codec.DEFLATE, Compression.train(samples.subList(10, 20), 2048));
+        Compression plain = new Compression(Compression.Codec.DEFLATE, null);
+        for(byte[] sample:samples){
+            byte[] a = first.encode(sample), b = second.encode(sample), c = plain.encode(sample);
+            Assert.assertArrayEquals(sample, second.decode(b));
+            Assert.assertArrayEquals(sample, plain.decode(c));
+            Assert.assertArrayEquals(sample, first.decode(a));
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Speaks the protocol over a socket to both the blocking and the NIO server.
+ */
+public class ConnectionTest {
+    private Path path;
+    private Map map;
+
+    private interface Exchange {
+        void run(int port) throws Exception;
+    }
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        map = new Map(new SegmentStore(path, 1 << 20), new MapConfig());
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        map.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for(Path file:files){
+                Files.delete(file);
+            }
+        }
+        Files.delete(path);
+    }
+
+    /**
+     * Runs the exchange against each kind of server in turn.
+     */
+    private void serve(AdmissionControl admission, Exchange exchange) throws Exception{
+        for(boolean nio:new boolean[]{false, true}){
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            MapRegistry registry = MapRegistry.of(map);
+            Server server = nio ? new NioMapServer(port, registry, 2, new BufferPool(), admission)
+                    : new MapServer(port, registry, new BufferPool(), admission);
+            server.accept();
+            try {
+                exchange.run(port);
+            } catch (AssertionError e) {
+                throw new AssertionError((nio ? "NioMapServer: " : "MapServer: ") + e.getMessage(), e);
+            } finally {
+                server.close();
+            }
+        }
+    }
+
+    private static Socket connect(int port) throws IOException{
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    /**
+     * Builds requests to send in one write.
+     */
+    private static final class Requests {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private Requests request(int tag, int... ints) throws IOException{
+            out.writeByte(tag);
+            for(int i:ints){
+                out.writeInt(i);
+            }
+            return this;
+        }
+
+        private Requests writeByte(int b) throws IOException{
+            out.writeByte(b);
+            return this;
+        }
+
+        private Requests writeLong(long l) throws IOException{
+            out.writeLong(l);
+            return this;
+        }
+
+        private Requests writeInt(int i) throws IOException{
+            out.writeInt(i);
+            return this;
+        }
+
+        private void send(Socket socket) throws IOException{
+            socket.getOutputStream().write(bytes.toByteArray());
+            socket.getOutputStream().flush();
+        }
+    }
+
+    private static byte[] readArray(DataInputStream in) throws IOException{
+        int length = in.readInt();
+        if(length < 0){
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    @Test
+    public void taggedTest() throws Exception{
+        map.saveChunk(1, 2, 3, new byte[]{1});
+        map.saveColumn(4, 5, new byte[]{2});
+        serve(new AdmissionControl(), port -> {
+            try (Socket socket = connect(port)) {
+                new Requests().request(0x82, 7, 1, 2, 3).request(0xA2, 8, 4, 5).request(0x82, 9, 0, 0, 0)
+                        .request(0x01, 1, 2, 3).send(socket);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                // tagged lookups are replied to in any order
+                java.util.Map<Integer, byte[]> replies = new HashMap<>();
+                for(int i=0;i<3;i++){
+                    int tag = in.readUnsignedByte();
+                    int correlation = in.readInt();
+                    if(tag == 0xD2 || tag == 0xF2){
+                        replies.put(correlation, readArray(in));
+                    }else{
+                        Assert.assertEquals(0xC2, tag);
+                        replies.put(correlation, null);
+                    }
+                }
+                Assert.assertArrayEquals(new byte[]{1}, replies.get(7));
+                Assert.assertArrayEquals(new byte[]{2}, replies.get(8));
+                Assert.assertTrue(replies.containsKey(9));
+                Assert.assertNull(replies.get(9));
+                // untagged waits for the lookups before it
+                Assert.assertEquals(0x51, in.readUnsignedByte());
+            }
+        });
+    }
+
+    @Test
+    public void manyTest() throws Exception{
+        map.saveChunk(1, 2, 3, new byte[]{1});
+        map.saveColumn(4, 5, new byte[]{2});
+        serve(new AdmissionControl(), port -> {
+            try (Socket socket = connect(port)) {
+                new Requests().request(0x06, 2, 1, 2, 3, 0, 0, 0).request(0x07, 2, 0, 0, 0, 1, 2, 3)
+                        .request(0x27, 1, 4, 5).send(socket);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                Assert.assertEquals(0x46, in.readUnsignedByte());
+                Assert.assertEquals(2, in.readInt());
+                Assert.assertTrue(in.readBoolean());
+                Assert.assertFalse(in.readBoolean());
+                Assert.assertEquals(0x47, in.readUnsignedByte());
+                Assert.assertEquals(2, in.readInt());
+                Assert.assertNull(readArray(in));
+                Assert.assertArrayEquals(new byte[]{1}, readArray(in));
+                Assert.assertEquals(0x67, in.readUnsignedByte());
+                Assert.assertEquals(1, in.readInt());
+                Assert.assertArrayEquals(new byte[]{2}, readArray(in));
+            }
+        });
+    }
+
+    @Test
+    public void listPageTest() throws Exception{
+        Set<List<Integer>> saved = new HashSet<>();
+        for(int x=0;x<3;x++){
+            map.saveChunk(x, -x, 2 * x, new byte[]{(byte) x});
+            saved.add(Arrays.asList(x, -x, 2 * x));
+        }
+        serve(new AdmissionControl(), port -> {
+            try (Socket socket = connect(port)) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                Set<List<Integer>> listed = new HashSet<>();
+                new Requests().request(0x09).writeByte(0).writeLong(0).writeInt(2).send(socket);
+                Assert.assertEquals(0x59, in.readUnsignedByte());
+                Assert.assertEquals(2, in.readInt());
+                for(int i=0;i<2;i++){
+                    listed.add(Arrays.asList(in.readInt(), in.readInt(), in.readInt()));
+                }
+                long cursor = in.readLong();
+                new Requests().request(0x09).writeByte(1).writeLong(cursor).writeInt(2).send(socket);
+                // the last page has no more after it
+                Assert.assertEquals(0x49, in.readUnsignedByte());
+                Assert.assertEquals(1, in.readInt());
+                listed.add(Arrays.asList(in.readInt(), in.readInt(), in.readInt()));
+                in.readLong();
+                Assert.assertEquals(saved, listed);
+            }
+        });
+    }
+
+    @Test
+    public void getIfChangedTest() throws Exception{
+        map.saveChunk(1, 2, 3, new byte[]{7});
+        serve(new AdmissionControl(), port -> {
+            try (Socket socket = connect(port)) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                new Requests().request(0x0C, 1, 2, 3).writeLong(0).send(socket);
+                Assert.assertEquals(0x5C, in.readUnsignedByte());
+                long version = in.readLong();
+                Assert.assertNotEquals(0, version);
+                Assert.assertArrayEquals(new byte[]{7}, readArray(in));
+                // nothing follows an unchanged reply, so the next reply comes straight after it
+                new Requests().request(0x0C, 1, 2, 3).writeLong(version).request(0x01, 1, 2, 3).send(socket);
+                Assert.assertEquals(0x4C, in.readUnsignedByte());
+                Assert.assertEquals(0x51, in.readUnsignedByte());
+            }
+        });
+    }
+
+    @Test
+    public void busyTest() throws Exception{
+        // a single request, and then hardly any more
+        serve(new AdmissionControl(0, 0, 0, 0.001, 0), port -> {
+            try (Socket socket = connect(port)) {
+                new Requests().request(0x02, 1, 2, 3).request(0x02, 1, 2, 3).request(0x82, 5, 1, 2, 3)
+                        .send(socket);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                Assert.assertEquals(0x42, in.readUnsignedByte());
+                Assert.assertEquals(0x50, in.readUnsignedByte());
+                Assert.assertEquals(0x02, in.readUnsignedByte());
+                Assert.assertEquals(0xD0, in.readUnsignedByte());
+                Assert.assertEquals(5, in.readInt());
+                Assert.assertEquals(0x82, in.readUnsignedByte());
+            }
+        });
+        serve(new AdmissionControl(1, 0, 0, 0, 0), port -> {
+            try (Socket first = connect(port)) {
+                // answered, so it is counted before the second connects
+                new Requests().request(0x01, 1, 2, 3).send(first);
+                Assert.assertEquals(0x41, first.getInputStream().read());
+                try (Socket second = connect(port)) {
+                    DataInputStream in = new DataInputStream(second.getInputStream());
+                    Assert.assertEquals(0x50, in.readUnsignedByte());
+                    Assert.assertEquals(0x00, in.readUnsignedByte());
+                    Assert.assertEquals(-1, in.read());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void invalidCountTest() throws Exception{
+        map.saveChunk(1, 2, 3, new byte[]{1});
+        serve(new AdmissionControl(), port -> {
+            for(int count:new int[]{-1, Integer.MAX_VALUE / 4}){
+                try (Socket socket = connect(port)) {
+                    new Requests().request(0x07, count, 1, 2, 3).send(socket);
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    // closed without a reply, the blocking server may send a last 0 first
+                    int b;
+                    while((b = in.read()) >= 0){
+                        Assert.assertEquals(0, b);
+                    }
+                }
+            }
+            // and the server goes on serving others
+            try (Socket socket = connect(port)) {
+                new Requests().request(0x01, 1, 2, 3).send(socket);
+                Assert.assertEquals(0x51, socket.getInputStream().read());
+            }
+        });
+    }
+}
@@ -0,0 +1,69 @@
+package com.skinny121;
+
+import com.skinny121.ChunkStore.Table;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class ExistenceFilterTest {
+
+    @Test
+    public void addTest(){
+        ExistenceFilter filter = new ExistenceFilter(0);
+        Assert.assertFalse(filter.mightContain(5));
+        long bytes = filter.getBytes();
+        Random random = new Random(1);
+        long[] keys = new long[200000];
+        for(int i=0;i<keys.length;i++){
+            keys[i] = random.nextLong();
+            filter.add(keys[i]);
+        }
+        // it grew past what it was sized for
+        Assert.assertTrue(filter.getBytes() > bytes);
+        for(long key:keys){
+            Assert.assertTrue(filter.mightContain(key));
+        }
+        int positives = 0;
+        for(int i=0;i<100000;i++){
+            if(filter.mightContain(random.nextLong())){
+                positives++;
+            }
+        }
+        Assert.assertTrue("false positives " + positives, positives < 3000);
+    }
+
+    @Test
+    public void mapTest() throws IOException{
+        Path path = Files.createTempDirectory(null);
+        SegmentStore store = new SegmentStore(path, 4096);
+        try {
+            Map map = new Map(store, new MapConfig());
+            map.saveChunk(1, 2, 3, new byte[]{1});
+            map.saveColumns(new int[]{4, 5}, new byte[][]{{2}});
+            Assert.assertTrue(map.containsChunk(1, 2, 3));
+            Assert.assertFalse(map.containsChunk(1, 2, 4));
+            Assert.assertNull(map.getColumn(5, 4));
+            // built from the keys in the store
+            map = new Map(store, new MapConfig());
+            Assert.assertTrue(map.containsChunk(1, 2, 3));
+            Assert.assertArrayEquals(new byte[]{2}, map.getColumn(4, 5));
+            boolean[] found = map.containsChunks(new int[]{1, 2, 3, 3, 2, 1});
+            Assert.assertTrue(found[0]);
+            Assert.assertFalse(found[1]);
+            map.saveChunk(3, 2, 1, new byte[]{3});
+            Assert.assertTrue(map.containsChunk(3, 2, 1));
+        } finally {
+            store.close();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                for(Path file:files){
+                    Files.delete(file);
+                }
+            }
+            Files.delete(path);
+        }
+    }
+}
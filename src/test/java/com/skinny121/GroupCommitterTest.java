@@ -0,0 +1,81 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GroupCommitterTest {
+    private Path path;
+    private SlowStore store;
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        store = new SlowStore(path);
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        store.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for(Path file:files){
+                Files.delete(file);
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void batchTest(){
+        GroupCommitter committer = new GroupCommitter(store::commit, 20000, 8);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for(int i=0;i<20;i++){
+            futures.add(committer.commit());
+        }
+        for(CompletableFuture<Void> future:futures){
+            future.join();
+        }
+        committer.close();
+        Assert.assertEquals(20, committer.getCommits());
+        Assert.assertEquals(3, committer.getBatches());
+        Assert.assertEquals(3, store.commits.get());
+        Assert.assertEquals(8, committer.getLargestBatch());
+        Assert.assertTrue(committer.getMaxLatencyMicros() >= committer.getMeanLatencyMicros());
+    }
+
+    @Test
+    public void durableTest(){
+        GroupCommitter committer = new GroupCommitter(store::commit, 0, 64);
+        store.save(ChunkStore.Table.CHUNKS, 1, new byte[]{1});
+        committer.commit().join();
+        Assert.assertEquals(1, store.commits.get());
+        committer.close();
+        Assert.assertTrue(committer.commit().isCompletedExceptionally());
+    }
+
+    private static class SlowStore extends SegmentStore {
+        private final AtomicInteger commits = new AtomicInteger();
+
+        private SlowStore(Path directory){
+            super(directory, 4096);
+        }
+
+        @Override
+        public void commit(){
+            commits.incrementAndGet();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            super.commit();
+        }
+    }
+}
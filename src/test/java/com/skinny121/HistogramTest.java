@@ -0,0 +1,38 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.util.Random;
+
+public class HistogramTest {
+    @Test
+    public void bucketTest(){
+        long previous = -1;
+        for(int bucket=0;bucket<Histogram.bucket(Long.MAX_VALUE);bucket++){
+            long highest = Histogram.highest(bucket);
+            Assert.assertEquals(bucket, Histogram.bucket(previous + 1));
+            Assert.assertEquals(bucket, Histogram.bucket(highest));
+            // within about 6%
+            Assert.assertTrue(highest - previous <= Math.max(1, (previous + 1) / 16 + 1));
+            previous = highest;
+        }
+        Assert.assertEquals(Long.MAX_VALUE, Histogram.highest(Histogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentileTest(){
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.getPercentile(0.5));
+        Random random = new Random(5);
+        for(int i=0;i<100000;i++){
+            histogram.record(random.nextInt(1000000));
+        }
+        histogram.record(5000000);
+        Assert.assertEquals(100001, histogram.getCount());
+        Assert.assertEquals(5000000, histogram.getMax());
+        Assert.assertEquals(500000, histogram.getPercentile(0.5), 500000 / 16);
+        Assert.assertEquals(990000, histogram.getPercentile(0.99), 990000 / 16);
+        Assert.assertEquals(5000000, histogram.getPercentile(1));
+        Assert.assertEquals(500000, histogram.getMean(), 10000);
+    }
+}
@@ -0,0 +1,92 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.util.List;
+import java.util.Random;
+
+public class KeyLayoutTest {
+    private static final int[][] CORNERS = {
+            {0, 0, 0}, {-1, -1, -1}, {(1<<21)-1, (1<<19)-1, (1<<21)-1},
+            {-(1<<21), -(1<<19), -(1<<21)}, {12, -4, -7}};
+
+    @Test
+    public void roundTripTest(){
+        Random random = new Random(1);
+        for(KeyLayout layout:KeyLayout.values()){
+            for(int i=0;i<10000;i++){
+                int x = random.nextInt(1<<22) - (1<<21);
+                int y = random.nextInt(1<<20) - (1<<19);
+                int z = random.nextInt(1<<22) - (1<<21);
+                check(layout, x, y, z);
+            }
+            for(int[] c:CORNERS){
+                check(layout, c[0], c[1], c[2]);
+            }
+        }
+    }
+
+    private void check(KeyLayout layout, int x, int y, int z){
+        long address = layout.address(x, y, z);
+        Assert.assertEquals(layout + " x", x, layout.x(address));
+        Assert.assertEquals(layout + " y", y, layout.y(address));
+        Assert.assertEquals(layout + " z", z, layout.z(address));
+    }
+
+    @Test
+    public void legacyAddressTest(){
+        // the layout of existing stores must not change
+        Assert.assertEquals((5L << 44) | (3L << 22) | 7L, KeyLayout.LEGACY.address(3, 5, 7));
+    }
+
+    @Test
+    public void mortonOrderTest(){
+        // the corner nearest negative infinity sorts first and the furthest last
+        long low = KeyLayout.MORTON.address(-(1<<21), -(1<<19), -(1<<21));
+        long high = KeyLayout.MORTON.address((1<<21)-1, (1<<19)-1, (1<<21)-1);
+        Assert.assertEquals(Long.MIN_VALUE, low);
+        Assert.assertEquals(Long.MAX_VALUE, high);
+        Assert.assertTrue(KeyLayout.MORTON.address(-1, 0, 0) < KeyLayout.MORTON.address(0, 0, 0));
+    }
+
+    @Test
+    public void rangesCoverBoxTest(){
+        for(KeyLayout layout:KeyLayout.values()){
+            for(int maxRanges:new int[]{2, 16, 256}){
+                List<long[]> ranges = layout.ranges(-3, -2, -5, 4, 1, 2, maxRanges);
+                Assert.assertTrue(ranges.size() <= maxRanges);
+                for(int i=1;i<ranges.size();i++){
+                    Assert.assertTrue(ranges.get(i-1)[1] < ranges.get(i)[0]);
+                }
+                for(int x=-3;x<=4;x++){
+                    for(int y=-2;y<=1;y++){
+                        for(int z=-5;z<=2;z++){
+                            Assert.assertTrue(layout + " covers", covered(ranges, layout.address(x, y, z)));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mortonRangesAreTightTest(){
+        // an aligned box splits fully into ranges holding nothing else
+        List<long[]> ranges = KeyLayout.MORTON.ranges(0, 0, 0, 7, 7, 7, 256);
+        long size = 0;
+        for(long[] range:ranges){
+            size += range[1] - range[0] + 1;
+        }
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertEquals(512, size);
+    }
+
+    private static boolean covered(List<long[]> ranges, long address){
+        for(long[] range:ranges){
+            if(address >= range[0] && address <= range[1]){
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,138 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+public class MapRegistryTest {
+    private Path path;
+    private MapRegistry registry;
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        Files.createDirectory(path.resolve("other"));
+        // nothing is closed for being idle unless closeIdle is called
+        registry = new MapRegistry(path, new MapConfig().withCacheBytes(1024 * 1024), 0, 2);
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        registry.close();
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void acquireTest(){
+        Map overworld = registry.acquire(MapRegistry.DEFAULT_WORLD, 0);
+        Assert.assertSame(overworld, registry.acquire(MapRegistry.DEFAULT_WORLD, 0));
+        Map nether = registry.acquire(MapRegistry.DEFAULT_WORLD, -1);
+        Assert.assertNotSame(overworld, nether);
+        overworld.saveChunk(1, 2, 3, new byte[]{1});
+        Assert.assertNull(nether.getChunk(1, 2, 3));
+        Assert.assertTrue(Files.exists(path.resolve("cubes.dim-1.db")));
+        Assert.assertSame(overworld.getMetrics(), nether.getMetrics());
+        Assert.assertSame(registry.getMetrics(), nether.getMetrics());
+
+        Map other = registry.acquire("other", 0);
+        other.saveColumn(4, 5, new byte[]{2});
+        Assert.assertNull(overworld.getColumn(4, 5));
+        Assert.assertTrue(Files.exists(path.resolve("other").resolve("cubes.dim0.db")));
+    }
+
+    @Test
+    public void invalidWorldTest(){
+        for(String world:new String[]{"missing", "../other", "other/../other"}){
+            try {
+                registry.acquire(world, 0);
+                Assert.fail(world);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        Assert.assertTrue(registry.getOpen().isEmpty());
+    }
+
+    @Test
+    public void closeTest(){
+        Map overworld = registry.acquire(MapRegistry.DEFAULT_WORLD, 0);
+        Map nether = registry.acquire(MapRegistry.DEFAULT_WORLD, -1);
+        nether.saveChunk(1, 1, 1, new byte[]{3});
+        registry.release(nether);
+        Assert.assertEquals(1, registry.closeIdle());
+        Assert.assertEquals(1, registry.getOpen().size());
+        // committed when it was closed
+        nether = registry.acquire(MapRegistry.DEFAULT_WORLD, -1);
+        Assert.assertArrayEquals(new byte[]{3}, nether.getChunk(1, 1, 1));
+        registry.release(nether);
+
+        // a third is over the limit, so the unused one is closed
+        registry.acquire("other", 0);
+        Assert.assertEquals(2, registry.getOpen().size());
+        Assert.assertFalse(registry.getOpen().contains(nether));
+        Assert.assertTrue(registry.getOpen().contains(overworld));
+    }
+
+    @Test(timeout = 10000)
+    public void openOutsideLockTest() throws Exception{
+        CountDownLatch opening = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        registry.close();
+        registry = new MapRegistry(path, new MapConfig(), 0, 2){
+            @Override
+            Map openMap(String world, int dimension){
+                if(world.equals("other")){
+                    opening.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return super.openMap(world, dimension);
+            }
+        };
+        Map overworld = registry.acquire(MapRegistry.DEFAULT_WORLD, 0);
+        Map[] other = new Map[2];
+        Thread[] threads = new Thread[2];
+        for(int i=0;i<threads.length;i++){
+            int index = i;
+            threads[i] = new Thread(() -> other[index] = registry.acquire("other", 0));
+            threads[i].start();
+        }
+        opening.await();
+        // the open in progress does not hold up other stores
+        Assert.assertSame(overworld, registry.acquire(MapRegistry.DEFAULT_WORLD, 0));
+        registry.release(overworld);
+        Assert.assertEquals(1, registry.getOpen().size());
+        proceed.countDown();
+        for(Thread thread:threads){
+            thread.join();
+        }
+        // both waited for the same open
+        Assert.assertNotNull(other[0]);
+        Assert.assertSame(other[0], other[1]);
+        Assert.assertEquals(2, registry.getOpen().size());
+    }
+
+    @Test
+    public void singleTest(){
+        Map map = registry.acquire(MapRegistry.DEFAULT_WORLD, 0);
+        MapRegistry single = MapRegistry.of(map);
+        Assert.assertSame(map, single.acquire(MapRegistry.DEFAULT_WORLD, 0));
+        single.release(map);
+        try {
+            single.acquire(MapRegistry.DEFAULT_WORLD, 1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+        }
+        single.close();
+        Assert.assertNull(map.getChunk(0, 0, 0));
+    }
+}
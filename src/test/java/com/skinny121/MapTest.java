@@ -5,6 +5,10 @@ import org.junit.*;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 public class MapTest {
     private Map map;
@@ -48,4 +52,210 @@ public class MapTest {
         Assert.assertArrayEquals(new byte[]{0, 2, -1}, map.getColumn(-3, 1));
         Assert.assertFalse(map.containsColumn(-3, 5));
     }
+
+    @Test
+    public void saveManyTest(){
+        map.saveChunks(new int[]{1, 2, 3, -1, 0, 4, 1, 2, 3}, new byte[][]{{1}, {2}, {3}});
+        map.saveColumns(new int[]{5, -5}, new byte[][]{{4}});
+        Assert.assertEquals(2, map.getChunks().size());
+        Assert.assertArrayEquals(new byte[]{3}, map.getChunk(1, 2, 3));
+        Assert.assertArrayEquals(new byte[]{2}, map.getChunk(-1, 0, 4));
+        Assert.assertArrayEquals(new byte[]{4}, map.getColumn(5, -5));
+    }
+
+    @Test
+    public void lookupManyTest(){
+        map.saveChunk(5, 0, 1, new byte[]{1});
+        map.saveChunk(-5, 3, 1, new byte[]{2});
+        map.saveColumn(4, -4, new byte[]{3});
+        int[] chunks = {-5, 3, 1, 0, 0, 0, 5, 0, 1};
+        Assert.assertArrayEquals(new Object[]{new byte[]{2}, null, new byte[]{1}},
+                map.lookupChunks(chunks));
+        boolean[] contains = map.containsChunks(chunks);
+        Assert.assertTrue(contains[0]);
+        Assert.assertFalse(contains[1]);
+        Assert.assertTrue(contains[2]);
+        Assert.assertArrayEquals(new Object[]{null, new byte[]{3}},
+                map.lookupColumns(new int[]{4, 4, 4, -4}));
+        Assert.assertTrue(map.containsColumns(new int[]{4, -4})[0]);
+    }
+
+    @Test
+    public void boxTest() throws IOException{
+        Path other = path.resolve("morton.db");
+        Map morton = new Map(other.toString(), KeyLayout.MORTON);
+        try {
+            for(Map m:new Map[]{map, morton}){
+                for(int x=-4;x<4;x++){
+                    for(int y=-4;y<4;y++){
+                        for(int z=-4;z<4;z++){
+                            m.saveChunk(x, y, z, new byte[]{(byte) x, (byte) y, (byte) z});
+                        }
+                    }
+                    m.saveColumn(x, -x, new byte[]{(byte) x});
+                }
+                List<java.util.Map.Entry<Map.Pos, byte[]>> box = m.getChunks(-1, -2, -3, 1, 0, 3);
+                Assert.assertEquals(3 * 3 * 7, box.size());
+                for(java.util.Map.Entry<Map.Pos, byte[]> entry:box){
+                    Map.Pos pos = entry.getKey();
+                    Assert.assertTrue(pos.x >= -1 && pos.x <= 1 && pos.y >= -2 && pos.y <= 0
+                            && pos.z >= -3 && pos.z <= 3);
+                    Assert.assertArrayEquals(new byte[]{(byte) pos.x, (byte) pos.y, (byte) pos.z},
+                            entry.getValue());
+                }
+                Assert.assertEquals(3, m.getColumns(-2, -10, 0, 10).size());
+            }
+        } finally {
+            morton.close();
+            Files.delete(other);
+            Files.delete(path.resolve("morton.db.p"));
+            Files.delete(path.resolve("morton.db.t"));
+        }
+    }
+
+    @Test
+    public void copyToTest() throws IOException{
+        Path other = path.resolve("copy.db");
+        Map morton = new Map(other.toString(), KeyLayout.MORTON);
+        try {
+            map.saveChunk(-7, 3, 9, new byte[]{4});
+            map.saveColumn(-7, 9, new byte[]{5});
+            map.copyTo(morton);
+            Assert.assertEquals(KeyLayout.MORTON, morton.getLayout());
+            Assert.assertArrayEquals(new byte[]{4}, morton.getChunk(-7, 3, 9));
+            Assert.assertArrayEquals(new byte[]{5}, morton.getColumn(-7, 9));
+            Assert.assertArrayEquals(new int[]{3}, morton.getCubeYs(-7, 9));
+        } finally {
+            morton.close();
+            Files.delete(other);
+            Files.delete(path.resolve("copy.db.p"));
+            Files.delete(path.resolve("copy.db.t"));
+        }
+    }
+
+    @Test
+    public void columnChunksTest(){
+        map.saveChunk(1, 5, 2, new byte[]{5});
+        map.saveChunk(1, -3, 2, new byte[]{-3});
+        map.saveChunks(new int[]{1, 9, 2, 1, 0, 2, 2, 4, 2}, new byte[][]{{9}, {0}, {4}});
+        // saving again does not repeat it in the index
+        map.saveChunk(1, 5, 2, new byte[]{6});
+        Assert.assertArrayEquals(new int[]{-3, 0, 5, 9}, map.getCubeYs(1, 2));
+        Assert.assertArrayEquals(new int[]{4}, map.getCubeYs(2, 2));
+        Assert.assertArrayEquals(new int[0], map.getCubeYs(3, 2));
+        List<java.util.Map.Entry<Map.Pos, byte[]>> chunks = map.getColumnChunks(1, 2, 0, 8, false);
+        Assert.assertEquals(2, chunks.size());
+        Assert.assertEquals(map.new Pos(1, 0, 2), chunks.get(0).getKey());
+        Assert.assertArrayEquals(new byte[]{6}, chunks.get(1).getValue());
+    }
+
+    @Test
+    public void iterateTest(){
+        for(int i=0;i<10;i++){
+            map.saveChunk(i, -i, i, new byte[]{(byte) i});
+        }
+        Iterator<Map.Pos> first = map.iterateChunks(null);
+        Map.Pos last = null;
+        for(int i=0;i<4;i++){
+            last = first.next();
+        }
+        // resuming after the last position of a page gives the rest
+        Set<Map.Pos> seen = new HashSet<>(map.getChunks().subList(0, 4));
+        Iterator<Map.Pos> rest = map.iterateChunks(last.key());
+        while(rest.hasNext()){
+            Assert.assertTrue(seen.add(rest.next()));
+        }
+        Assert.assertEquals(10, seen.size());
+        Assert.assertFalse(map.iterateColumns(null).hasNext());
+    }
+
+    @Test
+    public void compressionTest() throws IOException{
+        Path other = path.resolve("compressed.db");
+        byte[] data = new byte[1000];
+        data[500] = 4;
+        Map compressed = new Map(other.toString(), new MapConfig()
+                .withCompression(new Compression(Compression.Codec.DEFLATE, null)));
+        try {
+            compressed.saveChunk(1, 2, 3, data);
+            compressed.saveColumns(new int[]{4, 5}, new byte[][]{data});
+            compressed.save();
+            Assert.assertArrayEquals(data, compressed.getChunk(1, 2, 3));
+            Assert.assertArrayEquals(data, compressed.lookupColumns(new int[]{4, 5})[0]);
+            Assert.assertTrue(compressed.getChunk(1, 2, 3, true).length < 100);
+            Assert.assertArrayEquals(data, compressed.getCompression()
+                    .decode(compressed.getChunks(0, 0, 0, 2, 2, 3, true).get(0).getValue()));
+            // the copy decompresses into a store without compression
+            compressed.copyTo(map);
+            Assert.assertArrayEquals(data, map.getChunk(1, 2, 3, true));
+            Assert.assertArrayEquals(data, map.getColumn(4, 5));
+        } finally {
+            compressed.close();
+        }
+        // the compression is kept by the store
+        compressed = new Map(other.toString());
+        try {
+            Assert.assertEquals(Compression.Codec.DEFLATE, compressed.getCompression().getCodec());
+            Assert.assertArrayEquals(data, compressed.getColumn(4, 5));
+        } finally {
+            compressed.close();
+            Files.delete(other);
+            Files.delete(path.resolve("compressed.db.p"));
+            Files.delete(path.resolve("compressed.db.t"));
+        }
+    }
+
+    @Test
+    public void versionTest(){
+        Assert.assertEquals(0, Map.version(map.getChunk(1, 2, 3, true)));
+        map.saveChunk(1, 2, 3, new byte[]{1});
+        long first = Map.version(map.getChunk(1, 2, 3, true));
+        Assert.assertNotEquals(0, first);
+        map.saveChunk(1, 2, 3, new byte[]{2});
+        long second = Map.version(map.getChunk(1, 2, 3, true));
+        Assert.assertNotEquals(first, second);
+        map.saveChunk(1, 2, 3, new byte[]{1});
+        Assert.assertEquals(first, Map.version(map.getChunk(1, 2, 3, true)));
+    }
+
+    @Test
+    public void keptVersionTest(){
+        Assert.assertEquals(0, map.getChunkVersion(1, 2, 3));
+        Assert.assertEquals(0, map.getColumnVersion(1, 3));
+        // the versions kept follow every kind of save
+        map.saveChunk(1, 2, 3, new byte[]{1});
+        Assert.assertEquals(Map.version(map.getChunk(1, 2, 3, true)), map.getChunkVersion(1, 2, 3));
+        map.saveChunks(new int[]{1, 2, 3, 4, 5, 6}, new byte[][]{{2}, {3}});
+        Assert.assertEquals(Map.version(map.getChunk(1, 2, 3, true)), map.getChunkVersion(1, 2, 3));
+        Assert.assertEquals(Map.version(map.getChunk(4, 5, 6, true)), map.getChunkVersion(4, 5, 6));
+        map.saveColumn(1, 3, new byte[]{4});
+        Assert.assertEquals(Map.version(map.getColumn(1, 3, true)), map.getColumnVersion(1, 3));
+        Assert.assertEquals(0, map.getColumnVersion(4, 6));
+    }
+
+    @Test
+    public void cacheTest() throws IOException{
+        Path other = path.resolve("cached.db");
+        // without the filter, which would answer the absent chunk before the cache
+        Map cached = new Map(other.toString(), new MapConfig().withCacheBytes(1024 * 1024).withExistenceFilter(false));
+        try {
+            ChunkCache cache = cached.getCache();
+            Assert.assertNull(cached.getChunk(1, 2, 3));
+            Assert.assertEquals(1, cache.missCount());
+            // write through replaces the cached absence
+            cached.saveChunk(1, 2, 3, new byte[]{9});
+            Assert.assertTrue(cached.containsChunk(1, 2, 3));
+            Assert.assertArrayEquals(new byte[]{9}, cached.getChunk(1, 2, 3));
+            Assert.assertArrayEquals(new byte[]{9}, cached.lookupChunks(new int[]{1, 2, 3})[0]);
+            Assert.assertEquals(2, cache.hitCount());
+            Assert.assertEquals(1, cache.missCount());
+            // a column with the same address is kept apart
+            Assert.assertNull(cached.getColumn(1, 3));
+        } finally {
+            cached.close();
+            Files.delete(other);
+            Files.delete(path.resolve("cached.db.p"));
+            Files.delete(path.resolve("cached.db.t"));
+        }
+    }
 }
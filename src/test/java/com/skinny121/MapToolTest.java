@@ -0,0 +1,83 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+public class MapToolTest {
+    private Path path;
+    private Map map;
+    private ForkJoinPool pool = new ForkJoinPool(4);
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        map = new Map(path.resolve("from.db").toString(), new MapConfig().withLayout(KeyLayout.LEGACY));
+        for(int i=0;i<10000;i++){
+            map.saveChunk(i % 37 - 18, i % 11 - 5, i / 37, new byte[]{(byte) i, (byte) (i >> 8)});
+        }
+        map.saveColumn(-3, 4, new byte[]{7});
+        map.save();
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        map.close();
+        pool.shutdown();
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private void assertSameData(Map other){
+        Assert.assertEquals(map.getChunks().size(), other.getChunks().size());
+        for(Map.Pos pos:map.getChunks()){
+            Assert.assertArrayEquals(map.getChunk(pos.x, pos.y, pos.z), other.getChunk(pos.x, pos.y, pos.z));
+        }
+        Assert.assertArrayEquals(new byte[]{7}, other.getColumn(-3, 4));
+        Assert.assertArrayEquals(map.getCubeYs(-18, 0), other.getCubeYs(-18, 0));
+    }
+
+    @Test
+    public void loadStoreTest(){
+        Map morton = new Map(path.resolve("to.db").toString(), new MapConfig().withLayout(KeyLayout.MORTON)
+                .withCompression(new Compression(Compression.Codec.DEFLATE, null)));
+        MapTool.loadStore(map, morton, pool);
+        assertSameData(morton);
+        Assert.assertEquals(KeyLayout.MORTON, morton.getLayout());
+        morton.close();
+    }
+
+    @Test
+    public void sinkLoadTest(){
+        // opening the map, and so building its filters, must leave the tables to be built bottom up
+        MapDbStore store = new MapDbStore(path.resolve("sink.db"));
+        Map loaded = new Map(store, new MapConfig());
+        MapTool.loadStore(map, loaded, pool);
+        Assert.assertEquals(3, store.getSinkLoads());
+        assertSameData(loaded);
+        loaded.close();
+    }
+
+    @Test
+    public void exportLoadTest() throws IOException{
+        MapTool.export(map, path.resolve("dump"), pool);
+        Assert.assertTrue(Files.exists(path.resolve("dump").resolve("chunks").resolve("-18.-5.0.dat")));
+        Assert.assertTrue(Files.exists(path.resolve("dump").resolve("columns").resolve("-3.4.dat")));
+        Map loaded = new Map(new SegmentStore(path.resolve("to"), 1 << 20), new MapConfig().withLayout(KeyLayout.MORTON));
+        MapTool.loadDump(path.resolve("dump"), loaded, pool);
+        assertSameData(loaded);
+        loaded.close();
+    }
+
+    @Test
+    public void sortedOrderTest(){
+        Assert.assertArrayEquals(new int[]{0, 1, 2}, MapTool.sortedOrder(new long[]{-5, 3, 9}));
+        Assert.assertArrayEquals(new int[]{2, 0, 3, 1}, MapTool.sortedOrder(new long[]{4, 10, Long.MIN_VALUE, 5}));
+    }
+}
@@ -0,0 +1,152 @@
+package com.skinny121;
+
+import com.skinny121.ChunkStore.Table;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ReadAheadTest {
+    private Path path;
+    private SegmentStore store;
+    private Prefetcher prefetcher;
+    private Map map;
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        store = new SegmentStore(path, 1024 * 1024);
+        // a queue long enough that no prefetch of a walk is dropped
+        prefetcher = new Prefetcher(2, 1, 64);
+        Map saved = new Map(store, new MapConfig());
+        for(int x=-8;x<48;x++){
+            for(int z=-4;z<=4;z++){
+                saved.saveColumn(x, z, new byte[]{(byte) x});
+                for(int y=0;y<4;y++){
+                    saved.saveChunk(x, y, z, new byte[]{(byte) y});
+                }
+            }
+        }
+        // opened again so that nothing is cached yet
+        map = new Map(store, new MapConfig().withCacheBytes(16 * 1024 * 1024).withPrefetcher(prefetcher));
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        prefetcher.close();
+        store.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for(Path file:files){
+                Files.delete(file);
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void cacheTest(){
+        ChunkCache cache = new ChunkCache(1024);
+        Assert.assertTrue(cache.prefetch(Table.CHUNKS, 1, () -> new byte[]{1}));
+        Assert.assertFalse(cache.prefetch(Table.CHUNKS, 1, () -> new byte[]{2}));
+        Assert.assertArrayEquals(new byte[]{1}, cache.get(Table.CHUNKS, 1, () -> null));
+        Assert.assertTrue(cache.usePrefetched(Table.CHUNKS, 1));
+        Assert.assertFalse(cache.usePrefetched(Table.CHUNKS, 1));
+        Assert.assertEquals(0, cache.missCount());
+        // saved over before it was read
+        Assert.assertTrue(cache.prefetch(Table.COLUMNS, 1, () -> null));
+        cache.put(Table.COLUMNS, 1, new byte[]{3});
+        Assert.assertFalse(cache.usePrefetched(Table.COLUMNS, 1));
+    }
+
+    @Test
+    public void movingTest() throws InterruptedException{
+        ReadAhead readAhead = map.newReadAhead();
+        // a player walking along x, with the client reading the new edge of its view each step
+        for(int x=0;x<20;x++){
+            walk(readAhead, x);
+        }
+        Metrics metrics = map.getMetrics();
+        awaitPrefetches();
+        Assert.assertTrue(metrics.getPrefetched() > 0);
+        long used = metrics.getPrefetchesUsed();
+        // every chunk of the next step was read ahead
+        walk(readAhead, 20);
+        Assert.assertEquals(used + 36, metrics.getPrefetchesUsed());
+    }
+
+    @Test
+    public void returnTest() throws InterruptedException{
+        ReadAhead readAhead = map.newReadAhead();
+        for(int x=0;x<20;x++){
+            walk(readAhead, x);
+        }
+        awaitPrefetches();
+        // stands elsewhere long enough for the walk to be forgotten, and for
+        // what was read ahead to leave the cache
+        for(int i=0;i<15;i++){
+            for(int x=36;x<=44;x++){
+                for(int z=-4;z<=4;z++){
+                    map.getChunk(x, 0, z);
+                    readAhead.readChunk(x, 0, z);
+                }
+            }
+        }
+        awaitPrefetches();
+        map.getCache().invalidateAll();
+        Metrics metrics = map.getMetrics();
+        long prefetched = metrics.getPrefetched();
+        for(int x=0;x<20;x++){
+            walk(readAhead, x);
+        }
+        awaitPrefetches();
+        Assert.assertTrue(metrics.getPrefetched() > prefetched);
+        long used = metrics.getPrefetchesUsed();
+        walk(readAhead, 20);
+        Assert.assertEquals(used + 36, metrics.getPrefetchesUsed());
+    }
+
+    @Test
+    public void standingTest() throws InterruptedException{
+        ReadAhead readAhead = map.newReadAhead();
+        long prefetched = 0;
+        for(int i=0;i<20;i++){
+            for(int x=-4;x<=4;x++){
+                for(int z=-4;z<=4;z++){
+                    map.getChunk(x, 0, z);
+                    readAhead.readChunk(x, 0, z);
+                }
+            }
+            if(i == 0){
+                // the first pass over the view looks like it is moving
+                awaitPrefetches();
+                prefetched = map.getMetrics().getPrefetched();
+            }
+        }
+        awaitPrefetches();
+        Assert.assertEquals(prefetched, map.getMetrics().getPrefetched());
+    }
+
+    /**
+     * Waits until nothing more has been prefetched for a while.
+     */
+    private void awaitPrefetches() throws InterruptedException{
+        long last = -1;
+        for(int quiet=0;quiet<5;){
+            Thread.sleep(20);
+            long prefetched = map.getMetrics().getPrefetched();
+            quiet = prefetched == last ? quiet + 1 : 0;
+            last = prefetched;
+        }
+    }
+
+    private void walk(ReadAhead readAhead, int x){
+        for(int z=-4;z<=4;z++){
+            for(int y=0;y<4;y++){
+                Assert.assertArrayEquals(new byte[]{(byte) y}, map.getChunk(x + 4, y, z));
+                readAhead.readChunk(x + 4, y, z);
+            }
+        }
+    }
+}
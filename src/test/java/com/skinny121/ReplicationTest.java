@@ -0,0 +1,108 @@
+package com.skinny121;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+public class ReplicationTest {
+    private Path path;
+    private Map primary;
+    private Replicator replicator;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        primary = new Map(new SegmentStore(path.resolve("primary"), 64 * 1024),
+                new MapConfig().withLayout(KeyLayout.MORTON)
+                        .withCompression(new Compression(Compression.Codec.DEFLATE, null)));
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        replicator = new Replicator(port, primary);
+        replicator.accept();
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        replicator.close();
+        primary.close();
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!condition.getAsBoolean()){
+            if(System.currentTimeMillis() > deadline){
+                Assert.fail("Timed out");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void replicateTest() throws Exception{
+        // saved before the replica connects, so it is in the snapshot
+        primary.saveChunk(1, 2, 3, new byte[]{1});
+        primary.saveColumn(4, 5, new byte[]{2});
+        primary.save();
+
+        Replica replica = new Replica("localhost", port);
+        MapConfig config = replica.configure(new MapConfig());
+        Assert.assertEquals(KeyLayout.MORTON, config.getLayout());
+        Assert.assertTrue(config.isReadOnly());
+        Map follower = new Map(new SegmentStore(path.resolve("follower"), 64 * 1024), config);
+        try {
+            replica.start(follower);
+            await(() -> replica.getApplied() >= 0);
+            Assert.assertArrayEquals(new byte[]{1}, follower.getChunk(1, 2, 3));
+            Assert.assertArrayEquals(new byte[]{2}, follower.getColumn(4, 5));
+
+            long before = replicator.getSequence();
+            primary.saveChunk(1, 2, 3, new byte[]{3});
+            primary.saveChunk(-6, 7, 8, new byte[]{4});
+            primary.save();
+            // commits reach the replicator on the change feed's thread, after save returns
+            await(() -> replicator.getSequence() > before);
+            long sequence = replicator.getSequence();
+            await(() -> replica.getApplied() >= sequence);
+            Assert.assertArrayEquals(new byte[]{3}, follower.getChunk(1, 2, 3));
+            Assert.assertArrayEquals(new byte[]{4}, follower.getChunk(-6, 7, 8));
+            Assert.assertEquals(primary.getChunks().size(), follower.getChunks().size());
+            await(() -> replicator.report().contains("acknowledged " + sequence));
+
+            try {
+                follower.saveChunk(1, 2, 3, new byte[]{5});
+                Assert.fail();
+            } catch (IllegalStateException e) {
+            }
+        } finally {
+            replica.close();
+            follower.close();
+        }
+    }
+
+    @Test
+    public void mismatchTest() throws Exception{
+        Replica replica = new Replica("localhost", port);
+        replica.configure(new MapConfig());
+        Map follower = new Map(new SegmentStore(path.resolve("follower"), 64 * 1024),
+                new MapConfig().withReadOnly(true));
+        try {
+            replica.start(follower);
+            Assert.fail();
+        } catch (IOException e) {
+        } finally {
+            replica.close();
+            follower.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.skinny121;
+
+import com.skinny121.ChunkStore.Table;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+public class SegmentStoreTest {
+    private Path path;
+    private SegmentStore store;
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        store = new SegmentStore(path, 4096);
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        store.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for(Path file:files){
+                Files.delete(file);
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void saveTest(){
+        Assert.assertTrue(store.isEmpty(Table.CHUNKS));
+        store.save(Table.CHUNKS, 5, new byte[]{1, 2});
+        store.save(Table.COLUMNS, 5, new byte[]{3});
+        store.save(Table.CHUNKS, 5, new byte[]{4});
+        Assert.assertTrue(store.contains(Table.CHUNKS, 5));
+        Assert.assertFalse(store.contains(Table.CHUNKS, 6));
+        Assert.assertArrayEquals(new byte[]{4}, store.get(Table.CHUNKS, 5));
+        Assert.assertArrayEquals(new byte[]{3}, store.get(Table.COLUMNS, 5));
+        Assert.assertNull(store.get(Table.COLUMNS, 6));
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        Assert.assertEquals(1, store.read(Table.CHUNKS, 5, length -> buffer));
+        Assert.assertEquals(-1, store.read(Table.CHUNKS, 6, length -> buffer));
+        Assert.assertEquals(4, buffer.get(0));
+        Assert.assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void orderTest(){
+        for(long key:new long[]{7, -3, 12, 0, Long.MIN_VALUE}){
+            store.save(Table.CHUNKS, key, new byte[]{(byte) key});
+        }
+        Iterator<Long> keys = store.keys(Table.CHUNKS, null);
+        for(long key:new long[]{Long.MIN_VALUE, -3, 0, 7, 12}){
+            Assert.assertEquals(key, (long) keys.next());
+        }
+        Assert.assertFalse(keys.hasNext());
+        Assert.assertEquals(7L, (long) store.keys(Table.CHUNKS, 0L).next());
+        Iterator<java.util.Map.Entry<Long, byte[]>> entries = store.entries(Table.CHUNKS, -3, 6);
+        Assert.assertEquals(-3L, (long) entries.next().getKey());
+        Assert.assertEquals(0L, (long) entries.next().getKey());
+        Assert.assertFalse(entries.hasNext());
+        // a new key is seen by the next iteration
+        store.save(Table.CHUNKS, 1, new byte[]{1});
+        entries = store.entries(Table.CHUNKS, 1, 1);
+        Assert.assertArrayEquals(new byte[]{1}, entries.next().getValue());
+    }
+
+    @Test
+    public void recoveryTest(){
+        byte[] large = new byte[10000];
+        large[9999] = 8;
+        store.save(Table.CHUNKS, 1, new byte[]{1});
+        store.save(Table.CHUNKS, 2, large);
+        store.setMeta("layout", "MORTON");
+        store.commit();
+        store.save(Table.CHUNKS, 1, new byte[]{2});
+        store.save(Table.COLUMNS, 3, new byte[]{3});
+        store.close();
+
+        store = new SegmentStore(path, 4096);
+        Assert.assertArrayEquals(new byte[]{1}, store.get(Table.CHUNKS, 1));
+        Assert.assertArrayEquals(large, store.get(Table.CHUNKS, 2));
+        Assert.assertFalse(store.contains(Table.COLUMNS, 3));
+        Assert.assertEquals("MORTON", store.getMeta("layout"));
+        // the uncommitted tail is written over after recovery
+        store.save(Table.CHUNKS, 4, new byte[]{4});
+        store.commit();
+        store.close();
+
+        store = new SegmentStore(path, 4096);
+        Assert.assertArrayEquals(new byte[]{4}, store.get(Table.CHUNKS, 4));
+        Assert.assertArrayEquals(new byte[]{1}, store.get(Table.CHUNKS, 1));
+    }
+
+    @Test
+    public void metaTest() throws IOException{
+        store.setMeta("layout", "MORTON");
+        store.commit();
+        // a meta change that is never committed is lost with the data
+        store.setMeta("layout", "ZORDER");
+        store.save(Table.CHUNKS, 1, new byte[]{1});
+        store.close();
+
+        store = new SegmentStore(path, 4096);
+        Assert.assertEquals("MORTON", store.getMeta("layout"));
+        Assert.assertFalse(store.contains(Table.CHUNKS, 1));
+        Assert.assertFalse(Files.exists(path.resolve("meta.properties")));
+        store.setMeta("cubeIndex", "1");
+        store.commit();
+        store.close();
+
+        store = new SegmentStore(path, 4096);
+        Assert.assertEquals("MORTON", store.getMeta("layout"));
+        Assert.assertEquals("1", store.getMeta("cubeIndex"));
+    }
+
+    @Test
+    public void pagedIndexTest(){
+        OffHeapIndex index = new OffHeapIndex(0, 16);
+        for(long key=0;key<1000;key++){
+            Assert.assertEquals(-1, index.put(key * 31, key));
+        }
+        Assert.assertEquals(1000, index.size());
+        Assert.assertEquals(1000, index.keys().length);
+        for(long key=0;key<1000;key++){
+            Assert.assertEquals(key, index.get(key * 31));
+        }
+        Assert.assertEquals(-1, index.get(1));
+        Assert.assertEquals(5, index.put(5 * 31, 6));
+        Assert.assertEquals(6, index.get(5 * 31));
+    }
+
+    @Test
+    public void mapTest(){
+        Map map = new Map(store, new MapConfig().withLayout(KeyLayout.MORTON));
+        map.saveChunk(1, -2, 3, new byte[]{5});
+        map.saveColumn(-4, 5, new byte[]{6});
+        Assert.assertArrayEquals(new byte[]{5}, map.getChunk(1, -2, 3));
+        Assert.assertEquals(1, map.getChunks(0, -2, 0, 1, -2, 3).size());
+        Assert.assertEquals(map.new Pos(-4, 0, 5), map.iterateColumns(null).next());
+        Assert.assertEquals("MORTON", store.getMeta("layout"));
+    }
+
+    @Test
+    public void indexTest(){
+        // a store from before the cube index was kept
+        store.setMeta("layout", "MORTON");
+        for(int y:new int[]{7, -1, 3}){
+            store.save(Table.CHUNKS, KeyLayout.MORTON.address(2, y, -5), new byte[]{(byte) y});
+        }
+        store.commit();
+        Map map = new Map(store, new MapConfig());
+        Assert.assertArrayEquals(new int[]{-1, 3, 7}, map.getCubeYs(2, -5));
+        Assert.assertEquals("1", store.getMeta("cubeIndex"));
+    }
+}
@@ -0,0 +1,146 @@
+package com.skinny121;
+
+import com.skinny121.ChunkStore.Table;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class ShardedStoreTest {
+    private Path path;
+    private ShardedStore store;
+
+    @Before
+    public void setUp() throws IOException{
+        path = Files.createTempDirectory(null);
+        store = open(4);
+    }
+
+    private ShardedStore open(int shards){
+        return new ShardedStore(path.resolve("shards"), shard -> new SegmentStore(shard, 64 * 1024), shards, 32,
+                KeyLayout.MORTON);
+    }
+
+    @After
+    public void tearDown() throws IOException{
+        store.close();
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void routingTest(){
+        long key = KeyLayout.MORTON.address(100, 5, -40);
+        // the whole column and its region are in one shard
+        Assert.assertEquals(store.shard(key), store.shard(KeyLayout.MORTON.address(100, 0, -40)));
+        Assert.assertEquals(store.shard(key), store.shard(KeyLayout.MORTON.address(127, -9, -33)));
+        store.save(Table.CHUNKS, key, new byte[]{1});
+        Assert.assertArrayEquals(new byte[]{1}, store.get(Table.CHUNKS, key));
+        Assert.assertTrue(store.contains(Table.CHUNKS, key));
+        Assert.assertFalse(store.isEmpty(Table.CHUNKS));
+        Assert.assertTrue(store.isEmpty(Table.COLUMNS));
+    }
+
+    @Test
+    public void orderTest(){
+        List<Long> keys = new ArrayList<>();
+        long[] batch = new long[200];
+        byte[][] data = new byte[batch.length][];
+        for(int i=0;i<batch.length;i++){
+            batch[i] = KeyLayout.MORTON.address(i * 13 - 1000, 0, 700 - i * 29);
+            data[i] = new byte[]{(byte) i};
+            keys.add(batch[i]);
+        }
+        store.saveAll(Table.COLUMNS, batch, data);
+        keys.sort(null);
+        Iterator<Long> iterator = store.keys(Table.COLUMNS, null);
+        for(long key:keys){
+            Assert.assertEquals(key, (long) iterator.next());
+        }
+        Assert.assertFalse(iterator.hasNext());
+        Iterator<java.util.Map.Entry<Long, byte[]>> entries = store.entries(Table.COLUMNS, keys.get(10), keys.get(20));
+        for(int i=10;i<=20;i++){
+            Assert.assertEquals(keys.get(i), entries.next().getKey());
+        }
+        Assert.assertFalse(entries.hasNext());
+        Assert.assertEquals(keys.get(51), store.keys(Table.COLUMNS, keys.get(50)).next());
+    }
+
+    @Test
+    public void reopenTest(){
+        List<java.util.Map.Entry<Long, byte[]>> sorted = new ArrayList<>();
+        for(int i=0;i<5000;i++){
+            sorted.add(new AbstractMap.SimpleImmutableEntry<>((long) i * 1000, new byte[]{(byte) i}));
+        }
+        store.load(Table.CHUNKS, sorted.iterator());
+        store.setMeta("layout", "MORTON");
+        store.commit();
+        store.close();
+
+        // an existing store keeps its shards
+        store = open(2);
+        Assert.assertEquals(4, store.getShardCount());
+        Assert.assertEquals("MORTON", store.getMeta("layout"));
+        for(java.util.Map.Entry<Long, byte[]> entry:sorted){
+            Assert.assertArrayEquals(entry.getValue(), store.get(Table.CHUNKS, entry.getKey()));
+        }
+    }
+
+    @Test
+    public void mapTest() throws Exception{
+        Path save = path.resolve("map");
+        Map map = new Map(save.toString(), new MapConfig().withShards(3).withLayout(KeyLayout.MORTON));
+        for(int x=-64;x<64;x+=8){
+            map.saveChunk(x, 1, -x, new byte[]{(byte) x});
+            map.saveColumn(x, -x, new byte[]{(byte) -x});
+        }
+        map.save();
+        Assert.assertEquals(16, map.getChunks().size());
+        Assert.assertEquals(4, map.getChunks(0, 0, -31, 31, 1, 0).size());
+        map.compact().get();
+        map.close();
+
+        // found to be sharded without being told
+        map = new Map(save.toString());
+        Assert.assertArrayEquals(new byte[]{-8}, map.getChunk(-8, 1, 8));
+        Assert.assertArrayEquals(new byte[]{8}, map.getColumn(-8, 8));
+        Assert.assertEquals(KeyLayout.MORTON, map.getLayout());
+        map.close();
+    }
+
+    @Test
+    public void regionTest(){
+        try {
+            new ShardedStore(path.resolve("bad"), shard -> new SegmentStore(shard, 64 * 1024), 4, 0, KeyLayout.MORTON);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertFalse(Files.exists(path.resolve("bad")));
+    }
+
+    @Test
+    public void unshardedTest() throws IOException{
+        // a store made in a save before sharding was asked for stays as it is
+        for(String kind:new String[]{"mapdb", "segment"}){
+            Path world = Files.createDirectory(path.resolve(kind));
+            Map map = new Map(world.toString(), new MapConfig().withStore(kind));
+            map.saveChunk(1, 2, 3, new byte[]{4});
+            map.save();
+            map.close();
+            map = new Map(world.toString(), new MapConfig().withStore(kind).withShards(4));
+            Assert.assertArrayEquals(new byte[]{4}, map.getChunk(1, 2, 3));
+            map.close();
+            Assert.assertFalse(Files.exists(world.resolve(kind.equals("mapdb") ? "cubes.dim0.db" : "cubes.dim0.segments")
+                    .resolve("shard-000")));
+        }
+    }
+}